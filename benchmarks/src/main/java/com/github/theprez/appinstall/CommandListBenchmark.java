@@ -0,0 +1,74 @@
+package com.github.theprez.appinstall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Working out the CCSID tags to set and the stream files to delete, from the package index, for a full package
+ * and for a delta one (where a tenth of the files are deleted and half are unchanged). This includes handing every file
+ * to the pre-flight checks, and waiting for them, as an installation does; the install root doesn't exist, so they find
+ * nothing in the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandListBenchmark {
+    @Param({ "10000", "1000000" })
+    public int entries;
+
+    @Param({ "full", "delta" })
+    public String kind;
+
+    private boolean m_isDelta;
+    private String m_digest;
+    private File m_dir;
+    private byte[] m_index;
+    private final PrintStream m_out = new PrintStream(Fixtures.nullOutputStream());
+
+    @Setup
+    public void setUp() throws IOException {
+        m_isDelta = "delta".equals(kind);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m_digest = Fixtures.writeIndex(out, m_isDelta ? Fixtures.indexEntries(entries, 2, 10) : Fixtures.indexEntries(entries, 0, 0));
+        m_index = out.toByteArray();
+        m_dir = Fixtures.createTempDir("commands");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(m_dir);
+    }
+
+    @Benchmark
+    public InstallationTask.StreamFileChanges inferChanges() throws IOException, InterruptedException {
+        final InstallOptions options = new InstallOptions();
+        options.root = new File(m_dir, "root").getAbsolutePath();
+        final InstallPlan plan = new InstallPlan("bench", m_dir, options.root, options.jobs);
+        final InstallationTask.StreamFileChanges ret = new InstallationTask.StreamFileChanges();
+        try (ManifestIndex.Reader index = new ManifestIndex.Reader(new ByteArrayInputStream(m_index), m_digest)) {
+            InstallationTask.inferStreamFileChanges(index, m_isDelta ? entries / 10 : 0, m_isDelta ? "base" : null, ret, options, plan, m_out);
+        }
+        plan.finish();
+        return ret;
+    }
+}
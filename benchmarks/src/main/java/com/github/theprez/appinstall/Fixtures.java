@@ -0,0 +1,163 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic fixtures for the benchmarks. Everything is generated from a fixed seed, so that runs on different machines
+ * (and before and after a change) work on exactly the same data.
+ */
+class Fixtures {
+    private static final String[] WORDS = { "CALL", "PGM", "DCL", "VAR", "CHGVAR", "IF", "THEN", "ELSE", "ENDDO", "MONMSG", "CPF0000", "EXEC", "SQL", "SELECT", "FROM", "WHERE", "public",
+            "static", "final", "void", "return", "import", "class", "new", "null", "true", "{", "}", "(", ")", ";", "=", "\n", "\n    ", "0", "1", "42", "1208", "*LIBL", "QSYS" };
+
+    /**
+     * @return source-code-like data, which compresses about as well as a typical application does (a few times over),
+     *         the same every time for the same size and seed
+     */
+    static byte[] compressible(final int _size, final long _seed) {
+        final Random random = new Random(_seed);
+        final byte[] ret = new byte[_size];
+        int pos = 0;
+        while (pos < _size) {
+            final String word = WORDS[random.nextInt(WORDS.length)];
+            for (int i = 0; i < word.length() && pos < _size; ++i) {
+                ret[pos++] = (byte) word.charAt(i);
+            }
+            if (pos < _size) {
+                ret[pos++] = ' ';
+            }
+        }
+        return ret;
+    }
+
+    /** @return a new, empty, temporary directory, deleted when the JVM exits (see {@link #delete(File)}) */
+    static File createTempDir(final String _prefix) throws IOException {
+        final File ret = Files.createTempDirectory("appinstall-bench-" + _prefix).toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                delete(ret);
+            } catch (final IOException e) {
+                // the temporary directory is left behind
+            }
+        }));
+        return ret;
+    }
+
+    /**
+     * Creates a tree of files, {@code _filesPerDir} to a directory, two levels deep
+     *
+     * @return the total size of the files
+     */
+    static long createTree(final File _root, final int _files, final int _filesPerDir, final int _fileSize) throws IOException {
+        long ret = 0;
+        for (int i = 0; i < _files; ++i) {
+            final int dir = i / _filesPerDir;
+            final File parent = new File(_root, String.format("d%03d/s%03d", dir / 100, dir % 100));
+            parent.mkdirs();
+            // sizes vary by up to half, as they would in a real tree
+            final int size = _fileSize / 2 + (int) ((i * 2654435761L) % Math.max(1, _fileSize));
+            writeFile(new File(parent, String.format("file%06d.txt", i)), size, i);
+            ret += size;
+        }
+        return ret;
+    }
+
+    /** Deletes a file, or a directory and everything in it */
+    static void delete(final File _f) throws IOException {
+        if (!_f.exists()) {
+            return;
+        }
+        try (Stream<File> files = Files.walk(_f.toPath()).sorted(Comparator.reverseOrder()).map(_p -> _p.toFile())) {
+            files.forEach(File::delete);
+        }
+    }
+
+    /**
+     * Builds the records of a package index of stream files under {@code /app}, a directory to every 100 files, in the
+     * order a package build writes them. Files have CCSIDs 1208, 819 and 37 in turn.
+     *
+     * @param _unchangedEvery every so many files are unchanged since the base package (so not in the archive), or 0
+     * @param _deletedEvery   every so many files are deleted, or 0
+     */
+    static List<ManifestIndex.Entry> indexEntries(final int _files, final int _unchangedEvery, final int _deletedEvery) {
+        final List<ManifestIndex.Entry> ret = new ArrayList<ManifestIndex.Entry>(_files + _files / 100 + 1);
+        final String fingerprint = String.format("%064x", 0);
+        final int[] ccsids = { 1208, 819, 37 };
+        long offset = 0;
+        for (int i = 0; i < _files; ++i) {
+            final String name = String.format("app/d%03d/s%03d", i / 10000, i / 100 % 100);
+            if (0 == i % 100) {
+                final TarEntry dir = new TarEntry(name);
+                dir.setType(TarEntry.TYPE_DIRECTORY);
+                dir.setCcsid(1208);
+                ret.add(new ManifestIndex.Entry(dir, offset, fingerprint));
+                offset += TarWriter.BLOCK_SIZE;
+            }
+            final String file = String.format("%s/file%06d.txt", name, i);
+            if (0 < _deletedEvery && 0 == i % _deletedEvery) {
+                ret.add(ManifestIndex.deleted("/" + file));
+                continue;
+            }
+            final TarEntry entry = new TarEntry(file);
+            entry.setSize(2048 + i % 4096);
+            entry.setCcsid(ccsids[i % ccsids.length]);
+            final boolean isUnchanged = 0 < _unchangedEvery && 0 == i % _unchangedEvery;
+            ret.add(new ManifestIndex.Entry(entry, isUnchanged ? -1 : offset, fingerprint));
+            if (!isUnchanged) {
+                offset += TarWriter.BLOCK_SIZE + (entry.getSize() + TarWriter.BLOCK_SIZE - 1) / TarWriter.BLOCK_SIZE * TarWriter.BLOCK_SIZE;
+            }
+        }
+        return ret;
+    }
+
+    /** @return an output stream that throws away everything written to it */
+    static OutputStream nullOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(final byte[] _b, final int _off, final int _len) {
+            }
+
+            @Override
+            public void write(final int _b) {
+            }
+        };
+    }
+
+    /**
+     * Writes a package index
+     *
+     * @return the digest of the index
+     */
+    static String writeIndex(final OutputStream _out, final List<ManifestIndex.Entry> _entries) throws IOException {
+        final ManifestIndex.Writer index = new ManifestIndex.Writer(_out);
+        for (final ManifestIndex.Entry entry : _entries) {
+            index.add(entry);
+        }
+        return index.finish();
+    }
+
+    /** Writes a file of compressible data, in chunks, so that large files don't take as much memory */
+    static void writeFile(final File _f, final long _size, final long _seed) throws IOException {
+        final byte[] chunk = compressible((int) Math.min(_size, 1024 * 1024), _seed);
+        try (OutputStream out = new FileOutputStream(_f)) {
+            long remaining = _size;
+            while (0 < remaining) {
+                final int len = (int) Math.min(chunk.length, remaining);
+                out.write(chunk, 0, len);
+                remaining -= len;
+            }
+        }
+    }
+
+    private Fixtures() {
+    }
+}
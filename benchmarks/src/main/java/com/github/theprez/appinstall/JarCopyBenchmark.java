@@ -0,0 +1,110 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying the installer itself into every package it builds: assembling the runtime template from raw copies of our own
+ * compressed entries (once per version), copying the template into a package (every build), and, for comparison,
+ * decompressing and recompressing every entry, as a plain {@link ZipOutputStream} would. The jar is synthetic, with about
+ * as many entries, of about the size, of the real one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JarCopyBenchmark {
+    @Param({ "1000", "8000" })
+    public int entries;
+
+    private File m_dir;
+    private File m_jar;
+    private File m_out;
+    private ZipIndex m_self;
+
+    @Setup
+    public void setUp() throws IOException {
+        m_dir = Fixtures.createTempDir("jar");
+        m_jar = new File(m_dir, "self.jar");
+        m_out = new File(m_dir, "out.jar");
+        try (ZipWriter out = new ZipWriter(m_jar)) {
+            out.putNextEntry(JarFile.MANIFEST_NAME);
+            out.write("Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+            for (int i = 0; i < entries; ++i) {
+                out.putNextEntry(String.format("com/example/p%02d/Class%05d.class", i % 50, i));
+                out.write(Fixtures.compressible(512 + (int) ((i * 2654435761L) % 6144), i));
+            }
+        }
+        m_self = new ZipIndex(m_jar);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        m_self.close();
+        Fixtures.delete(m_dir);
+    }
+
+    /** As the runtime template is assembled */
+    @Benchmark
+    public long assembleTemplate() throws IOException {
+        try (ZipWriter out = new ZipWriter(m_out)) {
+            for (final ZipIndex.Record rec : m_self.getRecords()) {
+                out.copyRawEntry(m_self, rec);
+            }
+            out.finish();
+            return out.getPosition();
+        }
+    }
+
+    /** As the runtime template is copied into each package */
+    @Benchmark
+    public long copyTemplate() throws IOException {
+        try (ZipWriter out = new ZipWriter(m_out)) {
+            out.copyAll(m_self);
+            out.finish();
+            return out.getPosition();
+        }
+    }
+
+    /** Decompressing and recompressing every entry instead */
+    @Benchmark
+    public long recompress() throws IOException {
+        final byte[] buf = new byte[1024 * 64];
+        long ret = 0;
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(m_jar)); ZipOutputStream out = new ZipOutputStream(new FileOutputStream(m_out))) {
+            ZipEntry entry = null;
+            while (null != (entry = in.getNextEntry())) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                int bytesRead = -1;
+                while (0 < (bytesRead = in.read(buf))) {
+                    out.write(buf, 0, bytesRead);
+                    ret += bytesRead;
+                }
+                out.closeEntry();
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.theprez.appinstall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing (and checking the digest of) the package index, the manifest of every stream file in a package, from 10 to a
+ * million entries, and writing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManifestIndexBenchmark {
+    @Param({ "10", "10000", "1000000" })
+    public int entries;
+
+    private String m_digest;
+    private List<ManifestIndex.Entry> m_entries;
+    private byte[] m_index;
+
+    @Setup
+    public void setUp() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m_entries = Fixtures.indexEntries(entries, 0, 0);
+        m_digest = Fixtures.writeIndex(out, m_entries);
+        m_index = out.toByteArray();
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        long ret = 0;
+        try (ManifestIndex.Reader index = new ManifestIndex.Reader(new ByteArrayInputStream(m_index), m_digest)) {
+            ManifestIndex.Entry entry = null;
+            while (null != (entry = index.next())) {
+                ret += entry.getSize();
+            }
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public String write() throws IOException {
+        return Fixtures.writeIndex(Fixtures.nullOutputStream(), m_entries);
+    }
+}
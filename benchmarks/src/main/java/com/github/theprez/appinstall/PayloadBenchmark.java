@@ -0,0 +1,114 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a payload entry into a package, through {@link ZipWriter} and a {@link Codec}, and reading it back out, as
+ * {@link ExtractionTask} extracts it: through a buffer, digesting it on the way to the file it is extracted to. Both are
+ * run for every combination of payload size and codec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+    private static final String ENTRY_NAME = "APPINSTALL-DATA/payload";
+
+    /** The extraction buffer ({@code ExtractionTask.BUFFER_SIZE}), which may be varied with {@code -p bufferSize=...} */
+    @Param({ "262144" })
+    public int bufferSize;
+
+    @Param({ "store", "deflate:1", "deflate", "parallel" })
+    public String codec;
+
+    @Param({ "65536", "4194304", "67108864" })
+    public int size;
+
+    private Codec m_codec;
+    private byte[] m_data;
+    private File m_dir;
+    private File m_extracted;
+    private File m_pkg;
+    private File m_written;
+
+    @Setup
+    public void setUp() throws IOException {
+        m_codec = Codec.parse(codec);
+        m_data = Fixtures.compressible(size, size);
+        m_dir = Fixtures.createTempDir("payload");
+        m_pkg = new File(m_dir, "pkg.jar");
+        m_written = new File(m_dir, "written.jar");
+        m_extracted = new File(m_dir, "payload");
+        write(m_pkg);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(m_dir);
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        long ret = 0;
+        try (ZipFile pkg = new ZipFile(m_pkg)) {
+            final ZipEntry entry = pkg.getEntry(ENTRY_NAME);
+            try (InputStream in = pkg.getInputStream(entry);
+                    FileChannel out = FileChannel.open(m_extracted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final byte[] buf = new byte[bufferSize];
+                int bytesRead = -1;
+                while (0 < (bytesRead = in.read(buf))) {
+                    digest.update(buf, 0, bytesRead);
+                    final ByteBuffer bb = ByteBuffer.wrap(buf, 0, bytesRead);
+                    while (bb.hasRemaining()) {
+                        out.write(bb);
+                    }
+                    ret += bytesRead;
+                }
+            }
+        }
+        return ret + digest.digest()[0];
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        return write(m_written);
+    }
+
+    /** Writes the payload, in the chunks a {@link StreamPipe} hands over */
+    private long write(final File _f) throws IOException {
+        try (ZipWriter out = new ZipWriter(_f)) {
+            out.setCodec(m_codec);
+            out.putNextEntry(ENTRY_NAME);
+            for (int off = 0; off < m_data.length; off += StreamPipe.CHUNK_SIZE) {
+                out.write(m_data, off, Math.min(StreamPipe.CHUNK_SIZE, m_data.length - off));
+            }
+            out.finish();
+            return out.getPosition();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.theprez.appinstall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * The stream files archive, for a tree of many small files and for one of a few large ones: walking the tree, writing
+ * the archive from it (digesting every file and indexing every entry, as a package build does), reading the archive
+ * headers, and restoring the whole archive with {@link TarExtractor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TarBenchmark {
+    /** {@code small}: 20,000 files of about 2 KB, {@code large}: 4 files of about 64 MB */
+    @Param({ "small", "large" })
+    public String tree;
+
+    private File m_archive;
+    private File m_dir;
+    private FileTree m_files;
+    private AppLogger m_logger;
+    private File m_restored;
+    private File m_root;
+    private File m_written;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        m_logger = AppLogger.getSingleton(false);
+        m_dir = Fixtures.createTempDir("tar");
+        m_root = new File(m_dir, "tree");
+        m_archive = new File(m_dir, "files.tar");
+        m_written = new File(m_dir, "written.tar");
+        m_restored = new File(m_dir, "restored");
+        if ("small".equals(tree)) {
+            Fixtures.createTree(m_root, 20000, 100, 2048);
+        } else if ("large".equals(tree)) {
+            Fixtures.createTree(m_root, 4, 1, 64 * 1024 * 1024);
+        } else {
+            throw new IOException("Unknown tree '" + tree + "'");
+        }
+        m_files = walk();
+        write(m_archive);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(m_dir);
+    }
+
+    @Benchmark
+    public void extract() throws IOException, InterruptedException {
+        new TarExtractor(m_logger, m_restored, Runtime.getRuntime().availableProcessors()).extract(m_archive);
+    }
+
+    @Benchmark
+    public long readHeaders() throws IOException {
+        long ret = 0;
+        try (TarReader tar = new TarReader(new BufferedInputStream(new FileInputStream(m_archive), TarWriter.BLOCK_SIZE * 16))) {
+            TarEntry entry = null;
+            while (null != (entry = tar.getNextEntry())) {
+                ret += entry.getSize();
+            }
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public FileTree walk() throws IOException, InterruptedException {
+        final FileTree.Walker walker = new FileTree.Walker(m_logger, Runtime.getRuntime().availableProcessors());
+        walker.addRoot(m_root);
+        return walker.walk();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        return write(m_written);
+    }
+
+    private long write(final File _f) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(_f), 1024 * 64)) {
+            final TarWriter tar = new TarWriter(out);
+            long fingerprints = 0;
+            for (int i = 0; i < m_files.size(); ++i) {
+                final TarEntry entry = m_files.toEntry(i, null);
+                final MessageDigest digest = entry.isFile() ? PackageConfiguration.newDigest() : null;
+                final long offset = tar.getPosition();
+                tar.putEntry(entry, m_files.getFile(i), digest);
+                fingerprints += new ManifestIndex.Entry(entry, offset, entry.getFingerprint(null == digest ? null : digest.digest())).getSize();
+            }
+            tar.finish();
+            return tar.getPosition() + fingerprints;
+        }
+    }
+}
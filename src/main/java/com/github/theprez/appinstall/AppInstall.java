@@ -1,6 +1,7 @@
 package com.github.theprez.appinstall;
 
 import java.beans.PropertyVetoException;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -13,10 +14,14 @@ import com.github.theprez.jcmdutils.StringUtils.TerminalColor;
 import com.ibm.as400.access.ObjectDoesNotExistException;
 
 public class AppInstall {
-    private static void doBuild(final AppLogger _logger, final LinkedList<String> _args) throws IOException, URISyntaxException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
+    /** @param _host the host to run on, or {@code null} for this system */
+    private static void doBuild(final AppLogger _logger, final LinkedList<String> _args, final HostSession.Factory _host) throws IOException, URISyntaxException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
         String arg = "";
         try {
             final InstallPackageBuilder builder = new InstallPackageBuilder(_logger);
+            if (null != _host) {
+                builder.setHostSessionFactory(_host);
+            }
             while (!_args.isEmpty()) {
                 arg = _args.removeFirst();
                 if ("-o".equalsIgnoreCase(arg)) {
@@ -31,10 +36,24 @@ public class AppInstall {
                     builder.addBareDirectory(_args.removeFirst());
                 } else if ("--file".equalsIgnoreCase(arg)) {
                     builder.addFile(_args.removeFirst());
+                } else if ("--include".equalsIgnoreCase(arg)) {
+                    builder.addInclude(_args.removeFirst());
+                } else if ("--exclude".equalsIgnoreCase(arg)) {
+                    builder.addExclude(_args.removeFirst());
                 } else if ("--spec".equalsIgnoreCase(arg)) {
                     builder.addFromSpecFile(_logger, _args.removeFirst());
                 } else if ("--lodrun".equalsIgnoreCase(arg)) {
                     builder.setLodrunLib(_logger, _args.removeFirst());
+                } else if ("-j".equals(arg) || "--jobs".equalsIgnoreCase(arg)) {
+                    builder.setParallelism(_args.removeFirst());
+                } else if ("--base".equalsIgnoreCase(arg)) {
+                    builder.setBase(_args.removeFirst());
+                } else if ("--codec".equalsIgnoreCase(arg)) {
+                    builder.setCodec(_args.removeFirst());
+                } else if ("--volume-size".equalsIgnoreCase(arg)) {
+                    builder.setVolumeSize(_args.removeFirst());
+                } else if ("--cache-size".equalsIgnoreCase(arg)) {
+                    builder.setCacheSize(_args.removeFirst());
                 } else {
                     _logger.println_err("Urecognized argument: " + arg);
                     _logger.println();
@@ -47,12 +66,18 @@ public class AppInstall {
         }
     }
 
-    private static void doInstall(final AppLogger _logger, InstallOptions installOptions) throws IOException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
+    /** @param _host the host to install on, or {@code null} for this system */
+    private static void doInstall(final AppLogger _logger, InstallOptions installOptions, final HostSession.Factory _host) throws IOException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
             _logger.println("Doing the installation");
             final PackageConfiguration config = new PackageConfiguration(_logger);
-            final ExtractionTask extraction = new ExtractionTask(_logger, config);
-            final InstallationTask install = new InstallationTask(_logger, config, extraction.run());
-            install.run(installOptions);
+            try (ExtractionTask extraction = new ExtractionTask(_logger, config)) {
+                extraction.start(installOptions);
+                final InstallationTask install = new InstallationTask(_logger, config, extraction);
+                if (null != _host) {
+                    install.setHostSessionFactory(_host);
+                }
+                install.run(installOptions);
+            }
     }
 
     private static boolean isInstallPackage() {
@@ -62,13 +87,24 @@ public class AppInstall {
     public static void main(final String[] _args) {
         final LinkedList<String> args = new LinkedList<String>(Arrays.asList(_args));
         final AppLogger logger = AppLogger.getSingleton(args.remove("-v"));
+        String report = null;
+        String trace = null;
+        boolean isInstall = false;
         try {
+            report = removeOption(args, "--report");
+            trace = removeOption(args, "--trace");
+            if (null != report || null != trace) {
+                PerfRecorder.getSingleton().enable();
+            }
+            final String simulate = removeOption(args, "--simulate");
+            final HostSession.Factory host = null == simulate ? null : SimulatedHost.read(logger, new File(simulate));
             if (args.remove("--help") || args.remove("-h")) {
                 printUsageAndExit();
             } else if (args.remove("--version")) {
                 printVersionInfo(logger);
                 System.exit(0);
             } else if (isInstallPackage()) {
+            	isInstall = true;
             	InstallOptions installOptions = new InstallOptions();
             	// Allow either -y='yes to all ' or -c 'continue if not delete'
             	installOptions.confirm = args.remove("-y") ? 'y' : args.remove("-c") ? 'c' : ' ';
@@ -85,22 +121,71 @@ public class AppInstall {
                 			break;
                 		case "--rstaspdev":
                 			installOptions.rstaspdev = args.removeFirst();
+                			break;
+                		case "--list":
+                			installOptions.listFiles = true;
+                			break;
+                		case "--root":
+                			installOptions.root = args.removeFirst();
+                			break;
+                		case "--resume":
+                			installOptions.resume = true;
+                			break;
+                		case "--plan":
+                			installOptions.planFile = args.removeFirst();
+                			break;
+                		case "--force":
+                			installOptions.force = true;
+                			break;
+                		case "-j":
+                		case "--jobs":
+                			installOptions.jobs = Math.max(1, Integer.parseInt(args.removeFirst()));
                 	}
                 }
-                doInstall(logger, installOptions);
+                doInstall(logger, installOptions, host);
             } else {
-                doBuild(logger, args);
+                doBuild(logger, args, host);
             }
         } catch (final Exception e) {
             logger.println_err("ERROR: " + e.getLocalizedMessage());
             logger.printExceptionStack_verbose(e);
+        } finally {
+            writePerformanceReports(logger, report, trace, isInstall ? "install" : "build");
+        }
+    }
+
+    /** @return the value of an option (removing both from the arguments), or {@code null} if it isn't given */
+    private static String removeOption(final LinkedList<String> _args, final String _option) {
+        final int index = _args.indexOf(_option);
+        if (0 > index) {
+            return null;
+        }
+        _args.remove(index);
+        if (index >= _args.size()) {
+            throw new NoSuchElementException("Argument '" + _option + "' specified without value");
+        }
+        return _args.remove(index);
+    }
+
+    private static void writePerformanceReports(final AppLogger _logger, final String _report, final String _trace, final String _command) {
+        try {
+            if (null != _report) {
+                PerfRecorder.getSingleton().writeReport(new File(_report), _command);
+                _logger.println_verbose("Wrote performance report to " + _report);
+            }
+            if (null != _trace) {
+                PerfRecorder.getSingleton().writeTrace(new File(_trace));
+                _logger.println_verbose("Wrote performance trace to " + _trace);
+            }
+        } catch (final IOException e) {
+            _logger.println_err("ERROR: Could not write the performance report: " + e.getLocalizedMessage());
         }
     }
 
     private static void printUsageAndExit() {
         System.out.println("");
         if (isInstallPackage()) {
-            System.out.println("Usage: java -jar <jarfile> [-v] [-y]");
+            System.out.println("Usage: java -jar <jarfile> [-v] [-y] [-j <n>] [--list] [--root <dir>] [--resume] [--plan <file>] [--force] [--report <file>] [--trace <file>] [--simulate <file>]");
             System.exit(-1);
         }
         System.out.println("Usage: java -jar <jarfile> -o <package_file> [options] [[component]...]");
@@ -112,13 +197,27 @@ public class AppInstall {
         System.out.println("       -v          : verbose mode");
         System.out.println("       --version   : print version information");
         System.out.println("       -h/--help   : print this help");
+        System.out.println("       --lodrun <library> : save QINSTAPP program from <library> to be used by LODRUN");
+        System.out.println("       -j/--jobs <n>      : save up to <n> libraries concurrently (default " + InstallPackageBuilder.DEFAULT_PARALLELISM + ")");
+        System.out.println("       --base <package>   : build a delta against a previously built package");
+        System.out.println("       --codec <codec>    : store, deflate[:level] (default) or parallel[:level] (deflate on all cores)");
+        System.out.println("       --volume-size <MB> : split the package into a small jar plus payload volumes of about <MB> each");
+        System.out.println("       --cache-size <MB>  : size cap of the build cache (default " + BuildCache.DEFAULT_MAX_MB + ", 0 to disable)");
+        System.out.println("       --report <file>    : write a JSON performance report (time, bytes, round trips per phase) to <file>");
+        System.out.println("       --trace <file>     : write a timeline of the build, in Chrome trace format, to <file>");
+        System.out.println("       --simulate <file>  : build against a simulated host, described in <file>, instead of this system");
         System.out.println("");
         System.out.println("  Multiple components can be specified. These identify components");
         System.out.println("  of the application for which you are creating an installer.");
         System.out.println("    Valid component values include:");
         System.out.println("        --qsys <library>   : a library in the QSYS.LIB file system");
+        System.out.println("        --qsys <library>/<names>[:<types>][@<yyyy-mm-dd>]");
+        System.out.println("                           : only the objects of a library that match (and changed since), restored over");
+        System.out.println("                             the installed library instead of replacing it (names may be generic, as PGM*)");
         System.out.println("        --dir  <dir>       : a directory (contents are not included)");
         System.out.println("        --file <file/dir>  : a file or directory (if a directory, contents are included)");
+        System.out.println("        --include <glob>   : only package the stream files under --file directories that match <glob>");
+        System.out.println("        --exclude <glob>   : leave out the stream files under --file directories that match <glob>");
         System.out.println("        --pre  <file>      : a pre-install script (only one can be specified)");
         System.out.println("        --post <file>      : a post-install script (only one can be specified)");
         System.out.println("        --spec <file>      : a specification file listing application components");
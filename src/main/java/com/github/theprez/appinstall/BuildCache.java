@@ -0,0 +1,183 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * A persistent cache of built package components (a library's save file, the stream files archive), so that a component
+ * that hasn't changed since it was last built doesn't have to be saved again. Each entry is a directory named by the
+ * fingerprint of the component it was built from. Entries are evicted least recently used first once the cache grows
+ * past its size cap.
+ */
+public class BuildCache {
+    public static final long DEFAULT_MAX_MB = 2048;
+    /** The layout of cache entries, to be bumped whenever what goes into an entry changes */
+    private static final int LAYOUT = 3;
+
+    /** @return a stream that writes to both of the given streams. Closing it closes only the second one. */
+    static OutputStream tee(final OutputStream _out, final OutputStream _copy) {
+        return new FilterOutputStream(_out) {
+            @Override
+            public void close() throws IOException {
+                _copy.close();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                _out.flush();
+                _copy.flush();
+            }
+
+            @Override
+            public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+                _out.write(_b, _off, _len);
+                _copy.write(_b, _off, _len);
+            }
+
+            @Override
+            public void write(final int _b) throws IOException {
+                _out.write(_b);
+                _copy.write(_b);
+            }
+        };
+    }
+
+    /**
+     * @return a cache key built from the given fingerprint data, the version of the code that builds the entry, and the
+     *         layout of the entry
+     */
+    static String toKey(final String _kind, final Iterable<String> _lines) {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        digest.update((_kind + "\n" + Version.version + "\n" + LAYOUT + "\n").getBytes(StandardCharsets.UTF_8));
+        for (final String line : _lines) {
+            digest.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return _kind + "-" + PackageConfiguration.toHex(digest.digest());
+    }
+
+    private final File m_dir;
+    private final AtomicLong m_hitBytes = new AtomicLong();
+    private final AtomicInteger m_hits = new AtomicInteger();
+    private final AppLogger m_logger;
+    private final long m_maxBytes;
+    private final AtomicInteger m_misses = new AtomicInteger();
+
+    public BuildCache(final AppLogger _logger, final long _maxBytes) {
+        m_logger = _logger;
+        m_maxBytes = _maxBytes;
+        final File homeDir = new File(System.getProperty("user.home", "~"));
+        m_dir = new File(new File(new File(homeDir, ".appinstall"), "cache"), "builds");
+    }
+
+    /** Discards a staging directory from {@link #stage(String)} */
+    public void abort(final File _staged) {
+        deleteTree(_staged);
+    }
+
+    /** Moves a completed staging directory into the cache, then evicts entries if the cache has grown too large */
+    public synchronized void commit(final String _key, final File _staged) throws IOException {
+        final File entry = new File(m_dir, _key);
+        if (entry.exists()) {
+            deleteTree(_staged); // built concurrently by someone else
+        } else {
+            Files.move(_staged.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        evict();
+    }
+
+    public boolean isEnabled() {
+        return 0 < m_maxBytes;
+    }
+
+    /**
+     * @return the directory of the cached entry, or {@code null} if there is none (in which case the component has to be
+     *         built, and may be {@link #stage(String) staged} into the cache while it is)
+     */
+    public File lookup(final String _key) {
+        final File entry = new File(m_dir, _key);
+        if (!entry.isDirectory()) {
+            m_misses.incrementAndGet();
+            m_logger.printfln_verbose("Build cache miss for %s", _key);
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        m_hits.incrementAndGet();
+        m_hitBytes.addAndGet(sizeOf(entry));
+        m_logger.printfln_verbose("Build cache hit for %s", _key);
+        return entry;
+    }
+
+    public void report() {
+        if (!isEnabled()) {
+            return;
+        }
+        m_logger.printfln("Build cache: %d hit(s), %d miss(es), %.1f MB reused", m_hits.get(), m_misses.get(), m_hitBytes.get() / 1048576.0);
+    }
+
+    /**
+     * @return a new, empty directory to build an entry into, to be passed to {@link #commit(String, File)} or
+     *         {@link #abort(File)}
+     */
+    public File stage(final String _key) throws IOException {
+        final File ret = new File(m_dir, _key + ".tmp-" + UUID.randomUUID().toString().substring(0, 8));
+        if (!ret.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + ret.getAbsolutePath());
+        }
+        return ret;
+    }
+
+    private static void deleteTree(final File _f) {
+        final File[] children = _f.listFiles();
+        if (null != children) {
+            for (final File child : children) {
+                deleteTree(child);
+            }
+        }
+        _f.delete();
+    }
+
+    private void evict() {
+        final File[] entries = m_dir.listFiles();
+        if (null == entries) {
+            return;
+        }
+        long total = 0;
+        final long[] sizes = new long[entries.length];
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = 0; i < entries.length; ++i) {
+            sizes[i] = sizeOf(entries[i]);
+            total += sizes[i];
+        }
+        // least recently used are at the end
+        for (int i = entries.length - 1; i >= 0 && total > m_maxBytes; --i) {
+            m_logger.printfln_verbose("Evicting %s from the build cache", entries[i].getName());
+            deleteTree(entries[i]);
+            total -= sizes[i];
+        }
+    }
+
+    private static long sizeOf(final File _f) {
+        final File[] children = _f.listFiles();
+        if (null == children) {
+            return _f.length();
+        }
+        long ret = 0;
+        for (final File child : children) {
+            ret += sizeOf(child);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * How package payloads are compressed. Every codec produces a standard zip entry (stored or deflated), so packages stay
+ * readable by any zip tool, and by the installer, regardless of how they were built.
+ * <ul>
+ * <li>{@code store}: no compression</li>
+ * <li>{@code deflate[:N]}: deflate at level N (0-9) on a single thread</li>
+ * <li>{@code parallel[:N]}: deflate at level N, with the payload split into blocks that are compressed on all cores and
+ * joined into a single deflate stream</li>
+ * </ul>
+ */
+public class Codec {
+    public static final Codec DEFAULT = new Codec("deflate", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION, 1);
+
+    public static Codec parse(final String _spec) throws IOException {
+        final String[] parts = _spec.trim().toLowerCase().split(":", 2);
+        int level = Deflater.DEFAULT_COMPRESSION;
+        if (2 == parts.length) {
+            try {
+                level = Integer.parseInt(parts[1]);
+            } catch (final NumberFormatException e) {
+                level = -2;
+            }
+            if (0 > level || 9 < level) {
+                throw new IOException("Invalid compression level in codec '" + _spec + "' (must be 0-9)");
+            }
+        }
+        switch (parts[0]) {
+            case "store":
+                return new Codec(_spec, ZipEntry.STORED, 0, 1);
+            case "deflate":
+                return new Codec(_spec, ZipEntry.DEFLATED, level, 1);
+            case "parallel":
+                return new Codec(_spec, ZipEntry.DEFLATED, level, Runtime.getRuntime().availableProcessors());
+            default:
+                throw new IOException("Unknown codec '" + _spec + "' (valid codecs are store, deflate[:N] and parallel[:N])");
+        }
+    }
+
+    private final int m_level;
+    private final int m_method;
+    private final String m_name;
+    private final int m_threads;
+
+    private Codec(final String _name, final int _method, final int _level, final int _threads) {
+        m_name = _name;
+        m_method = _method;
+        m_level = _level;
+        m_threads = _threads;
+    }
+
+    public int getLevel() {
+        return m_level;
+    }
+
+    /** @return the zip entry method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} */
+    public int getMethod() {
+        return m_method;
+    }
+
+    /** @return the number of threads that compress concurrently */
+    public int getThreads() {
+        return m_threads;
+    }
+
+    @Override
+    public String toString() {
+        return m_name;
+    }
+}
@@ -1,65 +1,446 @@
 package com.github.theprez.appinstall;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.github.theprez.jcmdutils.AppLogger;
 
-public class ExtractionTask {
+public class ExtractionTask implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 256;
+    private static final long VOLUME_WAIT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    /** A file extracted from the payload volumes, which is done once every one of its slices is in place */
+    private static class VolumeFile extends CompletableFuture<Long> {
+        private long m_bytes = 0;
+        private int m_remaining;
+
+        VolumeFile(final int _parts) {
+            m_remaining = _parts;
+        }
+
+        /** @return whether that was the last part, in which case the file is complete once verified */
+        synchronized boolean partDone(final long _bytes) {
+            m_bytes += _bytes;
+            return 0 == --m_remaining;
+        }
+
+        synchronized void verified() {
+            complete(m_bytes);
+        }
+    }
+
+    static File getPackageFile() throws IOException {
+        try {
+            return new File(ExtractionTask.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (final URISyntaxException e) {
+            throw new IOException("Could not locate install package", e);
+        }
+    }
+
+    private static String toMBps(final long _bytes, final long _nanos) {
+        return String.format("%.1f MB, %.1f MB/s", _bytes / 1048576.0, 0 == _nanos ? 0.0 : (_bytes / 1048576.0) / (_nanos / 1e9));
+    }
 
     private final PackageConfiguration m_config;
+    private final BlockingQueue<String> m_done = new LinkedBlockingQueue<String>();
     private final File m_installDir;
+    private InstallJournal m_journal = null;
     private final AppLogger m_logger;
+    private ZipFile m_pkg = null;
+    private final Map<String, Future<Long>> m_pending = new LinkedHashMap<String, Future<Long>>();
+    private final Map<String, VolumeFile> m_volumeFiles = new HashMap<String, VolumeFile>();
+    private ExecutorService m_pool = null;
+    private int m_returned = 0;
+    private long m_start = 0;
 
     public ExtractionTask(final AppLogger _logger, final PackageConfiguration _config) {
         m_logger = _logger;
         m_config = _config;
-        final String installId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+        // the same package always installs from the same directory, so that a failed installation can be resumed
+        final String packageId = null == _config.getId() ? UUID.randomUUID().toString() : _config.getId();
+        final String installId = packageId.replace("-", "").substring(0, 16);
         final File homeDir = new File(System.getProperty("user.home", "~"));
         final File dotDir = new File(homeDir, ".appinstall");
         final File allInstallsDir = new File(dotDir, "installs");
         m_installDir = new File(allInstallsDir, installId);
     }
 
-    public File run() throws IOException {
+    /**
+     * Waits for a single file to be extracted
+     *
+     * @throws IOException if that file could not be extracted
+     */
+    public void await(final String _fileStr) throws IOException, InterruptedException {
+        final Future<Long> result = m_pending.get(_fileStr);
+        if (null == result) {
+            throw new IOException("Package is missing " + _fileStr);
+        }
+        try {
+            result.get();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for whichever file is done extracting next, successfully or not (use {@link #await(String)} to tell)
+     *
+     * @return the name of that file, or {@code null} if every file has already been returned
+     */
+    public String awaitNext() throws InterruptedException {
+        if (m_returned == m_pending.size()) {
+            return null;
+        }
+        final String ret = m_done.take();
+        ++m_returned;
+        return ret;
+    }
+
+    /** @return whether the package contains the given file */
+    public boolean contains(final String _fileStr) {
+        return m_pending.containsKey(_fileStr);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != m_pool) {
+            m_pool.shutdownNow();
+        }
+        if (null != m_pkg) {
+            m_pkg.close();
+        }
+        if (null != m_journal) {
+            m_journal.close();
+        }
+    }
+
+    /**
+     * Waits for every file to be extracted
+     */
+    public void finish() throws IOException, InterruptedException {
+        long totalBytes = 0;
+        IOException failure = null;
+        for (final Future<Long> result : m_pending.values()) {
+            try {
+                totalBytes += result.get();
+            } catch (final ExecutionException e) {
+                final IOException ioe = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                if (null == failure) {
+                    failure = ioe;
+                } else {
+                    failure.addSuppressed(ioe);
+                }
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+        m_logger.println_success("Extraction phase complete (" + toMBps(totalBytes, System.nanoTime() - m_start) + ")");
+    }
+
+    /**
+     * @return the size of a packaged file, once extracted, or -1 if the package doesn't hold it. Valid once
+     *         {@link #start(InstallOptions)} has been called.
+     */
+    public long getExtractedSize(final String _fileStr) {
+        long ret = 0;
+        boolean isFound = false;
+        for (final PackageVolume volume : m_config.getVolumes()) {
+            for (final PackageVolume.Part part : volume.getParts()) {
+                if (part.getFile().equals(_fileStr)) {
+                    ret += part.getLength();
+                    isFound = true;
+                }
+            }
+        }
+        final ZipEntry entry = m_pkg.getEntry("APPINSTALL-DATA/" + _fileStr);
+        return isFound ? ret : null == entry ? -1 : entry.getSize();
+    }
+
+    public File getInstallDir() {
+        return m_installDir;
+    }
+
+    /** @return the journal of the installation, once {@link #start(InstallOptions)} has been called */
+    public InstallJournal getJournal() {
+        return m_journal;
+    }
+
+    /**
+     * Starts extracting every packaged file in the background, so that each one can be installed as soon as it is
+     * available
+     *
+     * @return the directory the files are extracted into
+     */
+    public File start(final InstallOptions _installOptions) throws IOException {
         m_logger.println("Creating temporary processing directory...");
         m_installDir.mkdirs();
         if (!m_installDir.isDirectory()) {
             throw new IOException("Could not create temporary installation directory: " + m_installDir);
         }
+        m_logger.println_verbose("Install directory is " + m_installDir.getAbsolutePath());
+        m_journal = new InstallJournal(m_logger, m_installDir, m_config.getId(), _installOptions.resume);
 
-        List<String> filesToExtract = new ArrayList<>(m_config.getFiles());
-        if (getClass().getClassLoader().getResourceAsStream("APPINSTALL-DATA/.preinstall") != null) {
-            filesToExtract.add(".preinstall");
+        m_start = System.nanoTime();
+        m_pkg = new ZipFile(m_config.getPackageFile());
+        // in a split package, files are extracted from the payload volumes instead, possibly a slice from each of several
+        final Map<String, Integer> volumeParts = new HashMap<String, Integer>();
+        for (final PackageVolume volume : m_config.getVolumes()) {
+            for (final PackageVolume.Part part : volume.getParts()) {
+                volumeParts.merge(part.getFile(), 1, Integer::sum);
+            }
+        }
+        final List<String> filesToExtract = new ArrayList<>(m_config.getFiles());
+        if (null != m_pkg.getEntry("APPINSTALL-DATA/.preinstall") || volumeParts.containsKey(".preinstall")) {
+            filesToExtract.add(0, ".preinstall");
         }
-        if (getClass().getClassLoader().getResourceAsStream("APPINSTALL-DATA/.postinstall") != null) {
+        if (null != m_pkg.getEntry("APPINSTALL-DATA/.postinstall") || volumeParts.containsKey(".postinstall")) {
             filesToExtract.add(".postinstall");
         }
 
-        final int bufferSize = 1024 * 512;
+        // entries are independent, so they're extracted concurrently straight from the (random-access) package file
+        m_pool = Executors.newFixedThreadPool(Math.max(1, Math.min(_installOptions.jobs, filesToExtract.size() + m_config.getVolumes().size())));
+        final Set<String> reused = findReusable(filesToExtract);
         for (final String fileStr : filesToExtract) {
-            final File destFile = new File(m_installDir, fileStr);
-            m_logger.printfln("Extracting %s...", fileStr);
-            try (BufferedInputStream in = new BufferedInputStream(m_logger.getClass().getClassLoader().getResourceAsStream("APPINSTALL-DATA/" + fileStr), bufferSize)) {
-                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile), bufferSize)) {
-                    final byte[] buf = new byte[bufferSize];
-                    int bytesRead = -1;
-                    while (0 < (bytesRead = in.read(buf))) {
-                        out.write(buf, 0, bytesRead);
+            if (reused.contains(fileStr)) {
+                m_pending.put(fileStr, CompletableFuture.completedFuture(0L));
+                m_done.add(fileStr);
+            } else if (volumeParts.containsKey(fileStr)) {
+                final VolumeFile file = new VolumeFile(volumeParts.get(fileStr));
+                file.whenComplete((_bytes, _e) -> m_done.add(fileStr));
+                m_volumeFiles.put(fileStr, file);
+                m_pending.put(fileStr, file);
+            } else {
+                m_pending.put(fileStr, m_pool.submit(() -> {
+                    try {
+                        return extract(m_pkg, fileStr);
+                    } finally {
+                        m_done.add(fileStr);
                     }
-                }
+                }));
             }
         }
-        m_logger.println_success("Extraction phase complete");
-        m_logger.println_verbose("Install directory is "+m_installDir.getAbsolutePath());
+        // ...and so are volumes, each as soon as it is available (unless it only holds files that are already in place)
+        for (final PackageVolume volume : m_config.getVolumes()) {
+            boolean isNeeded = false;
+            for (final PackageVolume.Part part : volume.getParts()) {
+                isNeeded |= m_volumeFiles.containsKey(part.getFile());
+            }
+            if (!isNeeded) {
+                continue;
+            }
+            m_pool.submit(() -> {
+                try {
+                    extract(volume);
+                } catch (final Exception e) {
+                    final IOException ioe = e instanceof IOException ? (IOException) e : new IOException(e);
+                    for (final PackageVolume.Part part : volume.getParts()) {
+                        if (m_volumeFiles.containsKey(part.getFile())) {
+                            m_volumeFiles.get(part.getFile()).completeExceptionally(ioe);
+                        }
+                    }
+                }
+            });
+        }
         return m_installDir;
     }
 
+    /**
+     * When resuming, finds the files that the installation being resumed already extracted, checking each one (in
+     * parallel) against the digest recorded in the manifest
+     *
+     * @return the files that need not be extracted again
+     */
+    private Set<String> findReusable(final List<String> _files) throws IOException {
+        final Map<String, Future<Boolean>> checks = new LinkedHashMap<String, Future<Boolean>>();
+        for (final String fileStr : _files) {
+            final String expected = m_config.getDigest(fileStr);
+            final File f = new File(m_installDir, fileStr);
+            if (m_journal.isComplete("extract " + fileStr, expected) && f.isFile()) {
+                checks.put(fileStr, m_pool.submit(() -> expected.equalsIgnoreCase(PackageConfiguration.toHex(digest(f)))));
+            }
+        }
+        final Set<String> ret = new HashSet<String>();
+        for (final Map.Entry<String, Future<Boolean>> check : checks.entrySet()) {
+            try {
+                if (check.getValue().get()) {
+                    m_logger.printfln("Reusing %s, extracted earlier (checksum verified)", check.getKey());
+                    ret.add(check.getKey());
+                }
+            } catch (final ExecutionException e) {
+                m_logger.printfln_verbose("Could not verify %s: %s", check.getKey(), e.getCause().getLocalizedMessage());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        return ret;
+    }
+
+    private static byte[] digest(final File _f) throws IOException {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        try (InputStream in = new FileInputStream(_f)) {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int bytesRead = -1;
+            while (0 < (bytesRead = in.read(buf))) {
+                digest.update(buf, 0, bytesRead);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Waits for a payload volume to be present in full (it may still be in transit when the install starts)
+     *
+     * @return the volume file
+     */
+    private File awaitVolume(final PackageVolume _volume) throws IOException, InterruptedException {
+        final File ret = new File(m_config.getPackageFile().getAbsoluteFile().getParentFile(), _volume.getName());
+        long lastLength = -1;
+        long lastChange = System.nanoTime();
+        while (ret.length() != _volume.getSize()) {
+            final long length = ret.length();
+            if (length > _volume.getSize()) {
+                throw new IOException("Volume " + _volume.getName() + " has the wrong size. The install package is corrupt.");
+            }
+            if (length != lastLength) {
+                if (-1 == lastLength) {
+                    m_logger.printfln("Waiting for volume %s...", _volume.getName());
+                }
+                lastLength = length;
+                lastChange = System.nanoTime();
+            } else if (System.nanoTime() - lastChange > VOLUME_WAIT_NANOS) {
+                throw new IOException("Volume " + _volume.getName() + " is missing or incomplete");
+            }
+            Thread.sleep(1000);
+        }
+        return ret;
+    }
+
+    /**
+     * Verifies a payload volume against the checksum recorded in the manifest, then extracts each slice it holds into
+     * place
+     */
+    private void extract(final PackageVolume _volume) throws IOException, InterruptedException {
+        final File f = awaitVolume(_volume);
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("volume", _volume.getName());
+        final long start = System.nanoTime();
+        long total = 0;
+        try {
+            if (!_volume.getDigest().equalsIgnoreCase(PackageConfiguration.toHex(digest(f)))) {
+                throw new IOException("Checksum mismatch for volume " + _volume.getName() + ". The install package is corrupt.");
+            }
+            m_logger.printfln("Extracting volume %s...", _volume.getName());
+            try (ZipFile volume = new ZipFile(f)) {
+                for (final PackageVolume.Part part : _volume.getParts()) {
+                    final VolumeFile file = m_volumeFiles.get(part.getFile());
+                    if (null == file) {
+                        continue; // already in place
+                    }
+                    final ZipEntry entry = volume.getEntry("APPINSTALL-DATA/" + part.getFile());
+                    if (null == entry) {
+                        throw new IOException("Volume " + _volume.getName() + " is missing " + part.getFile());
+                    }
+                    long pos = part.getOffset();
+                    try (InputStream in = volume.getInputStream(entry); FileChannel out = FileChannel.open(new File(m_installDir, part.getFile()).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        final byte[] buf = new byte[BUFFER_SIZE];
+                        int bytesRead = -1;
+                        while (0 < (bytesRead = in.read(buf))) {
+                            final ByteBuffer bb = ByteBuffer.wrap(buf, 0, bytesRead);
+                            while (bb.hasRemaining()) {
+                                pos += out.write(bb, pos);
+                            }
+                        }
+                    }
+                    if (pos - part.getOffset() != part.getLength()) {
+                        throw new IOException("Volume " + _volume.getName() + " holds a truncated copy of " + part.getFile());
+                    }
+                    total += part.getLength();
+                    if (file.partDone(part.getLength())) {
+                        // every slice is in place, so the file reassembled from them can be checked as a whole
+                        final File destFile = new File(m_installDir, part.getFile());
+                        final String expected = m_config.getDigest(part.getFile());
+                        if (null != expected && !expected.equalsIgnoreCase(PackageConfiguration.toHex(digest(destFile)))) {
+                            destFile.delete();
+                            throw new IOException("Checksum mismatch for " + part.getFile() + ". The install package is corrupt.");
+                        }
+                        m_journal.record("extract " + part.getFile(), expected);
+                        file.verified();
+                    }
+                }
+            }
+        } finally {
+            span.addBytes(total).close();
+        }
+        m_logger.printfln_verbose("Extracted volume %s (%s, checksum verified)", _volume.getName(), toMBps(total, System.nanoTime() - start));
+    }
+
+    /**
+     * Extracts a single file, verifying it against the digest recorded in the manifest
+     *
+     * @return the number of bytes extracted
+     */
+    private long extract(final ZipFile _pkg, final String _fileStr) throws IOException {
+        final ZipEntry entry = _pkg.getEntry("APPINSTALL-DATA/" + _fileStr);
+        if (null == entry) {
+            throw new IOException("Package is missing " + _fileStr);
+        }
+        final File destFile = new File(m_installDir, _fileStr);
+        m_logger.printfln("Extracting %s...", _fileStr);
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("extract", _fileStr);
+        final long start = System.nanoTime();
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        long total = 0;
+        final String expected = m_config.getDigest(_fileStr);
+        try {
+            try (InputStream in = _pkg.getInputStream(entry); FileChannel out = FileChannel.open(destFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final byte[] buf = new byte[BUFFER_SIZE];
+                int bytesRead = -1;
+                while (0 < (bytesRead = in.read(buf))) {
+                    digest.update(buf, 0, bytesRead);
+                    final ByteBuffer bb = ByteBuffer.wrap(buf, 0, bytesRead);
+                    while (bb.hasRemaining()) {
+                        out.write(bb);
+                    }
+                    total += bytesRead;
+                }
+            }
+            if (null != expected && !expected.equalsIgnoreCase(PackageConfiguration.toHex(digest.digest()))) {
+                destFile.delete();
+                throw new IOException("Checksum mismatch for " + _fileStr + ". The install package is corrupt.");
+            }
+        } finally {
+            span.addBytes(total).close();
+        }
+        m_journal.record("extract " + _fileStr, expected);
+        m_logger.printfln_verbose("Extracted %s (%s%s)", _fileStr, toMBps(total, System.nanoTime() - start), null == expected ? "" : ", checksum verified");
+        return total;
+    }
 }
@@ -0,0 +1,51 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Payload backed by a file on disk, transferred through a {@link FileChannel} rather than a per-entry copy buffer.
+ */
+public class FilePayload implements PackagePayload {
+
+    private final boolean m_isDeleteWhenDone;
+    private final File m_file;
+    private final String m_name;
+
+    /**
+     * @param _isDeleteWhenDone whether the file is a staged artifact that should be deleted as soon as it has been written to
+     *                          the package
+     */
+    public FilePayload(final String _name, final File _file, final boolean _isDeleteWhenDone) {
+        m_name = _name;
+        m_file = _file;
+        m_isDeleteWhenDone = _isDeleteWhenDone;
+    }
+
+    @Override
+    public String getName() {
+        return m_name;
+    }
+
+    @Override
+    public void writeTo(final OutputStream _out) throws IOException {
+        try (FileChannel in = FileChannel.open(m_file.toPath(), StandardOpenOption.READ)) {
+            // not closed, since that would close the package stream
+            final WritableByteChannel out = Channels.newChannel(_out);
+            final long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+        }
+        if (m_isDeleteWhenDone) {
+            Files.delete(m_file.toPath());
+        }
+    }
+}
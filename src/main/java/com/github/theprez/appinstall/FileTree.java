@@ -0,0 +1,425 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * The stream files that go into a package, with the attributes of each, read once while the tree was walked. Entries
+ * are sorted by path and held in parallel arrays (rather than an object apiece), so that hundreds of thousands of them
+ * stay cheap to keep and to stream through.
+ */
+public class FileTree {
+
+    /**
+     * Include and exclude globs. A glob with no '/' is matched against the name of each entry, any other against its
+     * absolute path.
+     */
+    public static class Filter {
+        private final List<PathMatcher> m_excludes = new LinkedList<PathMatcher>();
+        private final List<PathMatcher> m_includes = new LinkedList<PathMatcher>();
+
+        /** Excludes the entries a glob matches (and, for a directory, everything in it) */
+        public void addExclude(final String _glob) {
+            m_excludes.add(toMatcher(_glob));
+        }
+
+        /**
+         * Once an include is given, only the files (and the content of the directories) that an include matches are kept,
+         * along with the directories leading to them
+         */
+        public void addInclude(final String _glob) {
+            m_includes.add(toMatcher(_glob));
+        }
+    }
+
+    /**
+     * Walks file trees with a pool of workers, one directory listing per task, so that neither the depth of a tree nor
+     * its symbolic links can run away with it. Symbolic links below a root are kept as links, not followed. A directory
+     * that is reached a second time (by a loop of mounts, for instance) is skipped.
+     */
+    public static class Walker {
+        private final List<Path> m_bareRoots = new LinkedList<Path>();
+        private final Filter m_filter = new Filter();
+        private final List<Filter> m_filters = new ArrayList<Filter>();
+        private final AppLogger m_logger;
+        private final int m_parallelism;
+        private final List<Path> m_roots = new ArrayList<Path>();
+
+        public Walker(final AppLogger _logger, final int _parallelism) {
+            m_logger = _logger;
+            m_parallelism = Math.max(1, _parallelism);
+        }
+
+        /** Adds a directory on its own, without its content */
+        public void addBareDirectory(final File _dir) {
+            m_bareRoots.add(_dir.toPath());
+        }
+
+        /** Adds a file, or a directory and everything in it, filtered by {@link #getFilter()} */
+        public void addRoot(final File _f) {
+            addRoot(_f, m_filter);
+        }
+
+        /** Adds a file, or a directory and everything in it, filtered by a filter of its own */
+        public void addRoot(final File _f, final Filter _filter) {
+            m_roots.add(_f.toPath());
+            m_filters.add(_filter);
+        }
+
+        /** @return the filter of the roots that aren't given one of their own */
+        public Filter getFilter() {
+            return m_filter;
+        }
+
+        public boolean isEmpty() {
+            return m_roots.isEmpty() && m_bareRoots.isEmpty();
+        }
+
+        public FileTree walk() throws IOException, InterruptedException {
+            final Queue<Row> rows = new ConcurrentLinkedQueue<Row>();
+            final Set<String> needed = ConcurrentHashMap.newKeySet();
+            final Map<Object, Path> visited = new ConcurrentHashMap<Object, Path>();
+            final Map<Integer, String> users = new ConcurrentHashMap<Integer, String>();
+            final Map<Integer, String> groups = new ConcurrentHashMap<Integer, String>();
+            final AtomicInteger pending = new AtomicInteger();
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            final ExecutorService pool = Executors.newFixedThreadPool(m_parallelism);
+            final long start = System.nanoTime();
+            try (PerfRecorder.Span span = PerfRecorder.getSingleton().start("streamfiles", "walk")) {
+                final Object lock = new Object();
+                final class Visit implements Runnable {
+                    private final Path m_dir;
+                    private final Filter m_filter;
+                    private final boolean m_isIncluded;
+                    private final Path m_root;
+
+                    Visit(final Path _root, final Filter _filter, final Path _dir, final boolean _isIncluded) {
+                        m_root = _root;
+                        m_filter = _filter;
+                        m_dir = _dir;
+                        m_isIncluded = _isIncluded;
+                    }
+
+                    @Override
+                    public void run() {
+                        try (DirectoryStream<Path> children = Files.newDirectoryStream(m_dir)) {
+                            for (final Path child : children) {
+                                if (matches(m_filter.m_excludes, child)) {
+                                    m_logger.printfln_verbose("Excluding '%s'", child);
+                                    continue;
+                                }
+                                final boolean isIncluded = m_isIncluded || matches(m_filter.m_includes, child);
+                                final Row row = read(child, users, groups);
+                                if (null == row) {
+                                    m_logger.printfln_warn("Skipping '%s' (unsupported file type)", child);
+                                } else if (TarEntry.TYPE_DIRECTORY == row.m_type) {
+                                    if (isFirstVisit(child, row.m_fileKey, visited)) {
+                                        row.m_isKept = isIncluded;
+                                        rows.add(row);
+                                        submit(new Visit(m_root, m_filter, child, isIncluded));
+                                    }
+                                } else if (isIncluded) {
+                                    row.m_isKept = true;
+                                    rows.add(row);
+                                    Path parent = child.getParent();
+                                    while (!m_filter.m_includes.isEmpty() && null != parent && parent.startsWith(m_root) && needed.add(parent.toString())) {
+                                        parent = parent.getParent();
+                                    }
+                                }
+                            }
+                        } catch (final IOException e) {
+                            failure.compareAndSet(null, new IOException("Error listing directory '" + m_dir + "': " + e.getLocalizedMessage(), e));
+                        } finally {
+                            if (0 == pending.decrementAndGet()) {
+                                synchronized (lock) {
+                                    lock.notifyAll();
+                                }
+                            }
+                        }
+                    }
+
+                    void submit(final Visit _visit) {
+                        pending.incrementAndGet();
+                        pool.execute(_visit);
+                    }
+                }
+
+                for (final Path bare : m_bareRoots) {
+                    final Row row = read(bare, users, groups);
+                    if (null != row) {
+                        row.m_isKept = true;
+                        rows.add(row);
+                    }
+                }
+                for (int i = 0; i < m_roots.size(); ++i) {
+                    final Path root = m_roots.get(i);
+                    final Filter filter = m_filters.get(i);
+                    final Row row = read(root, users, groups);
+                    if (null == row) {
+                        m_logger.printfln_warn("Skipping '%s' (unsupported file type)", root);
+                        continue;
+                    }
+                    row.m_isKept = true;
+                    rows.add(row);
+                    if (TarEntry.TYPE_DIRECTORY == row.m_type && isFirstVisit(root, row.m_fileKey, visited)) {
+                        final Visit visit = new Visit(root, filter, root, filter.m_includes.isEmpty());
+                        visit.submit(visit);
+                    }
+                }
+                synchronized (lock) {
+                    while (0 < pending.get()) {
+                        lock.wait();
+                    }
+                }
+                if (null != failure.get()) {
+                    throw failure.get();
+                }
+                final FileTree ret = new FileTree(rows, needed, users, groups);
+                span.addBytes(ret.getContentSize());
+                m_logger.printfln_verbose("Found %d stream file entries in %.1fs", ret.size(), (System.nanoTime() - start) / 1e9);
+                return ret;
+            } finally {
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+
+        /** @return whether a directory hasn't been walked already, by this path or by another */
+        private boolean isFirstVisit(final Path _dir, final Object _fileKey, final Map<Object, Path> _visited) {
+            if (null == _fileKey) {
+                return true; // no way to tell on this platform
+            }
+            final Path previous = _visited.putIfAbsent(_fileKey, _dir);
+            if (null != previous && !previous.equals(_dir)) {
+                m_logger.printfln_warn("Skipping '%s' (the same directory as '%s')", _dir, previous);
+            }
+            return null == previous;
+        }
+    }
+
+    /** The attributes of one entry, while the tree is being walked */
+    private static class Row {
+        private long m_ctime;
+        private Object m_fileKey;
+        private int m_gid;
+        private boolean m_isKept;
+        private String m_linkName;
+        private int m_mode;
+        private long m_mtime;
+        private String m_path;
+        private long m_size;
+        private char m_type;
+        private int m_uid;
+    }
+
+    private static final LinkOption[] NOFOLLOW = { LinkOption.NOFOLLOW_LINKS };
+    /** How long a change takes to show in the ctime of a file, on the coarsest of file system clocks */
+    private static final long RECENT_CHANGE_MILLIS = 2000;
+
+    private static boolean matches(final List<PathMatcher> _matchers, final Path _path) {
+        for (final PathMatcher matcher : _matchers) {
+            if (matcher.matches(_path) || matcher.matches(_path.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the attributes of an entry, from a single stat where the platform allows, or {@code null} if it can't be archived */
+    private static Row read(final Path _path, final Map<Integer, String> _users, final Map<Integer, String> _groups) throws IOException {
+        final Row ret = new Row();
+        ret.m_path = _path.toString();
+        Map<String, Object> unix = null;
+        try {
+            unix = Files.readAttributes(_path, "unix:isDirectory,isRegularFile,isSymbolicLink,fileKey,size,lastModifiedTime,ctime,mode,uid,gid", NOFOLLOW);
+        } catch (final UnsupportedOperationException | IllegalArgumentException e) {
+            final TarEntry entry = TarEntry.fromFile(_path.toFile(), null);
+            if (null == entry) {
+                return null;
+            }
+            ret.m_type = entry.getType();
+            ret.m_size = entry.getSize();
+            ret.m_mtime = entry.getModificationTime();
+            ret.m_mode = entry.getMode();
+            ret.m_uid = entry.getUid();
+            ret.m_gid = entry.getGid();
+            ret.m_linkName = entry.isSymbolicLink() ? entry.getLinkName() : null;
+            putName(_users, ret.m_uid, entry.getUserName());
+            putName(_groups, ret.m_gid, entry.getGroupName());
+            return ret;
+        }
+        if ((Boolean) unix.get("isSymbolicLink")) {
+            ret.m_type = TarEntry.TYPE_SYMLINK;
+            ret.m_linkName = Files.readSymbolicLink(_path).toString();
+        } else if ((Boolean) unix.get("isDirectory")) {
+            ret.m_type = TarEntry.TYPE_DIRECTORY;
+        } else if ((Boolean) unix.get("isRegularFile")) {
+            ret.m_type = TarEntry.TYPE_FILE;
+            ret.m_size = (Long) unix.get("size");
+        } else {
+            return null;
+        }
+        ret.m_fileKey = unix.get("fileKey");
+        ret.m_mtime = ((FileTime) unix.get("lastModifiedTime")).toMillis() / 1000;
+        ret.m_ctime = ((FileTime) unix.get("ctime")).toMillis();
+        ret.m_mode = 07777 & (Integer) unix.get("mode");
+        ret.m_uid = (Integer) unix.get("uid");
+        ret.m_gid = (Integer) unix.get("gid");
+        // names are looked up once per id, not once per file
+        if (!_users.containsKey(ret.m_uid)) {
+            putName(_users, ret.m_uid, Files.getOwner(_path, NOFOLLOW).getName());
+        }
+        if (!_groups.containsKey(ret.m_gid)) {
+            putName(_groups, ret.m_gid, String.valueOf(Files.getAttribute(_path, "posix:group", NOFOLLOW)));
+        }
+        return ret;
+    }
+
+    private static void putName(final Map<Integer, String> _names, final int _id, final String _name) {
+        _names.putIfAbsent(_id, null == _name ? "" : _name);
+    }
+
+    private static PathMatcher toMatcher(final String _glob) {
+        return FileSystems.getDefault().getPathMatcher("glob:" + _glob);
+    }
+
+    private final long[] m_ctimes;
+    private final int[] m_gids;
+    private final String[] m_groupNames;
+    private final String[] m_linkNames;
+    private final int[] m_modes;
+    private final long[] m_mtimes;
+    private final String[] m_paths;
+    private final long[] m_sizes;
+    private final char[] m_types;
+    private final int[] m_uids;
+    private final String[] m_userNames;
+
+    /**
+     * @param _needed the directories that lead to a kept entry, which are kept even if not included themselves
+     * @param _users  user names, by id
+     * @param _groups group names, by id
+     */
+    private FileTree(final Queue<Row> _rows, final Set<String> _needed, final Map<Integer, String> _users, final Map<Integer, String> _groups) {
+        final List<Row> rows = new ArrayList<Row>(_rows.size());
+        for (final Row row : _rows) {
+            if (row.m_isKept || _needed.contains(row.m_path)) {
+                rows.add(row);
+            }
+        }
+        rows.sort(Comparator.comparing(_r -> _r.m_path));
+        // roots may overlap
+        int count = 0;
+        for (int i = 0; i < rows.size(); ++i) {
+            if (0 == i || !rows.get(i).m_path.equals(rows.get(count - 1).m_path)) {
+                rows.set(count++, rows.get(i));
+            }
+        }
+        m_paths = new String[count];
+        m_types = new char[count];
+        m_sizes = new long[count];
+        m_mtimes = new long[count];
+        m_ctimes = new long[count];
+        m_modes = new int[count];
+        m_uids = new int[count];
+        m_gids = new int[count];
+        m_linkNames = new String[count];
+        m_userNames = new String[count];
+        m_groupNames = new String[count];
+        for (int i = 0; i < count; ++i) {
+            final Row row = rows.get(i);
+            m_paths[i] = row.m_path;
+            m_types[i] = row.m_type;
+            m_sizes[i] = row.m_size;
+            m_mtimes[i] = row.m_mtime;
+            m_ctimes[i] = row.m_ctime;
+            m_modes[i] = row.m_mode;
+            m_uids[i] = row.m_uid;
+            m_gids[i] = row.m_gid;
+            m_linkNames[i] = row.m_linkName;
+            m_userNames[i] = _users.getOrDefault(row.m_uid, "");
+            m_groupNames[i] = _groups.getOrDefault(row.m_gid, "");
+        }
+    }
+
+    /**
+     * @return the attributes of an entry, as a line of the build cache key. The ctime of a file vouches for its content,
+     *         since every write moves it on and nothing can set it back, so the content is only digested into the line
+     *         where it can't: where the file system keeps no ctime, or where the ctime is so recent (as of {@code _now})
+     *         that another write within the same tick of a coarse clock would leave it as it is.
+     */
+    public String getCacheLine(final int _i, final long _now) throws IOException {
+        final String hashKey = TarEntry.toEntryName(m_paths[_i]) + (TarEntry.TYPE_DIRECTORY == m_types[_i] ? "/" : "");
+        // ctime also covers changes that leave the content (and mtime) alone: mode, owner, CCSID
+        final String ret = hashKey + " " + Integer.toOctalString(m_modes[_i]) + " " + m_uids[_i] + ":" + m_gids[_i] + " " + m_sizes[_i] + " " + m_mtimes[_i] + " " + m_ctimes[_i] + " "
+                + (null == m_linkNames[_i] ? "" : m_linkNames[_i]);
+        if (TarEntry.TYPE_FILE != m_types[_i] || (0 != m_ctimes[_i] && RECENT_CHANGE_MILLIS <= _now - m_ctimes[_i])) {
+            return ret;
+        }
+        return ret + " " + PackageConfiguration.toHex(TarEntry.digestContent(getFile(_i)));
+    }
+
+    /** @return the size of the content of every file */
+    public long getContentSize() {
+        long ret = 0;
+        for (final long size : m_sizes) {
+            ret += size;
+        }
+        return ret;
+    }
+
+    public File getFile(final int _i) {
+        return new File(m_paths[_i]);
+    }
+
+    public boolean isEmpty() {
+        return 0 == m_paths.length;
+    }
+
+    public int size() {
+        return m_paths.length;
+    }
+
+    /** @return the archive entry for an entry, with its CCSID looked up (for files only) if a source is given */
+    public TarEntry toEntry(final int _i, final TarEntry.CcsidSource _ccsids) throws IOException {
+        final TarEntry ret = new TarEntry(TarEntry.toEntryName(m_paths[_i]));
+        ret.setType(m_types[_i]);
+        ret.setSize(m_sizes[_i]);
+        ret.setModificationTime(m_mtimes[_i]);
+        ret.setMode(m_modes[_i]);
+        ret.setUid(m_uids[_i]);
+        ret.setGid(m_gids[_i]);
+        ret.setUserName(m_userNames[_i]);
+        ret.setGroupName(m_groupNames[_i]);
+        if (null != m_linkNames[_i]) {
+            ret.setLinkName(m_linkNames[_i]);
+        } else if (null != _ccsids) {
+            ret.setCcsid(_ccsids.getCcsid(getFile(_i)));
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.github.theprez.appinstall;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection to the host that CL commands are run on. Each session has its own server job (and therefore its own QTEMP),
+ * so independent work can run concurrently on separate sessions.
+ */
+public interface HostSession extends Closeable {
+
+    /** Opens new sessions, for instance to fill a {@link HostSessionPool} */
+    interface Factory {
+        HostSession open() throws IOException;
+    }
+
+    /**
+     * Looks up the CCSIDs of a directory and of everything directly in it, with a single query for the lot
+     *
+     * @return each path (the directory's own included) mapped to its CCSID
+     */
+    Map<String, Integer> describeCcsids(String _dir) throws IOException;
+
+    /**
+     * Looks up a set of libraries, with a single query for the whole set
+     *
+     * @return those of the libraries that exist, each mapped to the number of locks other jobs hold on it
+     */
+    Map<String, Integer> describeLibraries(Collection<String> _libraries) throws IOException;
+
+    /**
+     * Describes every object in a library, one line per object (name, type, attribute, last change and size), such that the
+     * description changes whenever an object is changed, added or removed.
+     */
+    List<String> describeObjects(String _library) throws IOException;
+
+    /** @return the free space in the system ASP, in bytes, or -1 if it can't be told */
+    long getFreeAspBytes() throws IOException;
+
+    /**
+     * Opens a save file for reading its content as a byte stream. The save file must not be in QTEMP, since the stream may
+     * be served by a different job than the one CL commands run in.
+     */
+    InputStream openSaveFile(String _library, String _name) throws IOException;
+
+    /**
+     * @return the messages (other than informational ones) logged in the session's job since they were last read, oldest
+     *         first, each as {@code <message id>: <text>}
+     */
+    List<String> readJobLog() throws IOException;
+
+    /**
+     * Runs a CL command, logging any messages it produces (including those of the job log, which are then read).
+     *
+     * @param _isOkToFail whether a failure of the command should be tolerated rather than raised as an exception
+     */
+    void runCommand(String _cmd, boolean _isOkToFail) throws IOException;
+
+    /** Tags stream files (or directories) with a CCSID, as many at a time as the host allows */
+    void setCcsid(int _ccsid, List<String> _paths) throws IOException;
+
+    /**
+     * Opens an existing save file for replacing its content with a byte stream, which must be what another save file held.
+     * As with {@link #openSaveFile(String, String)}, the save file must not be in QTEMP.
+     */
+    OutputStream writeSaveFile(String _library, String _name) throws IOException;
+}
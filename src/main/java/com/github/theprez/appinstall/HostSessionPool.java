@@ -0,0 +1,63 @@
+package com.github.theprez.appinstall;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A bounded pool of {@link HostSession}s, opened lazily as they are first needed.
+ */
+public class HostSessionPool implements Closeable {
+
+    private final List<HostSession> m_all = new LinkedList<HostSession>();
+    private final HostSession.Factory m_factory;
+    private final BlockingQueue<HostSession> m_idle = new LinkedBlockingQueue<HostSession>();
+    private final int m_size;
+
+    public HostSessionPool(final HostSession.Factory _factory, final int _size) {
+        m_factory = _factory;
+        m_size = Math.max(1, _size);
+    }
+
+    /** Takes a session from the pool, waiting for one to be released if they are all in use */
+    public HostSession borrow() throws IOException, InterruptedException {
+        HostSession ret = m_idle.poll();
+        if (null != ret) {
+            return ret;
+        }
+        synchronized (m_all) {
+            if (m_all.size() < m_size) {
+                ret = m_factory.open();
+                m_all.add(ret);
+                return ret;
+            }
+        }
+        return m_idle.take();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (m_all) {
+            IOException failure = null;
+            for (final HostSession session : m_all) {
+                try {
+                    session.close();
+                } catch (final IOException e) {
+                    failure = e;
+                }
+            }
+            m_all.clear();
+            m_idle.clear();
+            if (null != failure) {
+                throw failure;
+            }
+        }
+    }
+
+    public void release(final HostSession _session) {
+        m_idle.add(_session);
+    }
+}
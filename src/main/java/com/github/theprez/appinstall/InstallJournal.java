@@ -0,0 +1,124 @@
+package com.github.theprez.appinstall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * An append-only record ({@value #FILE_NAME}, in the install directory) of each step of an installation that is
+ * complete, along with the digest of its input, so that an installation that fails part way can be resumed
+ * ({@code --resume}) without repeating the steps that succeeded. Each record is forced to disk before it is counted on.
+ * A record that was torn by a crash (the last line, without its line end) is ignored.
+ */
+public class InstallJournal implements Closeable {
+    static final String FILE_NAME = "journal.log";
+    private static final String COMPLETE = "complete";
+    private static final String HEADER = "appinstall-journal ";
+
+    private final Map<String, String> m_completed = new HashMap<String, String>();
+    private final File m_file;
+    private final AppLogger m_logger;
+    private final FileOutputStream m_out;
+
+    /**
+     * @param _dir       the install directory
+     * @param _packageId the id of the package being installed. The steps of any other package are not resumed.
+     * @param _resume    whether to resume from the steps recorded by an earlier installation, or to start over
+     */
+    public InstallJournal(final AppLogger _logger, final File _dir, final String _packageId, final boolean _resume) throws IOException {
+        m_logger = _logger;
+        m_file = new File(_dir, FILE_NAME);
+        final String header = HEADER + _packageId;
+        boolean isResumable = false;
+        long validLength = 0;
+        if (m_file.isFile()) {
+            final String[] lines = readRecords();
+            isResumable = 0 < lines.length && header.equals(lines[0]);
+            for (final String line : lines) {
+                validLength += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+            if (isResumable && _resume) {
+                for (int i = 1; i < lines.length; ++i) {
+                    final int space = lines[i].indexOf(' ');
+                    if (0 < space) {
+                        m_completed.put(lines[i].substring(space + 1), lines[i].substring(0, space));
+                    }
+                }
+            } else if (isResumable && 1 < lines.length && !lines[lines.length - 1].endsWith(" " + COMPLETE)) {
+                m_logger.println_warn("Starting over from an earlier installation of this package that did not complete (use --resume to continue it instead)");
+            }
+        }
+        if (_resume) {
+            if (isResumable) {
+                m_logger.printfln("Resuming installation (%d steps already complete)", m_completed.size());
+            } else {
+                m_logger.println_warn("No earlier installation of this package to resume. Starting over.");
+            }
+        }
+        m_out = new FileOutputStream(m_file, _resume && isResumable);
+        if (_resume && isResumable) {
+            m_out.getChannel().truncate(validLength); // drop any torn record
+        } else {
+            append(header);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_out.close();
+    }
+
+    /** Records that the installation as a whole is complete */
+    public void finish(final String _packageId) throws IOException {
+        record(COMPLETE, null == _packageId ? "-" : _packageId);
+    }
+
+    /**
+     * @param _step   the step, e.g. "install <file>"
+     * @param _digest the digest of the input of the step, or {@code null} if there is none (in which case the step can't
+     *                be verified, so it's never considered complete)
+     * @return whether the step was completed by the installation being resumed, with the very same input
+     */
+    public synchronized boolean isComplete(final String _step, final String _digest) {
+        return null != _digest && _digest.equalsIgnoreCase(m_completed.get(_step));
+    }
+
+    /** Records a step as complete (and forces the record to disk), unless its input can't be verified */
+    public synchronized void record(final String _step, final String _digest) throws IOException {
+        if (null == _digest) {
+            return;
+        }
+        append(_digest + " " + _step);
+        m_completed.put(_step, _digest);
+    }
+
+    private void append(final String _line) throws IOException {
+        m_out.write((_line + "\n").getBytes(StandardCharsets.UTF_8));
+        m_out.flush();
+        m_out.getFD().sync();
+    }
+
+    /** @return the complete lines of the journal */
+    private String[] readRecords() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(m_file)) {
+            final byte[] buf = new byte[1024 * 8];
+            int bytesRead = -1;
+            while (0 < (bytesRead = in.read(buf))) {
+                bytes.write(buf, 0, bytesRead);
+            }
+        }
+        final String content = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        final int end = content.lastIndexOf('\n');
+        return 0 > end ? new String[0] : content.substring(0, end).split("\n");
+    }
+}
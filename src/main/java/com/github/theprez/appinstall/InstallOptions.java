@@ -6,4 +6,10 @@ public class InstallOptions {
 	String rstlib;
 	String rstasp;
 	String rstaspdev;
+	int jobs = Runtime.getRuntime().availableProcessors();
+	boolean listFiles;
+	String root = "/";
+	boolean resume;
+	String planFile;
+	boolean force;
 }
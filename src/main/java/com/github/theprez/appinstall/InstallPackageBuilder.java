@@ -1,117 +1,94 @@
 package com.github.theprez.appinstall;
 
 import java.beans.PropertyVetoException;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
-
-import org.yaml.snakeyaml.Yaml;
+import java.util.zip.ZipFile;
 
 import com.github.theprez.jcmdutils.AppLogger;
-import com.github.theprez.jcmdutils.ProcessLauncher;
-import com.github.theprez.jcmdutils.StringUtils;
 import com.ibm.as400.access.AS400;
-import com.ibm.as400.access.AS400Message;
-import com.ibm.as400.access.AS400SecurityException;
-import com.ibm.as400.access.CommandCall;
-import com.ibm.as400.access.ErrorCompletingRequestException;
-import com.ibm.as400.access.Job;
-import com.ibm.as400.access.JobLog;
 import com.ibm.as400.access.ObjectDoesNotExistException;
-import com.ibm.as400.access.QueuedMessage;
 
 public class InstallPackageBuilder {
-    static synchronized void runCommand(final AppLogger _logger, final AS400 _as400, final String _cmd, final boolean _isOkToFail) throws IOException, ObjectDoesNotExistException, PropertyVetoException { // TODO: where should this
-        // live?
-        try {
-            _logger.printfln_verbose("Running CL command '%s'", _cmd);
-            final CommandCall cmd = new CommandCall(_as400);
-            cmd.setMessageOption(AS400Message.MESSAGE_OPTION_ALL);
-            cmd.getServerJob().setLoggingCLPrograms(Job.LOG_CL_PROGRAMS_YES);
-            JobLog jobLog = cmd.getServerJob().getJobLog();
-            jobLog.load();
-            int jobLogPos = jobLog.getLength();
-            final boolean isSuccess = cmd.run(_cmd);
-
-            final AS400Message[] msgs = cmd.getMessageList();
-            for (final AS400Message msg : msgs) {
-                if (StringUtils.isEmpty(msg.getID())) {
-                    _logger.printfln("    %s", msg.getText());
-                }
-            }
-            try {
-                jobLog = cmd.getServerJob().getJobLog();
-                jobLog.load();
-                final QueuedMessage[] jobLogMsgs = jobLog.getMessages(jobLogPos, jobLog.getLength());
-                for (final QueuedMessage jobLogMsg : jobLogMsgs) {
-                    if(AS400Message.INFORMATIONAL == jobLogMsg.getType()) {
-                        continue;
-                    }
-                    _logger.printfln("    %s: %s", jobLogMsg.getID(), jobLogMsg.getText());
-                }
-            } catch (final Exception e) {
-                _logger.exception(e);
-            }
-            if (!isSuccess && !_isOkToFail) {
-                throw new IOException("Error running command");
-            }
-        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException e) {
-            throw new IOException("Error running command", e);
-        }
+    static final int DEFAULT_PARALLELISM = 4;
+    static final String STREAM_FILES_TAR = "files.tar";
+
+    private static String toRatio(final long _size, final long _compressedSize) {
+        return String.format("%.1f MB -> %.1f MB (%.0f%%)", _size / 1048576.0, _compressedSize / 1048576.0, 0 == _size ? 100.0 : 100.0 * _compressedSize / _size);
     }
 
-    private static void xfer(final InputStream _in, final OutputStream _out, final int _bufferSize) throws IOException {
-        final byte[] buf = new byte[_bufferSize];
-        int bytesRead = -1;
-        while (0 < (bytesRead = _in.read(buf))) {
-            _out.write(buf, 0, bytesRead);
-        }
+    static boolean isIBMi() {
+        return "OS/400".equalsIgnoreCase(System.getProperty("os.name"));
     }
 
-    private final File m_dir;
     private File m_preInstall;
     private File m_postInstall;
-    private final Set<File> m_files = new TreeSet<File>();
+    private final Map<String, Set<String>> m_after = new LinkedHashMap<String, Set<String>>();
+    private final Map<String, Codec> m_payloadCodecs = new TreeMap<String, Codec>();
+    private FileTree m_files = null;
+    private final FileTree.Walker m_walker;
     private final Set<String> m_libraries = new TreeSet<String>();
+    private final Map<String, ObjectSelector> m_objects = new LinkedHashMap<String, ObjectSelector>();
 
+    private final AtomicInteger m_completedSaves = new AtomicInteger();
     private final AppLogger m_logger;
 
+    private BuildCache m_cache;
+    private Codec m_codec = Codec.DEFAULT;
+    private long m_volumeSize = 0;
+    private Map<String, String> m_baseHashes = null;
+    private String m_baseId = null;
+    private long m_deletedCount = 0;
+    private final Map<String, ManifestIndex.Entry> m_index = new TreeMap<String, ManifestIndex.Entry>();
+    private final String m_packageId = UUID.randomUUID().toString();
+
     private File m_outputFile = null;
 	private String m_lodrunLib;
+    private int m_parallelism = DEFAULT_PARALLELISM;
+    private HostSession.Factory m_sessionFactory;
+    private final String m_workLib;
 
     public InstallPackageBuilder(final AppLogger _logger) {
         m_logger = _logger;
-        final String installId = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
-        final File homeDir = new File(System.getProperty("user.home", "~"));
-        final File dotDir = new File(homeDir, ".appinstall");
-        final File allBuildsDir = new File(dotDir, "builds");
-        m_dir = new File(allBuildsDir, installId);
+        final String buildId = UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        m_workLib = ("AI" + buildId).toUpperCase();
+        m_sessionFactory = () -> new Jt400HostSession(m_logger, new AS400());
+        m_cache = new BuildCache(m_logger, BuildCache.DEFAULT_MAX_MB * 1024 * 1024);
+        m_walker = new FileTree.Walker(m_logger, Runtime.getRuntime().availableProcessors());
     }
 
     public void addPreInstall(final String _f) throws IOException {
@@ -144,41 +121,120 @@ public class InstallPackageBuilder {
     }
 
     public void addBareDirectory(final String _dir) throws IOException {
-        final File dir = verifyDir(_dir);
-        m_files.add(dir);
+        m_walker.addBareDirectory(verifyDir(_dir));
+    }
+
+    /** Excludes the stream files a glob matches, from under every file added (see {@link FileTree.Walker#addExclude(String)}) */
+    public void addExclude(final String _glob) {
+        m_walker.getFilter().addExclude(_glob);
     }
 
+    /** Adds a file, or a directory and everything in it. The tree is walked when the package is built. */
     public void addFile(final File _f) throws IOException {
-        final File f = verifyExists(_f);
-        if (f.isDirectory()) {
-            m_files.add(f);
-            for (final File child : f.listFiles()) {
-                addFile(child);
-            }
-        } else {
-            m_files.add(f);
-        }
+        m_walker.addRoot(verifyExists(_f));
     }
 
     public void addFile(final String _f) throws IOException {
         addFile(new File(_f));
     }
 
-    public void addFromSpecFile(final AppLogger _logger, final String _specFile) throws UnsupportedEncodingException, FileNotFoundException, IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(_specFile), "UTF-8"))) {
-            throw new IOException("not implemented");
+    /**
+     * Adds the components of a {@link PackageSpec}, along with their codecs and the order between them. Stream file
+     * components all go into the one stream files archive (so they must agree on a codec), each with its own filter.
+     */
+    public void addFromSpecFile(final AppLogger _logger, final String _specFile) throws IOException {
+        final PackageSpec spec = PackageSpec.read(new File(_specFile));
+        if (null != spec.getCodec()) {
+            m_codec = spec.getCodec();
+        }
+        if (null != spec.getLodrunLib()) {
+            setLodrunLib(_logger, spec.getLodrunLib());
+        }
+        if (null != spec.getPreInstall()) {
+            addPreInstall(spec.getPreInstall());
+        }
+        if (null != spec.getPostInstall()) {
+            addPostInstall(spec.getPostInstall());
+        }
+        final Map<String, List<String>> payloadsByComponent = new TreeMap<String, List<String>>();
+        for (final PackageSpec.Component component : spec.getComponents()) {
+            final List<String> payloads = new LinkedList<String>();
+            if (null != component.getObjects()) {
+                addObjects(component.getName(), component.getObjects());
+                payloads.add(toObjectsKey(component.getName()));
+            } else if (null != component.getLibrary()) {
+                addLibrary(component.getLibrary());
+                payloads.add(component.getLibrary() + ".lib");
+            }
+            if (!component.getFiles().isEmpty() || !component.getDirs().isEmpty()) {
+                final FileTree.Filter filter = new FileTree.Filter();
+                component.getIncludes().forEach(filter::addInclude);
+                component.getExcludes().forEach(filter::addExclude);
+                for (final String f : component.getFiles()) {
+                    m_walker.addRoot(verifyExists(f), filter);
+                }
+                for (final String dir : component.getDirs()) {
+                    addBareDirectory(dir);
+                }
+                payloads.add(STREAM_FILES_TAR);
+            }
+            for (final String payload : payloads) {
+                if (null != component.getCodec()) {
+                    final Codec codec = m_payloadCodecs.putIfAbsent(payload, component.getCodec());
+                    if (null != codec && !codec.toString().equals(component.getCodec().toString())) {
+                        throw new IOException("Component '" + component.getName() + "' asks for codec " + component.getCodec() + " for " + payload + ", which another component has asked " + codec + " for");
+                    }
+                }
+                for (final String prereqComponent : component.getAfter()) {
+                    for (final String prereq : payloadsByComponent.get(prereqComponent)) {
+                        if (!prereq.equals(payload)) {
+                            m_after.computeIfAbsent(payload, _p -> new TreeSet<String>()).add(prereq);
+                        }
+                    }
+                }
+            }
+            payloadsByComponent.put(component.getName(), payloads);
         }
+        // components that share a payload can make the payloads go round in a circle where the components don't
+        PackageSpec.sort(m_after);
+        m_logger.printfln_verbose("Read %d components from %s", spec.getComponents().size(), _specFile);
+    }
+
+    /** Keeps only the stream files a glob matches, from under every file added (see {@link FileTree.Walker#addInclude(String)}) */
+    public void addInclude(final String _glob) {
+        m_walker.getFilter().addInclude(_glob);
     }
 
+    /** Adds a library, or (given as {@code <library>/<objects>}, see {@link ObjectSelector#parse(String)}) some of its objects */
     public void addLibrary(final String _lib) throws IOException {
+        if (0 <= _lib.indexOf('/')) {
+            addObjects(_lib.trim(), ObjectSelector.parse(_lib));
+            return;
+        }
         final String trimmedUpper = _lib.trim().toUpperCase();
-        verifyExists("/qsys.lib/" + trimmedUpper + ".lib");
-        if (trimmedUpper.startsWith("Q")) {
-            throw new IOException("Libraries starting with 'Q' are not allowed");
+        verifyLibrary(trimmedUpper);
+        if (m_objects.values().stream().anyMatch(_o -> _o.getLibrary().equals(trimmedUpper))) {
+            throw new IOException("Library " + trimmedUpper + " can't be packaged both whole and by object");
         }
         m_libraries.add(trimmedUpper);
     }
 
+    /**
+     * Adds objects of a library, which are saved (in groups, see {@link ObjectSelector#select(List)}) and restored on
+     * their own, leaving the rest of the library alone
+     *
+     * @param _key what the selection is known by (the spec component, or the selector as given)
+     */
+    private void addObjects(final String _key, final ObjectSelector _objects) throws IOException {
+        verifyLibrary(_objects.getLibrary());
+        if (m_libraries.contains(_objects.getLibrary())) {
+            throw new IOException("Library " + _objects.getLibrary() + " can't be packaged both whole and by object");
+        }
+        if (null != m_objects.put(_key, _objects)) {
+            throw new IOException("Objects " + _key + " are selected more than once");
+        }
+    }
+
     public void setLodrunLib(final AppLogger _logger, final String _lib) {
     	m_lodrunLib = _lib;
     }
@@ -187,74 +243,74 @@ public class InstallPackageBuilder {
         if (null == m_outputFile) {
             throw new IOException("Output file not specified");
         } // TODO: check if exists
-        m_logger.printfln_verbose("Building package in temp dir '%s'", m_dir.getAbsolutePath());
-        m_dir.mkdirs();
-        if (!m_dir.isDirectory()) {
-            throw new IOException("Could not create temporary installation directory: " + m_dir);
-        }
 
-        File preInstall = null;
-        File postInstall = null;
         final List<String> manifestFiles = new LinkedList<String>();
         final List<String> manifestCommands = new LinkedList<String>();
+        final Map<String, List<String>> manifestAfter = new LinkedHashMap<String, List<String>>();
+        final List<PackagePayload> payloads = new LinkedList<PackagePayload>();
+        final List<SaveFilePayload> saves = new LinkedList<SaveFilePayload>();
+
+        final ExecutorService savePool = Executors.newFixedThreadPool(m_parallelism);
+        final ExecutorService readerPool = Executors.newCachedThreadPool();
+        final HostSessionPool sessions = new HostSessionPool(m_sessionFactory, m_parallelism);
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("build", m_outputFile.getName());
+        try {
+            // package up stream files (a delta package may need to carry deletions only). The trees are walked in the
+            // background, alongside the library saves.
+            final Future<FileTree> files = readerPool.submit(m_walker::walk);
+            if (!m_walker.isEmpty() || (null != m_baseHashes && !m_baseHashes.isEmpty())) {
+                manifestFiles.add(STREAM_FILES_TAR);
+                payloads.add(new PackagePayload() {
+                    @Override
+                    public String getName() {
+                        return STREAM_FILES_TAR;
+                    }
 
-        // package up pre-install script
-        if (m_preInstall != null) {
-            m_logger.println("Saving pre-install script...");
-            preInstall = new File(m_dir, ".preinstall");
-            try {
-                Files.copy(m_preInstall.toPath(), preInstall.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                throw new IOException("Error packaging pre-install script", e);
+                    @Override
+                    public void writeTo(final OutputStream _out) throws IOException {
+                        try {
+                            m_files = files.get();
+                        } catch (final ExecutionException e) {
+                            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        } catch (final InterruptedException e) {
+                            throw new IOException("Interrupted while listing stream files", e);
+                        }
+                        writeStreamFiles(sessions, _out);
+                    }
+                });
+                // Assume lodrun installs files
+                if (m_lodrunLib==null) {
+                    final String untarCmd = "cd / && /QOpenSys/usr/bin/pax -r -v -p e -f $PWD/" + STREAM_FILES_TAR;
+                    manifestCommands.add(untarCmd);
+                }
             }
-        }
 
-        // package up post-install script
-        if (m_postInstall != null) {
-            m_logger.println("Saving post-install script...");
-            postInstall = new File(m_dir, ".postinstall");
-            try {
-                Files.copy(m_postInstall.toPath(), postInstall.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                throw new IOException("Error packaging post-install script", e);
+            // every library packaged (whole or by object) must exist, which takes a single query for the lot
+            final Set<String> libraries = new TreeSet<String>(m_libraries);
+            for (final ObjectSelector objects : m_objects.values()) {
+                libraries.add(objects.getLibrary());
             }
-        }
-
-        // package up stream files
-        if (!m_files.isEmpty()) {
-            m_logger.println("Saving stream files...");
-            final File tarFile = new File(m_dir, "files.tar");
-            boolean isCreating = true;
-            for (final File file : m_files) {
-                m_logger.printfln_verbose("Packaging file '%s'...", file.getAbsolutePath());
-                final Process p = Runtime.getRuntime().exec(new String[] { "/QOpenSys/usr/bin/tar", "-D", isCreating ? "-cvf" : "-uvf", tarFile.getName(), file.getAbsolutePath() }, new String[] { "QIBM_PASE_DESCRIPTOR_STDIO=B" }, m_dir);
-                ProcessLauncher.pipeStreamsToCurrentProcess("TAR", p, m_logger);
-                if(0 !=p.waitFor()) {
-                    throw new IOException("Error packaging stream files");
+            if (!libraries.isEmpty()) {
+                final HostSession session = sessions.borrow();
+                try {
+                    libraries.removeAll(session.describeLibraries(libraries).keySet());
+                } finally {
+                    sessions.release(session);
+                }
+                if (!libraries.isEmpty()) {
+                    throw new IOException(1 == libraries.size() ? "Library " + libraries.iterator().next() + " does not exist" : "Libraries " + String.join(", ", libraries) + " do not exist");
                 }
-                isCreating = false;
-            }
-            manifestFiles.add(tarFile.getName());
-            // Assume lodrun installs files
-            if (m_lodrunLib==null) {
-            	final String untarCmd = "/QOpenSys/usr/bin/tar xvf files.tar -C /.";
-	            manifestCommands.add(untarCmd);
             }
-        }
 
-        final AS400 as400 = new AS400();
-        try {
             // package up libraries
             for (final String library : m_libraries) {
-                m_logger.printfln("Saving library %s...", library);
-                runCommand(as400, "CRTSAVF QTEMP/" + library, false);
-                runCommand(as400, "SAVLIB LIB(" + library + ") DEV(*SAVF) SAVF(QTEMP/" + library + ")", false);
-                final File stmf = new File(m_dir, library + ".lib");
-                runCommand(as400, "CPYTOSTMF FROMMBR('/qsys.lib/qtemp.lib/" + library + ".file') TOSTMF('" + stmf.getAbsolutePath() + "') STMFOPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED)", false);
-                manifestFiles.add(stmf.getName());
-                
+                final String stmfName = library + ".lib";
+                manifestFiles.add(stmfName);
+                saves.add(new SaveFilePayload(stmfName, library, "library " + library, library, null,
+                        "SAVLIB LIB(" + library + ") DEV(*SAVF) SAVF(" + m_workLib + "/" + library + ")"));
+
                 manifestCommands.add("CRTSAVF QTEMP/" + library);
-                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + stmf.getName() + "') TOMBR('/qsys.lib/qtemp.lib/" + library + ".file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
+                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + stmfName + "') TOMBR('/qsys.lib/qtemp.lib/" + library + ".file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
                 // Assume lodrun installs libraries
                 if (m_lodrunLib==null) {
 	                // TODO: conditionally DLTLIB first
@@ -262,88 +318,653 @@ public class InstallPackageBuilder {
 	                manifestCommands.add("RSTLIB SAVLIB(" + library + ") DEV(*SAVF) SAVF(QTEMP/" + library + ") MBROPT(*ALL) ALWOBJDIF(*ALL) RSTLIB(" + library + ")");
                 }
             }
-            
+
+            // package up objects, selected from their libraries, in groups of a type apiece (numbered across the package)
+            final Map<String, List<String>> objectPayloads = new TreeMap<String, List<String>>();
+            int objectGroups = 0;
+            if (!m_objects.isEmpty()) {
+                final HostSession session = sessions.borrow();
+                try {
+                    for (final Map.Entry<String, ObjectSelector> objects : m_objects.entrySet()) {
+                        final String library = objects.getValue().getLibrary();
+                        final List<String> groupPayloads = new LinkedList<String>();
+                        objectPayloads.put(toObjectsKey(objects.getKey()), groupPayloads);
+                        final List<ObjectSelector.Group> groups = objects.getValue().select(session.describeObjects(library));
+                        if (groups.isEmpty()) {
+                            m_logger.printfln_warn("No objects match %s", objects.getKey());
+                        }
+                        for (final ObjectSelector.Group group : groups) {
+                            final String saveFile = "AIOBJ" + ++objectGroups;
+                            final String stmfName = library + "." + objectGroups + ".obj";
+                            groupPayloads.add(stmfName);
+                            if (m_payloadCodecs.containsKey(toObjectsKey(objects.getKey()))) {
+                                m_payloadCodecs.put(stmfName, m_payloadCodecs.get(toObjectsKey(objects.getKey())));
+                            }
+                            manifestFiles.add(stmfName);
+                            saves.add(new SaveFilePayload(stmfName, saveFile, String.format("%d %s objects of library %s", group.getNames().size(), group.getType(), library), library, group.getDescriptions(),
+                                    "SAVOBJ OBJ(" + String.join(" ", group.getNames()) + ") LIB(" + library + ") DEV(*SAVF) SAVF(" + m_workLib + "/" + saveFile + ") OBJTYPE(" + group.getType() + ")"));
+
+                            manifestCommands.add("CRTSAVF QTEMP/" + saveFile);
+                            manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + stmfName + "') TOMBR('/qsys.lib/qtemp.lib/" + saveFile + ".file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
+                            if (m_lodrunLib == null) {
+                                manifestCommands.add("RSTOBJ OBJ(*ALL) SAVLIB(" + library + ") DEV(*SAVF) SAVF(QTEMP/" + saveFile + ") MBROPT(*ALL) ALWOBJDIF(*ALL) RSTLIB(" + library + ")");
+                            }
+                        }
+                    }
+                } finally {
+                    sessions.release(session);
+                }
+            }
+
             // Create LODRUN QINSTAPP save file
             if (m_lodrunLib != null) {
-                m_logger.printfln("Creating QINSTAPP save file...");
-                runCommand(as400, "CRTSAVF QTEMP/QINSTAPP", false);
+                final List<String> saveCmds = new LinkedList<String>();
             	// SAVOBJ/RSTOBJ QINSTAPP to QTEMP if needed (instead of CRTDUPOBJ to preserve attributes)
                 if (!"QTEMP".equalsIgnoreCase(m_lodrunLib)) {
-                    runCommand(as400, "SAVOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(QTEMP/QINSTAPP) LIB(" + m_lodrunLib + ')', false);
-                    runCommand(as400, "RSTOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(QTEMP/QINSTAPP) RSTLIB(QTEMP) ALWOBJDIF(*ALL) MBROPT(*ALL) SAVLIB(" + m_lodrunLib + ')', false);
-                    runCommand(as400, "CLRSAVF QTEMP/QINSTAPP", false);
+                    saveCmds.add("SAVOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(" + m_workLib + "/QINSTAPP) LIB(" + m_lodrunLib + ')');
+                    saveCmds.add("RSTOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(" + m_workLib + "/QINSTAPP) RSTLIB(QTEMP) ALWOBJDIF(*ALL) MBROPT(*ALL) SAVLIB(" + m_lodrunLib + ')');
+                    saveCmds.add("CLRSAVF " + m_workLib + "/QINSTAPP");
                 }
-                runCommand(as400, "SAVOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(QTEMP/QINSTAPP) LIB(QTEMP)", false);;
-                final File stmf = new File(m_dir, "qinstapp.pgm");
-                runCommand(as400, "CPYTOSTMF FROMMBR('/qsys.lib/qtemp.lib/qinstapp.file') TOSTMF('" + stmf.getAbsolutePath() + "') CVTDTA(*NONE) ENDLINFMT(*FIXED)", false);
-                manifestFiles.add(stmf.getName());
-                
+                saveCmds.add("SAVOBJ OBJ(QINSTAPP) OBJTYPE(*PGM) DEV(*SAVF) SAVF(" + m_workLib + "/QINSTAPP) LIB(QTEMP)");
+                final String stmfName = "qinstapp.pgm";
+                // the install program may well expect everything else to be in place already
+                manifestAfter.put(stmfName, new LinkedList<String>(manifestFiles));
+                manifestFiles.add(stmfName);
+                saves.add(new SaveFilePayload(stmfName, "QINSTAPP", "QINSTAPP save file", null, null, saveCmds.toArray(new String[saveCmds.size()])));
+
                 manifestCommands.add("CRTSAVF QTEMP/QINSTAPP");
-                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + stmf.getName() + "') TOMBR('/qsys.lib/qtemp.lib/qinstapp.file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
+                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + stmfName + "') TOMBR('/qsys.lib/qtemp.lib/qinstapp.file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
                 manifestCommands.add("LODRUN DEV(*SAVF) SAVF(QTEMP/QINSTAPP)");
             }
+
+            // pre/post install scripts are streamed straight from where they are
+            if (m_preInstall != null) {
+                payloads.add(new FilePayload(".preinstall", m_preInstall, false));
+            }
+            if (m_postInstall != null) {
+                payloads.add(new FilePayload(".postinstall", m_postInstall, false));
+            }
+
+            // save files are produced ahead, concurrently, each on its own host job, into a work library that the
+            // package assembly then streams them out of. However the build ends, the work library goes with it (should
+            // the JVM exit first, on its way out).
+            final Thread workLibraryDeleter = saves.isEmpty() ? null : new Thread(this::deleteWorkLibraryOnExit);
+            boolean isSuccess = false;
+            try {
+                if (null != workLibraryDeleter) {
+                    Runtime.getRuntime().addShutdownHook(workLibraryDeleter);
+                    createWorkLibrary(sessions);
+                }
+                payloads.addAll(saves);
+                // components ordered by a spec are packaged (and so extracted) ahead of those that come after them
+                for (final Map.Entry<String, Set<String>> after : m_after.entrySet()) {
+                    final List<String> prereqs = new LinkedList<String>();
+                    for (final String prereq : after.getValue()) {
+                        prereqs.addAll(objectPayloads.getOrDefault(prereq, Collections.singletonList(prereq)));
+                    }
+                    for (final String file : objectPayloads.getOrDefault(after.getKey(), Collections.singletonList(after.getKey()))) {
+                        if (manifestFiles.contains(file)) {
+                            manifestAfter.computeIfAbsent(file, _f -> new LinkedList<String>()).addAll(prereqs);
+                        }
+                    }
+                }
+                final Map<String, List<String>> order = new LinkedHashMap<String, List<String>>();
+                for (final PackagePayload payload : payloads) {
+                    order.put(payload.getName(), manifestAfter.getOrDefault(payload.getName(), new LinkedList<String>()));
+                }
+                final List<String> sorted = PackageSpec.sort(order);
+                payloads.sort(Comparator.comparingInt(_p -> sorted.indexOf(_p.getName())));
+                manifestFiles.sort(Comparator.comparingInt(sorted::indexOf));
+                // saves start in the order they are written, each once the save a job's worth of places ahead has been
+                // written out. No more are staged than there are jobs, and none can hold up a save written before it.
+                final List<SaveFilePayload> savesInOrder = new LinkedList<SaveFilePayload>();
+                for (final PackagePayload payload : payloads) {
+                    if (payload instanceof SaveFilePayload) {
+                        final SaveFilePayload save = (SaveFilePayload) payload;
+                        save.start(savePool, readerPool, sessions, m_parallelism > savesInOrder.size() ? null : savesInOrder.get(savesInOrder.size() - m_parallelism).m_written, saves.size());
+                        savesInOrder.add(save);
+                    }
+                }
+
+                writePackage(manifestFiles, manifestCommands, manifestAfter, payloads);
+                m_cache.report();
+                isSuccess = true;
+            } finally {
+                if (!isSuccess) {
+                    m_outputFile.delete();
+                    savePool.shutdownNow();
+                    savePool.awaitTermination(1, TimeUnit.MINUTES);
+                }
+                if (null != workLibraryDeleter) {
+                    deleteWorkLibrary(sessions);
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(workLibraryDeleter);
+                    } catch (final IllegalStateException e) {
+                        // the JVM is already exiting
+                    }
+                }
+            }
+        } finally {
+            span.close();
+            savePool.shutdownNow();
+            readerPool.shutdownNow();
+            sessions.close();
+        }
+    }
+
+    /** @return what the payloads of a selection of objects are known by, until the selection is made */
+    private static String toObjectsKey(final String _key) {
+        return "objects " + _key;
+    }
+
+    private void createWorkLibrary(final HostSessionPool _sessions) throws IOException, InterruptedException {
+        m_logger.printfln_verbose("Creating work library %s", m_workLib);
+        final HostSession session = _sessions.borrow();
+        try {
+            session.runCommand("CRTLIB LIB(" + m_workLib + ") TYPE(*TEST) TEXT('AppInstall package build work library')", false);
+        } finally {
+            _sessions.release(session);
+        }
+    }
+
+    private void deleteWorkLibrary(final HostSessionPool _sessions) throws IOException, InterruptedException {
+        final HostSession session = _sessions.borrow();
+        try {
+            session.runCommand("DLTLIB LIB(" + m_workLib + ")", true);
         } finally {
-            as400.disconnectAllServices();
+            _sessions.release(session);
+        }
+    }
+
+    /** Deletes the work library on a host job of its own, for a JVM that exits before the build has */
+    private void deleteWorkLibraryOnExit() {
+        try (HostSession session = m_sessionFactory.open()) {
+            session.runCommand("DLTLIB LIB(" + m_workLib + ")", true);
+        } catch (final IOException e) {
+            // the work library is left behind
         }
+    }
+
+    /** @return the library that save files are produced in, while a build runs */
+    String getWorkLibrary() {
+        return m_workLib;
+    }
 
+    /**
+     * @param _manifestAfter for each packaged file that can't be installed independently, the files that must be installed
+     *                       before it
+     */
+    private void writePackage(final List<String> _manifestFiles, final List<String> _manifestCommands, final Map<String, List<String>> _manifestAfter, final List<PackagePayload> _payloads) throws IOException, URISyntaxException, InterruptedException {
         // find our own jar file....
         final URL self = m_logger.getClass().getProtectionDomain().getCodeSource().getLocation();
+        final File runtimeTemplate = getRuntimeTemplate(new File(self.toURI()));
 
         // now, to create the actual package....
         m_logger.println("Building final package...");
-        final Manifest mf = new Manifest();
-        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        mf.getMainAttributes().put(Attributes.Name.MAIN_CLASS, AppInstall.class.getCanonicalName());
-        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(m_outputFile), mf)) {
+        try (ZipWriter out = new ZipWriter(m_outputFile); ZipIndex runtime = new ZipIndex(runtimeTemplate); VolumeWriter volumes = 0 < m_volumeSize ? new VolumeWriter(m_logger, m_outputFile, m_volumeSize, m_codec) : null) {
             // copy ourselves
-            final JarInputStream me = new JarInputStream(new FileInputStream(new File(self.toURI())));
-            ZipEntry myEntry = null;
-            while (null != (myEntry = me.getNextEntry())) {
-                if (myEntry.getName().startsWith("APPINSTALL-INF")) {
-                    continue;
-                }
-                final JarEntry newEntry = new JarEntry(myEntry.getName());
-                out.putNextEntry(newEntry);
-                xfer(me, out, 1024 * 512);
-                out.closeEntry();
+            final PerfRecorder.Span copy = PerfRecorder.getSingleton().start("package", "runtime");
+            try {
+                out.copyAll(runtime);
+            } finally {
+                copy.close();
             }
             m_logger.println_verbose("done copying ourselves");
-            // write our manifest data
-            final ZipEntry manifestEntry = new ZipEntry("APPINSTALL-INF/manifest.yml");
-            final Map<String, Object> yamlData = new LinkedHashMap<String, Object>();
-            yamlData.put("files", manifestFiles);
-            yamlData.put("commands", manifestCommands);
-            final OutputStreamWriter yamlWriter = new OutputStreamWriter(out);
-            out.putNextEntry(manifestEntry);
-            new Yaml().dump(yamlData, yamlWriter);
-            yamlWriter.flush();
+            // each component writes directly into its own entry (or, for a split package, into the payload volumes)
+            final Map<String, String> digests = new LinkedHashMap<String, String>();
+            long size = 0;
+            long compressedSize = 0;
+            for (final PackagePayload payload : _payloads) {
+                final PerfRecorder.Span span = PerfRecorder.getSingleton().start("package", payload.getName());
+                final Codec codec = m_payloadCodecs.getOrDefault(payload.getName(), m_codec);
+                final MessageDigest digest = PackageConfiguration.newDigest();
+                final long codecNanos = null == volumes ? out.getCodecNanos() : volumes.getCodecNanos();
+                final long entrySize;
+                final long entryCompressedSize;
+                if (null == volumes) {
+                    out.setCodec(codec);
+                    out.putNextEntry("APPINSTALL-DATA/" + payload.getName());
+                    payload.writeTo(new DigestOutputStream(out, digest));
+                    out.closeEntry();
+                    entrySize = out.getLastEntry().getSize();
+                    entryCompressedSize = out.getLastEntry().getCompressedSize();
+                } else {
+                    final long volumesSize = volumes.getSize();
+                    final long volumesCompressedSize = volumes.getCompressedSize();
+                    volumes.putNextEntry(payload.getName(), codec);
+                    payload.writeTo(new DigestOutputStream(volumes, digest));
+                    volumes.closeEntry();
+                    entrySize = volumes.getSize() - volumesSize;
+                    entryCompressedSize = volumes.getCompressedSize() - volumesCompressedSize;
+                }
+                digests.put(payload.getName(), PackageConfiguration.toHex(digest.digest()));
+                span.addBytes(entrySize).close();
+                size += entrySize;
+                compressedSize += entryCompressedSize;
+                m_logger.printfln_verbose("Packaged %s with %s: %s in %.1fs", payload.getName(), codec, toRatio(entrySize, entryCompressedSize), ((null == volumes ? out.getCodecNanos() : volumes.getCodecNanos()) - codecNanos) / 1e9);
+            }
+            m_logger.printfln("Codec %s: %s, %.1fs compressing", m_codec, toRatio(size, compressedSize), (null == volumes ? out.getCodecNanos() : volumes.getCodecNanos()) / 1e9);
+            out.setCodec(Codec.DEFAULT);
+
+            // write our manifest data (last, so it can carry the digest of everything above)
+            final PackageManifest manifest = new PackageManifest();
+            manifest.setFiles(_manifestFiles);
+            manifest.setCommands(_manifestCommands);
+            manifest.setAfter(_manifestAfter);
+            manifest.getDigests().putAll(digests);
+            manifest.setId(m_packageId);
+            if (null != volumes) {
+                manifest.getVolumes().addAll(volumes.finish());
+                m_logger.printfln("Wrote %d payload volume(s) alongside the package", manifest.getVolumes().size());
+            }
+            if (null != m_baseId) {
+                manifest.setDelta(m_baseId, m_deletedCount);
+            }
+
+            // per-file data goes into the index, which the installer only reads as it needs to
+            out.putNextEntry(ManifestIndex.ENTRY_NAME);
+            final ManifestIndex.Writer index = new ManifestIndex.Writer(out);
+            for (final ManifestIndex.Entry entry : m_index.values()) {
+                index.add(entry);
+            }
+            manifest.setIndex(index.getEntryCount(), index.finish());
+            out.closeEntry();
+
+            out.putNextEntry(PackageManifest.ENTRY_NAME);
+            manifest.write(new OutputStreamWriter(out, StandardCharsets.UTF_8));
             out.closeEntry();
             m_logger.println_verbose("done adding our manifest");
+        }
+        m_logger.println_success("Successfully created install package: " + m_outputFile.getAbsolutePath());
+    }
 
-            // add pre/post install scripts
-            if(preInstall != null) {
-                manifestFiles.add(preInstall.getName());
+    /**
+     * The installer runtime (our own classes and dependencies, plus the jar manifest) is the same for every package built
+     * by this version, so it is assembled once, from raw copies of our own compressed entries, and cached. The cache key
+     * includes the size and timestamp of our jar since development builds all share one version string.
+     */
+    private File getRuntimeTemplate(final File _self) throws IOException {
+        final File homeDir = new File(System.getProperty("user.home", "~"));
+        final File cacheDir = new File(new File(new File(homeDir, ".appinstall"), "cache"), "runtime");
+        cacheDir.mkdirs();
+        if (!cacheDir.isDirectory()) {
+            throw new IOException("Could not create cache directory: " + cacheDir);
+        }
+        final String key = String.format("%s-%x-%x", Version.version.replaceAll("[^A-Za-z0-9._-]+", "_"), _self.length(), _self.lastModified());
+        final File template = new File(cacheDir, key + ".jar");
+        if (template.isFile()) {
+            m_logger.printfln_verbose("Reusing cached installer runtime '%s'", template.getAbsolutePath());
+            return template;
+        }
+        m_logger.printfln_verbose("Caching installer runtime as '%s'", template.getAbsolutePath());
+        final File tmp = File.createTempFile(key, ".tmp", cacheDir);
+        try {
+            final Manifest mf = new Manifest();
+            mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            mf.getMainAttributes().put(Attributes.Name.MAIN_CLASS, AppInstall.class.getCanonicalName());
+            try (ZipWriter out = new ZipWriter(tmp); ZipIndex me = new ZipIndex(_self)) {
+                out.putNextEntry(JarFile.MANIFEST_NAME);
+                mf.write(out);
+                out.closeEntry();
+                for (final ZipIndex.Record myEntry : me.getRecords()) {
+                    if (myEntry.getName().startsWith("APPINSTALL-") || JarFile.MANIFEST_NAME.equalsIgnoreCase(myEntry.getName())) {
+                        continue;
+                    }
+                    out.copyRawEntry(me, myEntry);
+                }
+            }
+            Files.move(tmp.toPath(), template.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        return template;
+    }
+
+    /**
+     * @return the build cache key of the stream files archive, from the attributes of every file, and the content only of
+     *         those whose attributes can't vouch for it (see {@link FileTree#getCacheLine(int, long)})
+     */
+    private String getStreamFilesCacheKey() throws IOException {
+        final List<String> lines = new LinkedList<String>();
+        lines.add(null == m_baseId ? "" : m_baseId);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < m_files.size(); ++i) {
+            lines.add(m_files.getCacheLine(i, now));
+        }
+        return BuildCache.toKey("files", lines);
+    }
+
+    /** Writes the stream files archive, from the build cache if none of the files have changed since it was cached */
+    private void writeStreamFiles(final HostSessionPool _sessions, final OutputStream _out) throws IOException {
+        final String key = m_cache.isEnabled() ? getStreamFilesCacheKey() : null;
+        final File cached = null == key ? null : m_cache.lookup(key);
+        if (null != cached) {
+            m_logger.println("Reusing cached stream files...");
+            try (ManifestIndex.Reader index = new ManifestIndex.Reader(new FileInputStream(new File(cached, "index.bin")), null)) {
+                ManifestIndex.Entry entry = null;
+                while (null != (entry = index.next())) {
+                    m_index.put(entry.getPath(), entry);
+                    if (entry.isDeleted()) {
+                        ++m_deletedCount;
+                    }
+                }
+            }
+            new FilePayload(STREAM_FILES_TAR, new File(cached, "data"), false).writeTo(_out);
+            return;
+        }
+        final File staged = null == key ? null : m_cache.stage(key);
+        boolean isSuccess = false;
+        try {
+            if (null == staged) {
+                tarStreamFiles(_sessions, _out);
+            } else {
+                try (OutputStream copy = new BufferedOutputStream(new FileOutputStream(new File(staged, "data")), 1024 * 64); OutputStream indexOut = new FileOutputStream(new File(staged, "index.bin"))) {
+                    tarStreamFiles(_sessions, BuildCache.tee(_out, copy));
+                    final ManifestIndex.Writer index = new ManifestIndex.Writer(indexOut);
+                    for (final ManifestIndex.Entry entry : m_index.values()) {
+                        index.add(entry);
+                    }
+                    index.finish();
+                }
+                m_cache.commit(key, staged);
             }
-            if(postInstall != null) {
-                manifestFiles.add(postInstall.getName());
+            isSuccess = true;
+        } finally {
+            if (!isSuccess && null != staged) {
+                m_cache.abort(staged);
             }
+        }
+    }
 
-            // add each file
-            for (final String l : manifestFiles) {
-                final ZipEntry fileEntry = new ZipEntry("APPINSTALL-DATA/" + l);
-                out.putNextEntry(fileEntry);
-                final File sourceFile = new File(m_dir, l);
-                try (FileInputStream fis = new FileInputStream(sourceFile)) {
-                    xfer(fis, out, 1024 * 1024);
+    private void tarStreamFiles(final HostSessionPool _sessions, final OutputStream _out) throws IOException {
+        m_logger.println("Saving stream files...");
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("streamfiles", "tar");
+        final TarEntry.CcsidSource ccsids = isIBMi() ? new DirectoryCcsids(_sessions) : null;
+        final TarWriter tar = new TarWriter(_out);
+        int unchanged = 0;
+        for (int i = 0; i < m_files.size(); ++i) {
+            final File file = m_files.getFile(i);
+            final TarEntry entry = m_files.toEntry(i, ccsids);
+            if (null == m_baseHashes) {
+                m_logger.printfln_verbose("Packaging file '%s'...", file.getAbsolutePath());
+                final MessageDigest digest = entry.isFile() ? PackageConfiguration.newDigest() : null;
+                final long offset = tar.getPosition();
+                tar.putEntry(entry, file, digest);
+                m_index.put(entry.getHashKey(), new ManifestIndex.Entry(entry, offset, entry.getFingerprint(null == digest ? null : digest.digest())));
+                continue;
+            }
+            // a delta only carries what differs from the base, which takes hashing the content before deciding
+            final String fingerprint = entry.getFingerprint(entry.isFile() ? TarEntry.digestContent(file) : null);
+            if (fingerprint.equals(m_baseHashes.get(entry.getHashKey()))) {
+                m_index.put(entry.getHashKey(), new ManifestIndex.Entry(entry, -1, fingerprint));
+                ++unchanged;
+                continue;
+            }
+            m_logger.printfln_verbose("Packaging changed file '%s'...", file.getAbsolutePath());
+            m_index.put(entry.getHashKey(), new ManifestIndex.Entry(entry, tar.getPosition(), fingerprint));
+            tar.putEntry(entry, file, null);
+        }
+        tar.finish();
+        span.addBytes(tar.getPosition()).close();
+        m_logger.printfln_verbose("Saved %d stream file entries", tar.getEntryCount());
+        if (null != m_baseHashes) {
+            for (final String path : m_baseHashes.keySet()) {
+                if (!m_index.containsKey(path)) {
+                    m_index.put(path, ManifestIndex.deleted(path));
+                    ++m_deletedCount;
                 }
-                out.closeEntry();
             }
-            m_logger.println_success("Successfully created install package: " + m_outputFile.getAbsolutePath());
+            m_logger.printfln("Delta against package %s: %d stream files changed, %d unchanged, %d deleted", m_baseId, tar.getEntryCount(), unchanged, m_deletedCount);
         }
     }
 
-    private void runCommand(final AS400 _as400, final String _cmd, final boolean _isOkToFail) throws IOException, ObjectDoesNotExistException, PropertyVetoException {
-        runCommand(m_logger, _as400, _cmd, _isOkToFail);
+    /**
+     * Looks up the CCSIDs of stream files on the host a directory at a time, where looking up each file would take a round
+     * trip apiece. Files are packaged a directory at a time, so only the directories looked up last are kept.
+     */
+    static class DirectoryCcsids implements TarEntry.CcsidSource {
+        private static final int MAX_DIRS = 16;
+
+        private final Map<String, Map<String, Integer>> m_dirs = new LinkedHashMap<String, Map<String, Integer>>(MAX_DIRS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Map<String, Integer>> _eldest) {
+                return MAX_DIRS < size();
+            }
+        };
+        private final HostSessionPool m_sessions;
+
+        DirectoryCcsids(final HostSessionPool _sessions) {
+            m_sessions = _sessions;
+        }
+
+        @Override
+        public int getCcsid(final File _f) throws IOException {
+            final String path = _f.getAbsolutePath();
+            final String dir = null == _f.getAbsoluteFile().getParent() ? path : _f.getAbsoluteFile().getParent();
+            Map<String, Integer> ccsids = m_dirs.get(dir);
+            if (null == ccsids) {
+                try {
+                    final HostSession session = m_sessions.borrow();
+                    try {
+                        ccsids = session.describeCcsids(dir);
+                    } finally {
+                        m_sessions.release(session);
+                    }
+                } catch (final InterruptedException e) {
+                    throw new IOException("Interrupted while looking up the CCSIDs in '" + dir + "'", e);
+                }
+                m_dirs.put(dir, ccsids);
+            }
+            final Integer ret = ccsids.get(path);
+            if (null == ret) {
+                throw new IOException("Could not find the CCSID of '" + path + "'");
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Saves objects into a save file in the work library and streams it into the package. The save runs in the
+     * background, on a host session of its own, as soon as a worker is available and its turn has come. The save file is
+     * read straight from the host when its entry is written, through a bounded {@link StreamPipe}, and deleted right after.
+     * A library whose objects haven't changed since it was last saved is taken from the build cache instead.
+     */
+    private class SaveFilePayload implements PackagePayload {
+        private String m_cacheKey = null;
+        private File m_cached = null;
+        private final String m_description;
+        private final String m_library;
+        private final String m_name;
+        private final List<String> m_objects;
+        private ExecutorService m_readers = null;
+        private final String[] m_saveCommands;
+        private final String m_saveFile;
+        private HostSessionPool m_sessions = null;
+        private Future<?> m_saved = null;
+        private final CountDownLatch m_written = new CountDownLatch(1);
+
+        /**
+         * @param _library the library being saved, to look the save up in the build cache by, or {@code null} if the save
+         *                 is not to be cached
+         * @param _objects the descriptions of the objects being saved, or {@code null} if the whole library is
+         */
+        SaveFilePayload(final String _name, final String _saveFile, final String _description, final String _library, final List<String> _objects, final String... _saveCommands) {
+            m_name = _name;
+            m_library = _library;
+            m_objects = _objects;
+            m_saveFile = _saveFile;
+            m_description = _description;
+            m_saveCommands = _saveCommands;
+        }
+
+        @Override
+        public String getName() {
+            return m_name;
+        }
+
+        /** @param _turn counted down once the save file this one waits for has been written, or {@code null} to start now */
+        void start(final ExecutorService _pool, final ExecutorService _readers, final HostSessionPool _sessions, final CountDownLatch _turn, final int _total) {
+            m_readers = _readers;
+            m_sessions = _sessions;
+            m_saved = _pool.submit(() -> {
+                if (null != _turn) {
+                    _turn.await();
+                }
+                save(_total);
+                return null;
+            });
+        }
+
+        private void save(final int _total) throws IOException, InterruptedException {
+            final long start = System.currentTimeMillis();
+            final HostSession session = m_sessions.borrow();
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("save", m_name);
+            try {
+                if (null != m_library && m_cache.isEnabled()) {
+                    final List<String> lines = new LinkedList<String>(null == m_objects ? session.describeObjects(m_library) : m_objects);
+                    lines.add(0, m_library);
+                    m_cacheKey = BuildCache.toKey(null == m_objects ? "savlib" : "savobj", lines);
+                    final File cached = m_cache.lookup(m_cacheKey);
+                    if (null != cached) {
+                        m_cached = new File(cached, "data");
+                        m_logger.printfln("Reusing cached save of %s (%d of %d)", m_description, m_completedSaves.incrementAndGet(), _total);
+                        return;
+                    }
+                }
+                m_logger.printfln("Saving %s...", m_description);
+                session.runCommand("CRTSAVF " + m_workLib + "/" + m_saveFile, false);
+                for (final String cmd : m_saveCommands) {
+                    session.runCommand(cmd, false);
+                }
+            } finally {
+                span.close();
+                m_sessions.release(session);
+            }
+            m_logger.printfln("Saved %s (%d of %d, %.1fs)", m_description, m_completedSaves.incrementAndGet(), _total, (System.currentTimeMillis() - start) / 1000.0);
+        }
+
+        @Override
+        public void writeTo(final OutputStream _out) throws IOException {
+            try {
+                m_saved.get();
+            } catch (final ExecutionException e) {
+                throw new IOException("Error saving " + m_description, e.getCause());
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted while saving " + m_description, e);
+            }
+            if (null != m_cached) {
+                m_written.countDown();
+                new FilePayload(m_name, m_cached, false).writeTo(_out);
+                return;
+            }
+            final File staged = null == m_cacheKey ? null : m_cache.stage(m_cacheKey);
+            boolean isSuccess = false;
+            try {
+                final HostSession session = m_sessions.borrow();
+                try (OutputStream copy = null == staged ? null : new BufferedOutputStream(new FileOutputStream(new File(staged, "data")), 1024 * 64)) {
+                    try (PerfRecorder.Span span = PerfRecorder.getSingleton().start("copy", m_name)) {
+                        span.addBytes(StreamPipe.copy(session.openSaveFile(m_workLib, m_saveFile), null == copy ? _out : BuildCache.tee(_out, copy), m_readers));
+                    }
+                    session.runCommand("DLTF FILE(" + m_workLib + "/" + m_saveFile + ")", true);
+                } finally {
+                    m_sessions.release(session);
+                }
+                if (null != staged) {
+                    m_cache.commit(m_cacheKey, staged);
+                }
+                isSuccess = true;
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted while reading " + m_description, e);
+            } finally {
+                m_written.countDown();
+                if (!isSuccess && null != staged) {
+                    m_cache.abort(staged);
+                }
+            }
+        }
+    }
+
+    /** Sets how package payloads are compressed (see {@link Codec#parse(String)}) */
+    public void setCodec(final String _spec) throws IOException {
+        m_codec = Codec.parse(_spec);
+    }
+
+    /**
+     * Splits the package into a bootstrap jar (the installer and the manifest) plus payload volumes of about the given
+     * size, in MB, that can be transferred, verified and extracted independently
+     */
+    public void setVolumeSize(final String _mb) throws IOException {
+        try {
+            m_volumeSize = Long.parseLong(_mb.trim()) * 1024 * 1024;
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid volume size: " + _mb);
+        }
+        if (0 >= m_volumeSize) {
+            throw new IOException("Invalid volume size: " + _mb);
+        }
+    }
+
+    /** Sets the size cap of the build cache, in megabytes (0 disables the cache) */
+    public void setCacheSize(final String _mb) throws IOException {
+        try {
+            m_cache = new BuildCache(m_logger, Math.max(0, Long.parseLong(_mb.trim())) * 1024 * 1024);
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid cache size: " + _mb);
+        }
+    }
+
+    void setHostSessionFactory(final HostSession.Factory _factory) {
+        m_sessionFactory = _factory;
+    }
+
+    /**
+     * Makes this a delta package against a previously built one: only stream files whose content hash differs from the
+     * base are packaged, and files that are no longer part of the application are deleted on install. Libraries are
+     * always packaged in full.
+     */
+    public void setBase(final String _jar) throws IOException {
+        final File jar = new File(_jar);
+        try (ZipFile zip = new ZipFile(jar)) {
+            final ZipEntry manifestEntry = zip.getEntry(PackageManifest.ENTRY_NAME);
+            if (null == manifestEntry) {
+                throw new IOException("Not an install package: " + jar.getAbsolutePath());
+            }
+            final PackageManifest manifest;
+            try (InputStream in = zip.getInputStream(manifestEntry)) {
+                manifest = PackageManifest.read(in);
+            }
+            final ZipEntry indexEntry = zip.getEntry(ManifestIndex.ENTRY_NAME);
+            if (null != indexEntry) {
+                // files the base deleted aren't part of it
+                m_baseHashes = new TreeMap<String, String>();
+                try (ManifestIndex.Reader index = new ManifestIndex.Reader(zip.getInputStream(indexEntry), manifest.getIndexDigest())) {
+                    ManifestIndex.Entry entry = null;
+                    while (null != (entry = index.next())) {
+                        if (!entry.isDeleted()) {
+                            m_baseHashes.put(entry.getPath(), entry.getFingerprint());
+                        }
+                    }
+                }
+            }
+            m_baseId = manifest.getId();
+        }
+        if (null == m_baseHashes || null == m_baseId) {
+            throw new IOException("Package " + jar.getAbsolutePath() + " has no content hashes, so it can't be used as a base");
+        }
+    }
+
+    /** Sets the maximum number of libraries saved concurrently, each on its own host job */
+    public void setParallelism(final String _n) throws IOException {
+        try {
+            m_parallelism = Integer.parseInt(_n.trim());
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid number of parallel jobs: " + _n);
+        }
+        if (1 > m_parallelism) {
+            throw new IOException("Invalid number of parallel jobs: " + _n);
+        }
     }
 
     public void setOutputFile(final String _f) throws IOException {
@@ -353,6 +974,13 @@ public class InstallPackageBuilder {
         m_outputFile = new File(_f);
     }
 
+    /** Checks a library name. Whether the library exists is only checked with the host, when the package is built. */
+    private void verifyLibrary(final String _library) throws IOException {
+        if (_library.startsWith("Q")) {
+            throw new IOException("Libraries starting with 'Q' are not allowed");
+        }
+    }
+
     private File verifyDir(final String _path) throws IOException {
         final File f = new File(_path);
         if (!f.isDirectory()) {
@@ -0,0 +1,378 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yaml.snakeyaml.Yaml;
+
+import com.github.theprez.jcmdutils.StringUtils;
+import com.github.theprez.jcmdutils.StringUtils.TerminalColor;
+
+/**
+ * The pre-flight analysis of an installation, worked out before anything is changed, so that an installation that can't
+ * succeed fails up front rather than part way: the disk space it needs (against what's free), stream files that are in
+ * the way, libraries that are locked, and roughly how long it will take. Target paths are checked in parallel batches,
+ * as they're added, and libraries with a single host query for the whole set.
+ */
+public class InstallPlan {
+    /** Rough throughputs, in MB/s, that the duration estimate is worked out from */
+    private static final double EXTRACT_MBPS = 100;
+    private static final double RESTORE_MBPS = 40;
+    private static final double WRITE_MBPS = 100;
+    /** Rough cost, in seconds, of creating each stream file, over and above writing its content */
+    private static final double FILE_OVERHEAD_SECONDS = 0.0005;
+    private static final int MAX_CONFLICTS_LISTED = 20;
+    private static final int STAT_BATCH_SIZE = 1024;
+
+    private static class Library {
+        private final String m_file;
+        private boolean m_isObjects = false;
+        private final boolean m_isReplaced;
+        private final String m_name;
+        private final long m_size;
+
+        Library(final String _name, final String _file, final long _size, final boolean _isReplaced) {
+            m_name = _name;
+            m_file = _file;
+            m_size = _size;
+            m_isReplaced = _isReplaced;
+        }
+    }
+
+    /** A stream file to be installed, waiting to be checked against what's on disk */
+    private static class Target {
+        private final char m_type;
+        private final Path m_path;
+        private final long m_size;
+
+        Target(final Path _path, final char _type, final long _size) {
+            m_path = _path;
+            m_type = _type;
+            m_size = _size;
+        }
+    }
+
+    private static String toMB(final long _bytes) {
+        return String.format("%,.1f MB", _bytes / 1048576.0);
+    }
+
+    private final List<String> m_conflicts = Collections.synchronizedList(new LinkedList<String>());
+    private final AtomicLong m_conflictCount = new AtomicLong();
+    private long m_estimatedSeconds = 0;
+    private final Map<String, long[]> m_fileSystems = new TreeMap<String, long[]>();
+    private volatile long m_freeAspBytes = -1;
+    private CompletableFuture<Map<String, Integer>> m_hostLibraries = CompletableFuture.completedFuture(Collections.<String, Integer> emptyMap());
+    private boolean m_isHostQueried = false;
+    private final File m_installDir;
+    private final int m_jobs;
+    private final List<Library> m_libraries = new ArrayList<Library>();
+    private final AtomicLong m_overwrittenBytes = new AtomicLong();
+    private final AtomicLong m_overwrittenCount = new AtomicLong();
+    private final String m_packageId;
+    private long m_payloadBytes = 0;
+    private final Map<File, Long> m_payloads = new LinkedHashMap<File, Long>();
+    private final List<String> m_problems = new LinkedList<String>();
+    private final Path m_root;
+    private final ExecutorService m_stat;
+    private final List<Future<?>> m_statBatches = new LinkedList<Future<?>>();
+    private long m_streamFileBytes = 0;
+    private long m_streamFileCount = 0;
+    private List<Target> m_targets = new ArrayList<Target>();
+
+    /**
+     * @param _installDir where the package is extracted to
+     * @param _root       the root directory stream files are installed under
+     * @param _jobs       the number of concurrent installs, and of concurrent checks
+     */
+    public InstallPlan(final String _packageId, final File _installDir, final String _root, final int _jobs) {
+        m_packageId = _packageId;
+        m_installDir = _installDir;
+        m_root = Paths.get(_root).toAbsolutePath().normalize();
+        m_jobs = Math.max(1, _jobs);
+        m_stat = Executors.newFixedThreadPool(m_jobs);
+    }
+
+    /** Adds a library to be restored from its save file (of the given size) */
+    public void addLibrary(final String _library, final String _file, final long _size, final boolean _isReplaced) {
+        m_libraries.add(new Library(_library.toUpperCase(), _file, _size, _isReplaced));
+    }
+
+    /** Adds objects to be restored (from a save file of the given size) into a library, which must exist */
+    public void addObjects(final String _library, final String _file, final long _size) {
+        final Library library = new Library(_library.toUpperCase(), _file, _size, false);
+        library.m_isObjects = true;
+        m_libraries.add(library);
+    }
+
+    /** Adds a packaged file, of the given size, to be extracted into the install directory */
+    public void addPayload(final String _file, final long _size) {
+        m_payloadBytes += Math.max(0, _size);
+        m_payloads.put(new File(m_installDir, _file), Math.max(0, _size));
+    }
+
+    /** Adds a stream file to be installed. What is there now is checked in the background. */
+    public void addStreamFile(final ManifestIndex.Entry _entry) throws IOException {
+        final Path path = m_root.resolve(_entry.getPath().substring(1)).normalize();
+        ++m_streamFileCount;
+        m_streamFileBytes += _entry.getSize();
+        m_targets.add(new Target(path, _entry.getType(), _entry.getSize()));
+        if (STAT_BATCH_SIZE <= m_targets.size()) {
+            final List<Target> batch = m_targets;
+            m_targets = new ArrayList<Target>();
+            m_statBatches.add(m_stat.submit(() -> check(batch)));
+        }
+    }
+
+    /**
+     * Waits for every check to complete, and works out what the installation needs
+     *
+     * @return the problems found, each of which would make the installation fail
+     */
+    public List<String> finish() throws IOException, InterruptedException {
+        try {
+            if (!m_targets.isEmpty()) {
+                m_statBatches.add(m_stat.submit(() -> check(m_targets)));
+            }
+            for (final Future<?> batch : m_statBatches) {
+                batch.get();
+            }
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            m_stat.shutdownNow();
+        }
+        if (0 < m_conflictCount.get()) {
+            m_problems.add(String.format("%,d stream files can't be installed over what is there now", m_conflictCount.get()));
+        }
+
+        // disk space, per file system (the install directory and the root may well share one). Extraction is already
+        // under way, so what has been extracted so far is no longer free, but no longer needed either.
+        long extractNeed = 0;
+        for (final Map.Entry<File, Long> payload : m_payloads.entrySet()) {
+            extractNeed += Math.max(0, payload.getValue() - payload.getKey().length());
+        }
+        final Map<FileStore, long[]> needs = new LinkedHashMap<FileStore, long[]>();
+        final Map<FileStore, String> names = new LinkedHashMap<FileStore, String>();
+        addNeed(needs, names, m_installDir.toPath(), extractNeed);
+        addNeed(needs, names, m_root, m_streamFileBytes - m_overwrittenBytes.get());
+        for (final Map.Entry<FileStore, long[]> need : needs.entrySet()) {
+            final long free = need.getKey().getUsableSpace();
+            final String name = names.get(need.getKey());
+            m_fileSystems.put(name, new long[] { need.getValue()[0], free });
+            if (need.getValue()[0] > free) {
+                m_problems.add(String.format("Not enough space in %s: %s needed, %s free", name, toMB(need.getValue()[0]), toMB(free)));
+            }
+        }
+
+        // libraries: a save file is copied into QTEMP, then restored from, so each one takes about twice its size
+        long libraryBytes = 0;
+        double restoreSeconds = 0;
+        double longestRestore = 0;
+        for (final Library library : m_libraries) {
+            libraryBytes += library.m_size * 2;
+            final double seconds = library.m_size / 1048576.0 / RESTORE_MBPS;
+            restoreSeconds += seconds;
+            longestRestore = Math.max(longestRestore, seconds);
+            final int locks = getLockCount(library.m_name);
+            if (library.m_isReplaced && 0 < locks) {
+                m_problems.add(String.format("Library %s can't be replaced, since %d locks are held on it", library.m_name, locks));
+            }
+            if (library.m_isObjects && m_isHostQueried && !libraryExists(library.m_name)) {
+                m_problems.add(String.format("Library %s doesn't exist, so the objects of %s can't be restored into it", library.m_name, library.m_file));
+            }
+        }
+        if (0 <= m_freeAspBytes && libraryBytes > m_freeAspBytes) {
+            m_problems.add(String.format("Not enough space in the system ASP: %s needed, %s free", toMB(libraryBytes), toMB(m_freeAspBytes)));
+        }
+
+        // extraction overlaps installation, but libraries are the bulk of it and restore concurrently, one job apiece
+        final double extractSeconds = m_payloadBytes / 1048576.0 / EXTRACT_MBPS;
+        final double streamFileSeconds = m_streamFileBytes / 1048576.0 / WRITE_MBPS + m_streamFileCount * FILE_OVERHEAD_SECONDS / m_jobs;
+        m_estimatedSeconds = Math.round(Math.max(extractSeconds, streamFileSeconds + Math.max(longestRestore, restoreSeconds / m_jobs)));
+        return m_problems;
+    }
+
+    /** @return the number of locks held on a library, or 0 if it doesn't exist */
+    public int getLockCount(final String _library) throws IOException, InterruptedException {
+        final Integer ret = getHostLibraries().get(_library.toUpperCase());
+        return null == ret ? 0 : ret;
+    }
+
+    /** @return whether a library exists on the host (waiting for the host query, if it's still running) */
+    public boolean libraryExists(final String _library) throws IOException, InterruptedException {
+        return getHostLibraries().containsKey(_library.toUpperCase());
+    }
+
+    public void print(final PrintStream _out) {
+        _out.println(StringUtils.colorizeForTerminal("  - Pre-flight checks:", TerminalColor.YELLOW));
+        for (final Map.Entry<String, long[]> fs : m_fileSystems.entrySet()) {
+            _out.println("        " + StringUtils.colorizeForTerminal(String.format("%-32s %s needed, %s free", fs.getKey(), toMB(fs.getValue()[0]), toMB(fs.getValue()[1])), TerminalColor.CYAN));
+        }
+        if (!m_libraries.isEmpty() && 0 <= m_freeAspBytes) {
+            long need = 0;
+            for (final Library library : m_libraries) {
+                need += library.m_size * 2;
+            }
+            _out.println("        " + StringUtils.colorizeForTerminal(String.format("%-32s %s needed, %s free", "system ASP", toMB(need), toMB(m_freeAspBytes)), TerminalColor.CYAN));
+        }
+        if (0 < m_overwrittenCount.get()) {
+            _out.println("        " + StringUtils.colorizeForTerminal(String.format("%,d existing stream files (%s) will be replaced", m_overwrittenCount.get(), toMB(m_overwrittenBytes.get())), TerminalColor.CYAN));
+        }
+        _out.println("        " + StringUtils.colorizeForTerminal(String.format("Estimated duration: %d:%02d", m_estimatedSeconds / 60, m_estimatedSeconds % 60), TerminalColor.CYAN));
+        for (final String conflict : m_conflicts) {
+            _out.println("        " + StringUtils.colorizeForTerminal(conflict, TerminalColor.BRIGHT_RED));
+        }
+        if (m_conflicts.size() < m_conflictCount.get()) {
+            _out.println("        " + StringUtils.colorizeForTerminal(String.format("(and %,d more)", m_conflictCount.get() - m_conflicts.size()), TerminalColor.BRIGHT_RED));
+        }
+        for (final String problem : m_problems) {
+            _out.println("        " + StringUtils.colorizeForTerminal(problem, TerminalColor.BRIGHT_RED));
+        }
+    }
+
+    /**
+     * Starts looking up the libraries the package restores, and the free space in the system ASP, in the background
+     */
+    public void queryHost(final HostSession.Factory _sessions, final Collection<String> _libraries) {
+        if (_libraries.isEmpty()) {
+            return;
+        }
+        m_isHostQueried = true;
+        m_hostLibraries = CompletableFuture.supplyAsync(() -> {
+            try (HostSession session = _sessions.open()) {
+                m_freeAspBytes = session.getFreeAspBytes();
+                return session.describeLibraries(_libraries);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /** Writes the plan out, as YAML, for tools to read */
+    public void write(final Writer _out) throws IOException {
+        final Map<String, Object> yaml = new LinkedHashMap<String, Object>();
+        yaml.put("package", m_packageId);
+        yaml.put("root", m_root.toString());
+        final List<Map<String, Object>> fileSystems = new ArrayList<Map<String, Object>>();
+        for (final Map.Entry<String, long[]> fs : m_fileSystems.entrySet()) {
+            final Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("path", fs.getKey());
+            entry.put("need", fs.getValue()[0]);
+            entry.put("free", fs.getValue()[1]);
+            fileSystems.add(entry);
+        }
+        yaml.put("fileSystems", fileSystems);
+        final Map<String, Object> streamFiles = new LinkedHashMap<String, Object>();
+        streamFiles.put("count", m_streamFileCount);
+        streamFiles.put("bytes", m_streamFileBytes);
+        streamFiles.put("replaced", m_overwrittenCount.get());
+        streamFiles.put("replacedBytes", m_overwrittenBytes.get());
+        streamFiles.put("conflicts", m_conflictCount.get());
+        streamFiles.put("conflictsListed", new ArrayList<String>(m_conflicts));
+        yaml.put("streamFiles", streamFiles);
+        final List<Map<String, Object>> libraries = new ArrayList<Map<String, Object>>();
+        for (final Library library : m_libraries) {
+            final Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("name", library.m_name);
+            entry.put("file", library.m_file);
+            entry.put("size", library.m_size);
+            entry.put("action", library.m_isObjects ? "objects" : library.m_isReplaced ? "replace" : "restore");
+            try {
+                entry.put("locks", getLockCount(library.m_name));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            libraries.add(entry);
+        }
+        yaml.put("libraries", libraries);
+        if (0 <= m_freeAspBytes) {
+            yaml.put("freeAspBytes", m_freeAspBytes);
+        }
+        yaml.put("estimatedSeconds", m_estimatedSeconds);
+        yaml.put("problems", m_problems);
+        new Yaml().dump(yaml, _out);
+        _out.flush();
+    }
+
+    private void addNeed(final Map<FileStore, long[]> _needs, final Map<FileStore, String> _names, final Path _path, final long _bytes) throws IOException {
+        Path existing = _path.toAbsolutePath();
+        while (null != existing && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (null == existing) {
+            return;
+        }
+        final FileStore store = Files.getFileStore(existing);
+        long[] need = _needs.get(store);
+        if (null == need) {
+            need = new long[1];
+            _needs.put(store, need);
+            _names.put(store, _path.toString());
+        } else {
+            _names.put(store, _names.get(store) + " and " + _path);
+        }
+        need[0] += Math.max(0, _bytes);
+    }
+
+    /** Checks a batch of stream files against what is on disk now */
+    private void check(final List<Target> _batch) {
+        for (final Target target : _batch) {
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(target.m_path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (final IOException e) {
+                continue; // not there, which is fine
+            }
+            String conflict = null;
+            if (TarEntry.TYPE_DIRECTORY == target.m_type) {
+                if (attrs.isRegularFile()) {
+                    conflict = "a file is in the way of directory";
+                }
+            } else if (attrs.isDirectory()) {
+                conflict = "a directory is in the way of";
+            } else if (TarEntry.TYPE_SYMLINK != target.m_type && attrs.isRegularFile()) {
+                if (Files.isWritable(target.m_path)) {
+                    m_overwrittenCount.incrementAndGet();
+                    m_overwrittenBytes.addAndGet(Math.min(target.m_size, attrs.size()));
+                } else {
+                    conflict = "can't write to";
+                }
+            }
+            if (null != conflict && MAX_CONFLICTS_LISTED > m_conflictCount.getAndIncrement()) {
+                m_conflicts.add(conflict + " " + target.m_path);
+            }
+        }
+    }
+
+    private Map<String, Integer> getHostLibraries() throws IOException, InterruptedException {
+        try {
+            return m_hostLibraries.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = null == e.getCause().getCause() ? e.getCause() : e.getCause().getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+}
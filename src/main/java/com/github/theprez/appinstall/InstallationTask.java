@@ -2,15 +2,37 @@ package com.github.theprez.appinstall;
 
 import java.beans.PropertyVetoException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.github.theprez.jcmdutils.AppLogger;
 import com.github.theprez.jcmdutils.ConsoleQuestionAsker;
 import com.github.theprez.jcmdutils.AppLogger.DefaultLogger;
-import com.github.theprez.jcmdutils.ProcessLauncher.ProcessResult;
 import com.github.theprez.jcmdutils.StringUtils.TerminalColor;
 import com.github.theprez.jcmdutils.ProcessLauncher;
 import com.github.theprez.jcmdutils.StringUtils;
@@ -19,45 +41,241 @@ import com.ibm.as400.access.ObjectDoesNotExistException;
 
 public class InstallationTask {
 
+    /** A packaged file, and the commands that install it */
+    private static class Component {
+        private File m_archive = null;
+        private StreamFileChanges m_changes = null;
+        private final List<String> m_commands = new LinkedList<String>();
+        private TarExtractor m_extractor = null;
+        private final String m_file;
+        private String m_inputDigest = null;
+
+        Component(final String _file) {
+            m_file = _file;
+        }
+
+        @Override
+        public String toString() {
+            return m_file;
+        }
+    }
+
+    /**
+     * What installing the stream files archive takes, besides restoring it: the CCSID tags to set (the archive doesn't
+     * carry them), and the files and directories that a delta package drops
+     */
+    static class StreamFileChanges {
+        private final Map<Integer, List<String>> m_ccsids = new TreeMap<Integer, List<String>>();
+        private final List<String> m_deletedDirs = new LinkedList<String>();
+        private final List<String> m_deletedFiles = new LinkedList<String>();
+
+        /** @return the paths to be tagged with each CCSID */
+        Map<Integer, List<String>> getCcsids() {
+            return m_ccsids;
+        }
+
+        /** @return the directories to be deleted (if they are empty), deepest first */
+        List<String> getDeletedDirs() {
+            return m_deletedDirs;
+        }
+
+        List<String> getDeletedFiles() {
+            return m_deletedFiles;
+        }
+    }
+
     private final PackageConfiguration m_config;
     private final File m_dir;
+    private final ExtractionTask m_extraction;
     private final AppLogger m_logger;
+    private HostSession.Factory m_sessionFactory;
 
-    public InstallationTask(final AppLogger _logger, final PackageConfiguration _config, final File _sourceDir) {
+    /**
+     * @param _extraction the (already started) extraction of the package. Each component is installed as soon as its own
+     *                    file has been extracted, while the rest are still being extracted.
+     */
+    public InstallationTask(final AppLogger _logger, final PackageConfiguration _config, final ExtractionTask _extraction) {
         m_logger = _logger;
-        m_dir = _sourceDir;
+        m_extraction = _extraction;
+        m_dir = _extraction.getInstallDir();
         m_config = _config;
+        m_sessionFactory = () -> new Jt400HostSession(m_logger, new AS400());
     }
 
     public void run(InstallOptions installOptions) throws IOException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
         final DefaultLogger childLogger = new DefaultLogger(true);
-        {
+        final InstallJournal journal = m_extraction.getJournal();
+        if (m_extraction.contains(".preinstall") && journal.isComplete("run .preinstall", m_config.getDigest(".preinstall"))) {
+            m_logger.println("Skipping pre-installation tasks (already complete)");
+        } else if (m_extraction.contains(".preinstall")) {
+            m_extraction.await(".preinstall");
             final File preinstall = new File(m_dir, ".preinstall");
-            if (preinstall.exists()) {
-                m_logger.println("Executing pre-installation tasks...");
-                preinstall.setExecutable(true);
+            m_logger.println("Executing pre-installation tasks...");
+            preinstall.setExecutable(true);
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("script", ".preinstall");
+            try {
                 final Process p = Runtime.getRuntime().exec(preinstall.getName(), null, m_dir);
                 ProcessLauncher.pipeStreamsToCurrentProcess("PREINSTALL", p, childLogger);
                 p.waitFor();
                 if (0 != p.exitValue()) {
                     throw new IOException("Pre-installation tasks failed");
                 }
-                m_logger.println_success("Successfully executed pre-installation tasks");
+            } finally {
+                span.close();
+            }
+            journal.record("run .preinstall", m_config.getDigest(".preinstall"));
+            m_logger.println_success("Successfully executed pre-installation tasks");
+        }
+        final List<Component> components = inferComponentsFromFileList(m_config.getFiles(), installOptions);
+        m_logger.println("Performing installation...");
+        final Map<String, IOException> failures = install(components, Math.max(1, installOptions.jobs));
+        if (!failures.isEmpty()) {
+            final IOException failure = new IOException("Installation failed for " + failures.keySet());
+            for (final Map.Entry<String, IOException> f : failures.entrySet()) {
+                m_logger.println_err("Failed to install " + f.getKey() + ": " + f.getValue().getLocalizedMessage());
+                failure.addSuppressed(f.getValue());
+            }
+            throw failure;
+        }
+        m_extraction.finish();
+        if (m_extraction.contains(".postinstall") && journal.isComplete("run .postinstall", m_config.getDigest(".postinstall"))) {
+            m_logger.println("Skipping post-installation tasks (already complete)");
+        } else if (m_extraction.contains(".postinstall")) {
+            final File postinstall = new File(m_dir, ".postinstall");
+            m_logger.println("Executing post-installation tasks...");
+            postinstall.setExecutable(true);
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("script", ".postinstall");
+            try {
+                final Process p = Runtime.getRuntime().exec(postinstall.getName(), null, m_dir);
+                ProcessLauncher.pipeStreamsToCurrentProcess("POSTINSTALL", p, childLogger);
+                p.waitFor();
+                if (0 != p.exitValue()) {
+                    throw new IOException("Post-installation tasks failed");
+                }
+            } finally {
+                span.close();
+            }
+            journal.record("run .postinstall", m_config.getDigest(".postinstall"));
+            m_logger.println_success("Successfully executed post-installation tasks");
+        }
+        journal.finish(m_config.getId());
+        m_logger.println_success("Installation complete");
+    }
+
+    /**
+     * Installs the components concurrently, each one as soon as its file has been extracted and its prerequisites have been
+     * installed. Each component's CL commands run on a host session of its own (so in its own QTEMP), of which there are
+     * at most {@code _parallelism}.
+     *
+     * @return the failure of each component that could not be installed, including those whose prerequisites failed
+     */
+    private Map<String, IOException> install(final List<Component> _components, final int _parallelism) throws IOException, InterruptedException {
+        final Map<String, IOException> failures = new LinkedHashMap<String, IOException>();
+        final Set<String> extracted = new HashSet<String>();
+        final Set<String> installed = new HashSet<String>();
+        final List<Component> waiting = new LinkedList<Component>(_components);
+
+        // installs and extraction progress are both reported through the one queue, so whichever comes first is handled first
+        final BlockingQueue<Future<String>> events = new LinkedBlockingQueue<Future<String>>();
+        final ExecutorService installPool = Executors.newFixedThreadPool(_parallelism);
+        final ExecutorService watcher = Executors.newSingleThreadExecutor();
+        final CompletionService<String> installs = new ExecutorCompletionService<String>(installPool, events);
+        final CompletionService<String> extractions = new ExecutorCompletionService<String>(watcher, events);
+        final HostSessionPool sessions = new HostSessionPool(m_sessionFactory, _parallelism);
+        try {
+            final Map<Future<String>, Component> running = new HashMap<Future<String>, Component>();
+            Future<String> extraction = extractions.submit(() -> m_extraction.awaitNext());
+            while (true) {
+                for (final Iterator<Component> it = waiting.iterator(); it.hasNext();) {
+                    final Component component = it.next();
+                    final String failedPrereq = getFailedPrerequisite(component, failures.keySet());
+                    if (failures.containsKey(component.m_file)) { // could not be extracted
+                        it.remove();
+                    } else if (null != failedPrereq) {
+                        it.remove();
+                        failures.put(component.m_file, new IOException("Not installed, since " + failedPrereq + " failed"));
+                    } else if (extracted.contains(component.m_file) && isInstallable(component, installed)) {
+                        it.remove();
+                        running.put(installs.submit(() -> install(component, sessions)), component);
+                    }
+                }
+                if (running.isEmpty() && waiting.isEmpty()) {
+                    break;
+                }
+                if (running.isEmpty() && null == extraction) {
+                    for (final Component component : waiting) {
+                        failures.put(component.m_file, new IOException("Unable to satisfy the install order of " + component.m_file));
+                    }
+                    break;
+                }
+                final Future<String> event = events.take();
+                if (event == extraction) {
+                    final String file = getResult(event);
+                    if (null == file) {
+                        extraction = null;
+                        continue;
+                    }
+                    try {
+                        m_extraction.await(file);
+                        extracted.add(file);
+                    } catch (final IOException e) {
+                        failures.put(file, e);
+                    }
+                    extraction = extractions.submit(() -> m_extraction.awaitNext());
+                    continue;
+                }
+                final Component component = running.remove(event);
+                try {
+                    getResult(event);
+                    installed.add(component.m_file);
+                } catch (final IOException e) {
+                    failures.put(component.m_file, e);
+                }
             }
+        } finally {
+            installPool.shutdownNow();
+            watcher.shutdownNow();
+            sessions.close();
+        }
+        return failures;
+    }
+
+    /** Installs a single component, on a host session borrowed for the duration */
+    private String install(final Component _component, final HostSessionPool _sessions) throws IOException, InterruptedException {
+        final DefaultLogger childLogger = new DefaultLogger(true);
+        final long start = System.currentTimeMillis();
+        final InstallJournal journal = m_extraction.getJournal();
+        if (journal.isComplete("install " + _component.m_file, _component.m_inputDigest)) {
+            m_logger.printfln("Skipping %s (already installed)", _component.m_file);
+            return _component.m_file;
         }
-        final AS400 as400 = new AS400();
+        m_logger.printfln("Installing %s...", _component.m_file);
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("install", _component.m_file);
+        HostSession session = null;
         try {
-            m_logger.println("Performing installation...");
-            for (final String cmd : inferCommandsFromFileList(m_config.getFiles(), installOptions)) {
+            if (null != _component.m_extractor) {
+                _component.m_extractor.extract(_component.m_archive);
+            }
+            if (null != _component.m_changes) {
+                if (!_component.m_changes.m_ccsids.isEmpty()) {
+                    session = _sessions.borrow();
+                }
+                apply(_component.m_changes, session);
+            }
+            for (final String cmd : _component.m_commands) {
                 if (StringUtils.isEmpty(cmd)) {
                     continue;
                 }
                 if (Character.isUpperCase(cmd.trim().charAt(0))) { // CL command
+                    if (null == session) {
+                        session = _sessions.borrow();
+                    }
                     final String doctoredCmd = cmd.replace("$PWD", m_dir.getAbsolutePath());
-                    InstallPackageBuilder.runCommand(m_logger, as400, doctoredCmd, cmd.trim().toUpperCase().startsWith("DLT"));
+                    session.runCommand(doctoredCmd, cmd.trim().toUpperCase().startsWith("DLT"));
                 } else {
                     m_logger.printfln_verbose("Running command '%s'", cmd);
-                    final Process p = Runtime.getRuntime().exec(new String[] { "/QOpenSys/usr/bin/sh", "-c", cmd },
+                    // (off IBM i, when the host is simulated, with the local shell)
+                    final Process p = Runtime.getRuntime().exec(new String[] { InstallPackageBuilder.isIBMi() ? "/QOpenSys/usr/bin/sh" : "/bin/sh", "-c", cmd },
                             null, m_dir);
                     ProcessLauncher.pipeStreamsToCurrentProcess("INSTALL", p, childLogger);
                     p.waitFor();
@@ -67,62 +285,125 @@ public class InstallationTask {
                 }
             }
         } finally {
-            if (null != as400) {
-                as400.disconnectAllServices();
+            if (null != session) {
+                _sessions.release(session);
             }
         }
-        final File postinstall = new File(m_dir, ".postinstall");
+        span.addBytes(m_extraction.getExtractedSize(_component.m_file)).close();
+        journal.record("install " + _component.m_file, _component.m_inputDigest);
+        m_logger.println_success(String.format("Installed %s (%.1fs)", _component.m_file, (System.currentTimeMillis() - start) / 1000.0));
+        return _component.m_file;
+    }
 
-        if (postinstall.exists()) {
-            m_logger.println("Executing post-installation tasks...");
-            postinstall.setExecutable(true);
-            final Process p = Runtime.getRuntime().exec(postinstall.getName(), null, m_dir);
-            ProcessLauncher.pipeStreamsToCurrentProcess("POSTINSTALL", p, childLogger);
-            p.waitFor();
-            if (0 != p.exitValue()) {
-                throw new IOException("Pre-installation tasks failed");
+    /** Deletes the stream files that a delta package drops, then tags those installed with their CCSIDs */
+    private void apply(final StreamFileChanges _changes, final HostSession _session) throws IOException {
+        for (final String path : _changes.m_deletedFiles) {
+            m_logger.printfln_verbose("Deleting '%s'", path);
+            try {
+                Files.deleteIfExists(Paths.get(path));
+            } catch (final IOException e) {
+                throw new IOException("Could not delete '" + path + "'", e);
             }
-            m_logger.println_success("Successfully executed post-installation tasks");
         }
-        m_logger.println_success("Installation complete");
+        for (final String dir : _changes.m_deletedDirs) {
+            try {
+                Files.deleteIfExists(Paths.get(dir));
+            } catch (final IOException e) {
+                m_logger.printfln_verbose("Leaving directory '%s' in place (%s)", dir, e.getLocalizedMessage()); // not empty, most likely
+            }
+        }
+        for (final Map.Entry<Integer, List<String>> ccsid : _changes.m_ccsids.entrySet()) {
+            _session.setCcsid(ccsid.getKey(), ccsid.getValue());
+        }
     }
 
     /**
-     * @param files
-     * @param _confirm Specify 'y' to always confirm, specify 'c' to confirm only non-delete actions
+     * @return the digest of everything a component's installation depends on (the packaged file, and the options that
+     *         change how it's installed), or {@code null} if the package doesn't record the digest of the file
      */
-    private List<String> inferCommandsFromFileList(List<String> files, InstallOptions installOptions)
-            throws UnsupportedEncodingException, IOException {
-        List<String> manifestCommands = new LinkedList<String>();
-        String confirmationMsg = "\n\n\nIf you continue, the following actions will be taken on your system:\n\n";
+    private String getInputDigest(final String _file, final InstallOptions _installOptions) {
+        final String fileDigest = m_config.getDigest(_file);
+        if (null == fileDigest) {
+            return null;
+        }
+        final String options = String.join("\n", fileDigest, String.valueOf(_installOptions.lodrun), _installOptions.rstlib, _installOptions.rstasp, _installOptions.rstaspdev, _installOptions.root);
+        return PackageConfiguration.toHex(PackageConfiguration.newDigest().digest(options.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** @return the first prerequisite of the component that failed, or {@code null} if none did */
+    private String getFailedPrerequisite(final Component _component, final Set<String> _failed) {
+        for (final String prereq : m_config.getPrerequisites(_component.m_file)) {
+            if (_failed.contains(prereq)) {
+                return prereq;
+            }
+        }
+        return null;
+    }
+
+    private static <T> T getResult(final Future<T> _future) throws IOException, InterruptedException {
+        try {
+            return _future.get();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private boolean isInstallable(final Component _component, final Set<String> _installed) {
+        for (final String prereq : m_config.getPrerequisites(_component.m_file)) {
+            if (!_installed.contains(prereq) && m_extraction.contains(prereq)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Component> inferComponentsFromFileList(List<String> files, InstallOptions installOptions)
+            throws UnsupportedEncodingException, IOException, InterruptedException {
+        List<Component> components = new LinkedList<Component>();
+        // the confirmation is printed as it is worked out, as it can run long for large packages
+        final PrintStream out = System.out;
+        final PerfRecorder.Span analysis = PerfRecorder.getSingleton().start("preflight", "analysis");
+        final InstallPlan plan = new InstallPlan(m_config.getId(), m_dir, installOptions.root, installOptions.jobs);
+        final List<String> libraries = new LinkedList<String>();
+        for (final String file : files) {
+            if ((file.endsWith(".lib") || file.endsWith(".obj")) && !installOptions.lodrun) {
+                libraries.add(installOptions.rstlib != null ? installOptions.rstlib : file.substring(0, file.indexOf('.')).trim());
+            }
+        }
+        plan.queryHost(m_sessionFactory, libraries);
+        for (final String file : new String[] { ".preinstall", ".postinstall" }) {
+            if (m_extraction.contains(file)) {
+                plan.addPayload(file, m_extraction.getExtractedSize(file));
+            }
+        }
+        out.println("\n\n\nIf you continue, the following actions will be taken on your system:\n");
+        boolean isDestructive = false;
         for (String file : files) {
+            plan.addPayload(file, m_extraction.getExtractedSize(file));
+            final Component component = new Component(file);
+            component.m_inputDigest = getInputDigest(file, installOptions);
+            components.add(component);
+            final List<String> manifestCommands = component.m_commands;
         	// Restore file action
             if (file.endsWith(".tar")) {
-                File tarFile = new File(m_dir, file);
-                final String untarCmd = "/QOpenSys/usr/bin/tar xvf " + tarFile.getAbsolutePath() + " -C /.";
-                manifestCommands.add(untarCmd);
-                ProcessResult tarlist = ProcessLauncher.exec("/QOpenSys/usr/bin/tar tvf " + tarFile.getAbsolutePath());
-                if (0 != tarlist.getExitStatus()) {
-                    throw new IOException("Error processing saved stream file data");
-                }
-                confirmationMsg += StringUtils.colorizeForTerminal("  - The following stream files will be installed:\n", TerminalColor.YELLOW);
-                for (String line : tarlist.getStdout()) {
-                    confirmationMsg += "        " + StringUtils.colorizeForTerminal(line, TerminalColor.CYAN) + "\n";
-                }
-                confirmationMsg += "\n";
+                component.m_archive = new File(m_dir, file);
+                component.m_extractor = new TarExtractor(m_logger, new File(installOptions.root), Math.max(1, installOptions.jobs));
+                component.m_changes = new StreamFileChanges();
+                isDestructive |= inferStreamFileChanges(component.m_changes, installOptions, plan, out);
             // Restore library action
             } else if (file.endsWith(".lib")) {
                 String savlib = file.replace(".lib", "").trim();
                 String rstlib = installOptions.rstlib != null ? installOptions.rstlib : savlib;
-                if (!installOptions.lodrun && libraryExists(rstlib)) {
-                    confirmationMsg += 
-                            StringUtils.colorizeForTerminal("  - Library "+rstlib.toUpperCase()+" will be deleted from the system",
+                final boolean isReplaced = !installOptions.lodrun && plan.libraryExists(rstlib);
+                plan.addLibrary(rstlib, file, m_extraction.getExtractedSize(file), isReplaced);
+                if (isReplaced) {
+                    isDestructive = true;
+                    out.println(StringUtils.colorizeForTerminal("  - Library "+rstlib.toUpperCase()+" will be deleted from the system",
                                     TerminalColor.BRIGHT_RED)+
-                            " and replaced with the version included in this bundle\n\n";
+                            " and replaced with the version included in this bundle\n");
                 } else {
-                    confirmationMsg += 
-                            StringUtils.colorizeForTerminal("  - Library "+rstlib.toUpperCase()+
-                            " will be installed on the system\n\n", TerminalColor.YELLOW) ;
+                    out.println(StringUtils.colorizeForTerminal("  - Library "+rstlib.toUpperCase()+
+                            " will be installed on the system\n", TerminalColor.YELLOW));
                 }
 
                 manifestCommands.add("CRTSAVF QTEMP/" + savlib);
@@ -138,18 +419,52 @@ public class InstallationTask {
 	                	rstlibCmd += " RSTASPDEV(" + installOptions.rstaspdev + ')';
 	                manifestCommands.add(rstlibCmd);
                 }
+            // Restore objects action (<library>.<group>.obj, a save file of some of the objects of a library)
+            } else if (file.endsWith(".obj")) {
+                final String savlib = file.substring(0, file.indexOf('.'));
+                final String savf = "AIOBJ" + file.substring(file.indexOf('.') + 1, file.lastIndexOf('.'));
+                final String rstlib = installOptions.rstlib != null ? installOptions.rstlib : savlib;
+                if (!installOptions.lodrun) {
+                    plan.addObjects(rstlib, file, m_extraction.getExtractedSize(file));
+                    isDestructive = true;
+                    out.println(StringUtils.colorizeForTerminal("  - Objects in library " + rstlib.toUpperCase() + " will be restored from " + file, TerminalColor.YELLOW)
+                            + ", replacing those of the same name and type (the rest of the library is left alone)\n");
+                }
+                manifestCommands.add("CRTSAVF QTEMP/" + savf);
+                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + file + "') TOMBR('/qsys.lib/qtemp.lib/" + savf
+                        + ".file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
+                if (!installOptions.lodrun) {
+                    String rstobjCmd = "RSTOBJ OBJ(*ALL) SAVLIB(" + savlib + ") DEV(*SAVF) SAVF(QTEMP/" + savf + ") MBROPT(*ALL) ALWOBJDIF(*ALL) RSTLIB(" + rstlib + ')';
+                    if (installOptions.rstasp != null)
+                        rstobjCmd += " RSTASP(" + installOptions.rstasp + ')';
+                    if (installOptions.rstaspdev != null)
+                        rstobjCmd += " RSTASPDEV(" + installOptions.rstaspdev + ')';
+                    manifestCommands.add(rstobjCmd);
+                }
             // LODRUN action
             } else if (file.equals("qinstapp.pgm")) {
             	if (installOptions.lodrun) {
-	            	confirmationMsg += StringUtils.colorizeForTerminal("  - LODRUN DEV(*SAVF) SAVF(QTEMP/QINSTAPP) will be run:\n", TerminalColor.YELLOW);
+	            	out.println(StringUtils.colorizeForTerminal("  - LODRUN DEV(*SAVF) SAVF(QTEMP/QINSTAPP) will be run:", TerminalColor.YELLOW));
 	                manifestCommands.add("CRTSAVF QTEMP/QINSTAPP");
 	                manifestCommands.add("CPYFRMSTMF FROMSTMF('$PWD/" + file + "') TOMBR('/qsys.lib/qtemp.lib/qinstapp.file') MBROPT(*REPLACE) CVTDTA(*NONE) ENDLINFMT(*FIXED) TABEXPN(*NO)");
 	                manifestCommands.add("LODRUN DEV(*SAVF) SAVF(QTEMP/QINSTAPP)");
             	}
             }
         }
-        System.out.println(confirmationMsg);
-        if (installOptions.confirm=='y' || (installOptions.confirm=='c' && !confirmationMsg.contains("delete"))) {
+        final List<String> problems = plan.finish();
+        analysis.close();
+        plan.print(out);
+        if (null != installOptions.planFile) {
+            try (Writer planOut = new OutputStreamWriter(new FileOutputStream(installOptions.planFile), StandardCharsets.UTF_8)) {
+                plan.write(planOut);
+            }
+            m_logger.println_verbose("Wrote the installation plan to " + installOptions.planFile);
+        }
+        out.println();
+        if (!problems.isEmpty() && !installOptions.force) {
+            throw new IOException("Pre-flight checks failed (use --force to install anyway)");
+        }
+        if (installOptions.confirm=='y' || (installOptions.confirm=='c' && !isDestructive)) {
             m_logger.println_warn("Continuing without confirmation");
         } else{
             ConsoleQuestionAsker asker = new ConsoleQuestionAsker();
@@ -158,11 +473,127 @@ public class InstallationTask {
                 throw new IOException("Canceled by user");
             }
         }
-        return manifestCommands;
+        return components;
+    }
+
+    /**
+     * Works out everything about the stream files archive from a single pass over the package index (so neither the
+     * archive, which may not even be extracted yet, nor the index is read more than once):
+     * <ul>
+     * <li>the archive doesn't carry CCSID tags, so they are restored through the host, grouping all files that share a
+     * CCSID</li>
+     * <li>stream files that a delta package drops are deleted. Directories are removed deepest first, and only if they are
+     * empty (they may well hold files that aren't ours).</li>
+     * <li>what will be installed and deleted is summarized by top-level directory (or listed in full, if asked to)</li>
+     * <li>each stream file to be installed is handed to the pre-flight checks of the {@link InstallPlan}</li>
+     * </ul>
+     *
+     * @return whether anything will be deleted
+     */
+    private boolean inferStreamFileChanges(final StreamFileChanges _changes, final InstallOptions _installOptions, final InstallPlan _plan, final PrintStream _out) throws IOException {
+        try (ManifestIndex.Reader index = m_config.openIndex()) {
+            if (null == index) {
+                throw new IOException("Package index not found!");
+            }
+            return inferStreamFileChanges(index, m_config.getDeletedCount(), m_config.getBaseId(), _changes, _installOptions, _plan, _out);
+        }
+    }
+
+    /**
+     * As {@link #inferStreamFileChanges(StreamFileChanges, InstallOptions, InstallPlan, PrintStream)}, from an index that
+     * is already open (which is not closed)
+     *
+     * @param _deletedCount the number of stream files the package deletes
+     * @param _baseId       the id of the package this one is a delta against, or {@code null}
+     */
+    static boolean inferStreamFileChanges(final ManifestIndex.Reader _index, final long _deletedCount, final String _baseId, final StreamFileChanges _changes, final InstallOptions _installOptions,
+            final InstallPlan _plan, final PrintStream _out) throws IOException {
+        final Map<String, long[]> installed = new TreeMap<String, long[]>();
+        final Map<String, long[]> deleted = new TreeMap<String, long[]>();
+        final String root = _installOptions.root.replaceAll("/+$", "");
+
+        final boolean isListingDeletes = _installOptions.listFiles && 0 < _deletedCount;
+        _out.println(StringUtils.colorizeForTerminal(isListingDeletes ? "  - The following stream files will be installed (or, marked x, deleted):" : "  - The following stream files will be installed:", TerminalColor.YELLOW));
+        ManifestIndex.Entry entry = null;
+        while (null != (entry = _index.next())) {
+            final String path = entry.getPath();
+            if (entry.isDeleted()) {
+                summarize(deleted, entry);
+                if (_installOptions.listFiles) {
+                    _out.println("        " + StringUtils.colorizeForTerminal(String.format("x %12s %s", "(delete)", path), TerminalColor.BRIGHT_RED));
+                }
+                if (path.endsWith("/")) {
+                    _changes.m_deletedDirs.add(root + path);
+                } else {
+                    _changes.m_deletedFiles.add(root + path);
+                }
+                continue;
+            }
+            if (0 > entry.getOffset()) {
+                continue; // unchanged since the base package
+            }
+            summarize(installed, entry);
+            _plan.addStreamFile(entry);
+            if (_installOptions.listFiles) {
+                _out.println("        " + StringUtils.colorizeForTerminal(String.format("%c %12s %s", toListingType(entry.getType()), TarEntry.TYPE_DIRECTORY == entry.getType() ? "" : entry.getSize(), path), TerminalColor.CYAN));
+            }
+            if (0 < entry.getCcsid() && TarEntry.TYPE_SYMLINK != entry.getType()) {
+                _changes.m_ccsids.computeIfAbsent(entry.getCcsid(), _ccsid -> new LinkedList<String>()).add(root + (1 < path.length() && path.endsWith("/") ? path.substring(0, path.length() - 1) : path));
+            }
+        }
+        _changes.m_deletedDirs.sort(Collections.reverseOrder());
+
+        printSummary(installed, _out);
+        _out.println();
+        if (null != _baseId) {
+            _out.println(StringUtils.colorizeForTerminal("  - This package only updates the installation of package " + _baseId, TerminalColor.YELLOW));
+            if (!deleted.isEmpty()) {
+                _out.println(StringUtils.colorizeForTerminal("  - The following stream files will be deleted:", TerminalColor.BRIGHT_RED));
+                printSummary(deleted, _out);
+            }
+            _out.println();
+        }
+        return !deleted.isEmpty();
+    }
+
+    private static void printSummary(final Map<String, long[]> _summary, final PrintStream _out) {
+        for (final Map.Entry<String, long[]> dir : _summary.entrySet()) {
+            final long[] counts = dir.getValue();
+            _out.println("        " + StringUtils.colorizeForTerminal(String.format("%-32s %,9d files, %,7d directories, %,.1f MB", dir.getKey(), counts[0], counts[1], counts[2] / 1048576.0), TerminalColor.CYAN));
+        }
+    }
+
+    /** Counts an index record towards its top-level directory: files (and links), directories, bytes */
+    private static void summarize(final Map<String, long[]> _summary, final ManifestIndex.Entry _entry) {
+        final int end = _entry.getPath().indexOf('/', 1);
+        final String topLevel = 0 > end ? "/" : _entry.getPath().substring(0, end);
+        long[] counts = _summary.get(topLevel);
+        if (null == counts) {
+            counts = new long[3];
+            _summary.put(topLevel, counts);
+        }
+        if (_entry.getPath().endsWith("/")) {
+            ++counts[1];
+        } else {
+            ++counts[0];
+        }
+        counts[2] += _entry.getSize();
+    }
+
+    private static char toListingType(final char _type) {
+        switch (_type) {
+            case TarEntry.TYPE_DIRECTORY:
+                return 'd';
+            case TarEntry.TYPE_SYMLINK:
+                return 'l';
+            default:
+                return '-';
+        }
     }
 
-    private static boolean libraryExists(String _library) {
-        return new File("/qsys.lib/" + _library + ".lib").exists();
+    /** Replaces how connections to the host are made, for instance with a stand-in host */
+    void setHostSessionFactory(final HostSession.Factory _factory) {
+        m_sessionFactory = _factory;
     }
 
 }
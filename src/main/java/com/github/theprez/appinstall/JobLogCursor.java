@@ -0,0 +1,117 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.ibm.as400.access.AS400SecurityException;
+import com.ibm.as400.access.ErrorCompletingRequestException;
+import com.ibm.as400.access.JobLog;
+import com.ibm.as400.access.MessageQueue;
+import com.ibm.as400.access.ObjectDoesNotExistException;
+import com.ibm.as400.access.QueuedMessage;
+
+/**
+ * Reads a job log incrementally. The key of the last message seen is remembered, so each read lists only the messages
+ * logged since, rather than loading the whole (ever growing) job log to find out where it ended.
+ */
+public class JobLogCursor {
+
+    private long m_bytes = 0;
+    private final JobLog m_jobLog;
+    private byte[] m_lastKey = null;
+    private long m_messages = 0;
+    private long m_roundTrips = 0;
+
+    public JobLogCursor(final JobLog _jobLog) throws IOException {
+        m_jobLog = _jobLog;
+        // only the message text is used, so don't have the host send anything else
+        m_jobLog.clearAttributesToRetrieve();
+        m_jobLog.addAttributeToRetrieve(JobLog.MESSAGE);
+    }
+
+    /** @return the approximate number of bytes of message data received so far */
+    public long getBytes() {
+        return m_bytes;
+    }
+
+    /** @return the number of messages received so far */
+    public long getMessageCount() {
+        return m_messages;
+    }
+
+    /** @return the number of host requests made so far */
+    public long getRoundTrips() {
+        return m_roundTrips;
+    }
+
+    /**
+     * Moves the cursor to the end of the job log, so that the next {@link #readNew()} returns only messages logged after
+     * this call. Only the newest message is fetched.
+     */
+    public void mark() throws IOException {
+        try {
+            m_jobLog.setListDirection(false);
+            m_jobLog.setStartingMessageKey(MessageQueue.NEWEST);
+            final List<QueuedMessage> newest = list(1);
+            m_lastKey = newest.isEmpty() ? MessageQueue.OLDEST : newest.get(0).getKey();
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException | ObjectDoesNotExistException e) {
+            throw new IOException("Error reading job log", e);
+        }
+    }
+
+    /**
+     * @return the messages logged since the last read (or {@link #mark()}), oldest first
+     */
+    public List<QueuedMessage> readNew() throws IOException {
+        if (null == m_lastKey) {
+            mark();
+            return Collections.emptyList();
+        }
+        try {
+            m_jobLog.setListDirection(true);
+            m_jobLog.setStartingMessageKey(m_lastKey);
+            final List<QueuedMessage> ret = list(Integer.MAX_VALUE);
+            // the list starts at (and includes) the last message we already saw, unless it has been wrapped away since
+            if (!ret.isEmpty() && Arrays.equals(m_lastKey, ret.get(0).getKey())) {
+                ret.remove(0);
+            }
+            if (!ret.isEmpty()) {
+                m_lastKey = ret.get(ret.size() - 1).getKey();
+            }
+            return ret;
+        } catch (final ObjectDoesNotExistException e) {
+            // the job log wrapped past our position; start over from its end
+            mark();
+            return Collections.emptyList();
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException e) {
+            throw new IOException("Error reading job log", e);
+        }
+    }
+
+    private List<QueuedMessage> list(final int _max) throws AS400SecurityException, ErrorCompletingRequestException, InterruptedException, IOException, ObjectDoesNotExistException {
+        try {
+            m_jobLog.load();
+            ++m_roundTrips;
+            final int length = Math.min(_max, m_jobLog.getLength());
+            if (0 >= length) {
+                return new LinkedList<QueuedMessage>();
+            }
+            final QueuedMessage[] msgs = m_jobLog.getMessages(0, length);
+            ++m_roundTrips;
+            for (final QueuedMessage msg : msgs) {
+                m_bytes += msg.getKey().length + (null == msg.getID() ? 0 : msg.getID().length());
+                m_bytes += null == msg.getText() ? 0 : msg.getText().getBytes(StandardCharsets.UTF_8).length;
+            }
+            m_messages += msgs.length;
+            return new LinkedList<QueuedMessage>(Arrays.asList(msgs));
+        } finally {
+            // don't leave the list open on the host
+            m_jobLog.close();
+            ++m_roundTrips;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.github.theprez.appinstall;
+
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.github.theprez.jcmdutils.AppLogger;
+import com.github.theprez.jcmdutils.AppLogger.DefaultLogger;
+import com.github.theprez.jcmdutils.ProcessLauncher;
+import com.github.theprez.jcmdutils.StringUtils;
+import com.ibm.as400.access.AS400;
+import com.ibm.as400.access.AS400JDBCDriver;
+import com.ibm.as400.access.AS400Message;
+import com.ibm.as400.access.AS400SecurityException;
+import com.ibm.as400.access.CommandCall;
+import com.ibm.as400.access.ErrorCompletingRequestException;
+import com.ibm.as400.access.IFSFile;
+import com.ibm.as400.access.IFSFileInputStream;
+import com.ibm.as400.access.IFSFileOutputStream;
+import com.ibm.as400.access.Job;
+import com.ibm.as400.access.ObjectDescription;
+import com.ibm.as400.access.ObjectDoesNotExistException;
+import com.ibm.as400.access.ObjectList;
+import com.ibm.as400.access.QueuedMessage;
+import com.ibm.as400.access.SystemStatus;
+
+/**
+ * {@link HostSession} backed by a jt400 {@link AS400} connection and its remote command server job. The session is
+ * long-lived: its {@link CommandCall} and job-log cursor are set up once, on first use, and reused by every command after.
+ */
+public class Jt400HostSession implements HostSession {
+    private static final int SETCCSID_BATCH_CHARS = 1024 * 32;
+
+    private final AS400 m_as400;
+    private CommandCall m_cmd = null;
+    private JobLogCursor m_jobLog = null;
+    private final AppLogger m_logger;
+    private Connection m_sql = null;
+
+    public Jt400HostSession(final AppLogger _logger, final AS400 _as400) {
+        m_logger = _logger;
+        m_as400 = _as400;
+    }
+
+    @Override
+    public void close() {
+        if (null != m_sql) {
+            try {
+                m_sql.close();
+            } catch (final SQLException e) {
+                m_logger.exception(e);
+            }
+        }
+        m_as400.disconnectAllServices();
+    }
+
+    /**
+     * Takes a single SQL query, of {@code QSYS2.IFS_OBJECT_STATISTICS}. Where that service isn't available, the
+     * directory is listed and each entry's CCSID looked up in turn.
+     */
+    @Override
+    public Map<String, Integer> describeCcsids(final String _dir) throws IOException {
+        final Map<String, Integer> ret = new TreeMap<String, Integer>();
+        final PerfRecorder.Span query = PerfRecorder.getSingleton().start("host", "ccsids").addRoundTrips(1);
+        try {
+            try (PreparedStatement stmt = getSql().prepareStatement("SELECT PATH_NAME, CCSID FROM TABLE (QSYS2.IFS_OBJECT_STATISTICS(START_PATH_NAME => ?, SUBTREE_DIRECTORIES => 'NO'))")) {
+                stmt.setString(1, _dir);
+                try (ResultSet rows = stmt.executeQuery()) {
+                    while (rows.next()) {
+                        ret.put(rows.getString(1), rows.getInt(2));
+                    }
+                }
+            }
+            return ret;
+        } catch (final SQLException e) {
+            m_logger.printfln_verbose("Could not query the CCSIDs in '%s' (%s), looking them up one at a time", _dir, e.getLocalizedMessage());
+        } finally {
+            query.close();
+        }
+        final IFSFile dir = new IFSFile(m_as400, _dir);
+        ret.put(_dir, dir.getCCSID());
+        for (final IFSFile f : dir.listFiles()) {
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "ccsid").addRoundTrips(1);
+            try {
+                ret.put(f.getPath(), f.getCCSID());
+            } finally {
+                span.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Takes a single SQL query for the whole set, of {@code QSYS2.OBJECT_STATISTICS} and {@code QSYS2.OBJECT_LOCK_INFO}.
+     * Where those services aren't available, every library on the system is listed (one round trip), and the locks on
+     * each library in the set looked up in turn (one round trip apiece).
+     */
+    @Override
+    public Map<String, Integer> describeLibraries(final Collection<String> _libraries) throws IOException {
+        final Set<String> wanted = new TreeSet<String>();
+        for (final String library : _libraries) {
+            wanted.add(library.toUpperCase());
+        }
+        final Map<String, Integer> ret = new TreeMap<String, Integer>();
+        if (wanted.isEmpty()) {
+            return ret;
+        }
+        final PerfRecorder.Span query = PerfRecorder.getSingleton().start("host", "list libraries").addRoundTrips(1);
+        try {
+            final String sql = "SELECT O.OBJNAME, (SELECT COUNT(*) FROM QSYS2.OBJECT_LOCK_INFO L WHERE L.SYSTEM_OBJECT_SCHEMA = 'QSYS' AND L.SYSTEM_OBJECT_NAME = O.OBJNAME AND L.OBJECT_TYPE = '*LIB')"
+                    + " FROM TABLE (QSYS2.OBJECT_STATISTICS('QSYS', '*LIB')) O WHERE O.OBJNAME IN (" + String.join(", ", Collections.nCopies(wanted.size(), "?")) + ")";
+            try (PreparedStatement stmt = getSql().prepareStatement(sql)) {
+                int i = 0;
+                for (final String library : wanted) {
+                    stmt.setString(++i, library);
+                }
+                try (ResultSet rows = stmt.executeQuery()) {
+                    while (rows.next()) {
+                        ret.put(rows.getString(1).trim(), rows.getInt(2));
+                    }
+                }
+            }
+            return ret;
+        } catch (final SQLException e) {
+            m_logger.printfln_verbose("Could not query libraries (%s), listing them instead", e.getLocalizedMessage());
+        } finally {
+            query.close();
+        }
+        final ObjectList list = new ObjectList(m_as400, "QSYS", ObjectList.ALL, "*LIB");
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "list libraries").addRoundTrips(1);
+        try {
+            try {
+                list.load();
+                for (final ObjectDescription obj : list.getObjects(0, list.getLength())) {
+                    if (wanted.contains(obj.getName())) {
+                        span.addRoundTrips(1);
+                        ret.put(obj.getName(), obj.getObjectLockList().length);
+                    }
+                }
+            } finally {
+                list.close();
+            }
+            return ret;
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException | ObjectDoesNotExistException e) {
+            throw new IOException("Error listing libraries", e);
+        } finally {
+            span.close();
+        }
+    }
+
+    @Override
+    public List<String> describeObjects(final String _library) throws IOException {
+        final ObjectList list = new ObjectList(m_as400, _library, ObjectList.ALL, ObjectList.ALL);
+        list.addObjectAttributeToRetrieve(ObjectDescription.EXTENDED_ATTRIBUTE);
+        list.addObjectAttributeToRetrieve(ObjectDescription.CHANGE_DATE);
+        list.addObjectAttributeToRetrieve(ObjectDescription.OBJECT_SIZE);
+        final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "list " + _library).addRoundTrips(1);
+        try {
+            try {
+                list.load();
+                final List<String> ret = new LinkedList<String>();
+                for (final ObjectDescription obj : list.getObjects(0, list.getLength())) {
+                    final Date changed = (Date) obj.getValue(ObjectDescription.CHANGE_DATE);
+                    ret.add(obj.getName() + " " + obj.getType() + " " + obj.getValueAsString(ObjectDescription.EXTENDED_ATTRIBUTE) + " " + (null == changed ? 0 : changed.getTime()) + " "
+                            + obj.getValueAsString(ObjectDescription.OBJECT_SIZE));
+                }
+                return ret;
+            } finally {
+                list.close();
+            }
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException | ObjectDoesNotExistException e) {
+            throw new IOException("Error listing objects in library " + _library, e);
+        } finally {
+            span.close();
+        }
+    }
+
+    @Override
+    public long getFreeAspBytes() throws IOException {
+        try {
+            final SystemStatus status = new SystemStatus(m_as400);
+            return (long) (status.getSystemASP() * 1048576L * (100 - status.getPercentSystemASPUsed()) / 100);
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException | ObjectDoesNotExistException e) {
+            throw new IOException("Error retrieving system status", e);
+        }
+    }
+
+    /** @return the session's SQL connection, opened the first time only */
+    private Connection getSql() throws SQLException {
+        if (null == m_sql) {
+            m_sql = new AS400JDBCDriver().connect(m_as400);
+        }
+        return m_sql;
+    }
+
+    public AS400 getSystem() {
+        return m_as400;
+    }
+
+    @Override
+    public InputStream openSaveFile(final String _library, final String _name) throws IOException {
+        try {
+            return new IFSFileInputStream(m_as400, "/QSYS.LIB/" + _library + ".LIB/" + _name + ".FILE", IFSFileInputStream.SHARE_READERS);
+        } catch (final AS400SecurityException e) {
+            throw new IOException("Not authorized to read save file " + _library + "/" + _name, e);
+        }
+    }
+
+    @Override
+    public synchronized List<String> readJobLog() throws IOException {
+        final List<String> ret = new LinkedList<String>();
+        if (null == m_jobLog) {
+            return ret; // nothing has run yet
+        }
+        for (final QueuedMessage msg : m_jobLog.readNew()) {
+            if (AS400Message.INFORMATIONAL != msg.getType()) {
+                ret.add(msg.getID() + ": " + msg.getText());
+            }
+        }
+        return ret;
+    }
+
+    /** Sets up the command call, its server job and the job-log cursor, the first time only */
+    private CommandCall prepare() throws AS400SecurityException, ErrorCompletingRequestException, InterruptedException, IOException, ObjectDoesNotExistException, PropertyVetoException {
+        if (null == m_cmd) {
+            final CommandCall cmd = new CommandCall(m_as400);
+            cmd.setMessageOption(AS400Message.MESSAGE_OPTION_ALL);
+            cmd.getServerJob().setLoggingCLPrograms(Job.LOG_CL_PROGRAMS_YES);
+            final JobLogCursor jobLog = new JobLogCursor(cmd.getServerJob().getJobLog());
+            jobLog.mark();
+            m_jobLog = jobLog;
+            m_cmd = cmd;
+        }
+        return m_cmd;
+    }
+
+    @Override
+    public synchronized void runCommand(final String _cmd, final boolean _isOkToFail) throws IOException {
+        try (PerfRecorder.Span span = PerfRecorder.getSingleton().start("cl", _cmd.trim().split("\\s+", 2)[0].toUpperCase())) {
+            m_logger.printfln_verbose("Running CL command '%s'", _cmd);
+            final CommandCall cmd = prepare();
+            final long roundTrips = m_jobLog.getRoundTrips();
+            final long bytes = m_jobLog.getBytes();
+            final boolean isSuccess = cmd.run(_cmd);
+
+            final AS400Message[] msgs = cmd.getMessageList();
+            for (final AS400Message msg : msgs) {
+                if (StringUtils.isEmpty(msg.getID())) {
+                    m_logger.printfln("    %s", msg.getText());
+                }
+            }
+            try {
+                for (final String jobLogMsg : readJobLog()) {
+                    m_logger.printfln("    %s", jobLogMsg);
+                }
+            } catch (final Exception e) {
+                m_logger.exception(e);
+            }
+            m_logger.printfln_verbose("    (job log: %d round trips, %d bytes)", m_jobLog.getRoundTrips() - roundTrips, m_jobLog.getBytes() - bytes);
+            span.addRoundTrips(1 + m_jobLog.getRoundTrips() - roundTrips).addBytes(m_jobLog.getBytes() - bytes);
+            if (!isSuccess && !_isOkToFail) {
+                throw new IOException("Error running command");
+            }
+        } catch (AS400SecurityException | ErrorCompletingRequestException | InterruptedException | ObjectDoesNotExistException | PropertyVetoException e) {
+            throw new IOException("Error running command", e);
+        }
+    }
+
+    /**
+     * The installer runs on the host it installs to, so this runs setccsid over batches of paths, where tagging each one
+     * through the connection would take a round trip apiece
+     */
+    @Override
+    public void setCcsid(final int _ccsid, final List<String> _paths) throws IOException {
+        final Iterator<String> paths = _paths.iterator();
+        while (paths.hasNext()) {
+            final List<String> cmd = new LinkedList<String>();
+            cmd.add("/QOpenSys/usr/bin/setccsid");
+            cmd.add(String.valueOf(_ccsid));
+            int chars = 0;
+            while (paths.hasNext() && SETCCSID_BATCH_CHARS > chars) {
+                final String path = paths.next();
+                cmd.add(path);
+                chars += path.length() + 1;
+            }
+            m_logger.printfln_verbose("Tagging %d stream files with CCSID %d", cmd.size() - 2, _ccsid);
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "setccsid");
+            try {
+                final Process p = new ProcessBuilder(cmd).start();
+                ProcessLauncher.pipeStreamsToCurrentProcess("SETCCSID", p, new DefaultLogger(true));
+                if (0 != p.waitFor()) {
+                    throw new IOException("Could not set the CCSID of stream files to " + _ccsid);
+                }
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted while setting the CCSID of stream files", e);
+            } finally {
+                span.close();
+            }
+        }
+    }
+
+    @Override
+    public OutputStream writeSaveFile(final String _library, final String _name) throws IOException {
+        try {
+            return new IFSFileOutputStream(m_as400, "/QSYS.LIB/" + _library + ".LIB/" + _name + ".FILE", IFSFileOutputStream.SHARE_NONE, false);
+        } catch (final AS400SecurityException e) {
+            throw new IOException("Not authorized to write save file " + _library + "/" + _name, e);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.theprez.appinstall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * The per-file index of a package's stream files. It is kept out of the YAML manifest, as a compact binary entry
+ * ({@value #ENTRY_NAME}), so that it can be streamed one record at a time, however many files the package holds. Each
+ * record holds the path (sharing its prefix with the path before it), the type, size and CCSID of the file, where its
+ * entry starts in the stream files archive, and its fingerprint. A delta package also records the files it deletes, as
+ * {@link #TYPE_DELETED} records.
+ */
+public class ManifestIndex {
+    static final String ENTRY_NAME = "APPINSTALL-INF/index.bin";
+    /** The type of a record for a file that a delta package deletes, as it is no longer part of the application */
+    public static final char TYPE_DELETED = 'x';
+    private static final int FINGERPRINT_SIZE = 32;
+    private static final int MAGIC = 0x41495831; // "AIX1"
+
+    /** A single stream file */
+    public static class Entry {
+        private final int m_ccsid;
+        private final byte[] m_fingerprint;
+        private final long m_offset;
+        private final String m_path;
+        private final long m_size;
+        private final char m_type;
+
+        /**
+         * @param _path        the path, as {@link TarEntry#getHashKey()}
+         * @param _offset      where the entry starts in the stream files archive, or -1 if the archive doesn't carry it
+         *                     (unchanged in a delta package)
+         * @param _fingerprint as {@link TarEntry#getFingerprint(byte[])}, hex-encoded
+         */
+        Entry(final TarEntry _entry, final long _offset, final String _fingerprint) {
+            this(_entry.getHashKey(), _entry.getType(), _entry.getSize(), _offset, _entry.getCcsid(), fromHex(_fingerprint));
+        }
+
+        private Entry(final String _path, final char _type, final long _size, final long _offset, final int _ccsid, final byte[] _fingerprint) {
+            m_path = _path;
+            m_type = _type;
+            m_size = _size;
+            m_offset = _offset;
+            m_ccsid = _ccsid;
+            m_fingerprint = _fingerprint;
+        }
+
+        /** @return the CCSID tag of the file, or -1 if none was recorded */
+        public int getCcsid() {
+            return m_ccsid;
+        }
+
+        /** @return the hex-encoded fingerprint, as {@link TarEntry#getFingerprint(byte[])} */
+        public String getFingerprint() {
+            return PackageConfiguration.toHex(m_fingerprint);
+        }
+
+        /** @return where the entry starts in the stream files archive, or -1 if the archive doesn't carry it */
+        public long getOffset() {
+            return m_offset;
+        }
+
+        /** @return the absolute path, with a trailing '/' for directories */
+        public String getPath() {
+            return m_path;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        /** @return the tar entry type ({@link TarEntry#TYPE_FILE}, etc), or {@link ManifestIndex#TYPE_DELETED} */
+        public char getType() {
+            return m_type;
+        }
+
+        public boolean isDeleted() {
+            return TYPE_DELETED == m_type;
+        }
+    }
+
+    /** Streams the records of an index, verifying the digest of the whole index at the end */
+    public static class Reader implements Closeable {
+        private final DigestInputStream m_digestIn;
+        private final String m_expectedDigest;
+        private final InputStream m_in;
+        private String m_lastPath = "";
+
+        /** @param _expectedDigest the digest recorded in the manifest, or {@code null} to skip verification */
+        public Reader(final InputStream _in, final String _expectedDigest) throws IOException {
+            m_digestIn = new DigestInputStream(new BufferedInputStream(_in, 1024 * 64), PackageConfiguration.newDigest());
+            m_in = m_digestIn;
+            m_expectedDigest = _expectedDigest;
+            if (MAGIC != (readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte())) {
+                throw new IOException("Invalid package index");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+
+        /** @return the next record, or {@code null} at the end of the index */
+        public Entry next() throws IOException {
+            final int first = m_in.read();
+            if (0 > first) {
+                if (null != m_expectedDigest && !m_expectedDigest.equalsIgnoreCase(PackageConfiguration.toHex(m_digestIn.getMessageDigest().digest()))) {
+                    throw new IOException("Checksum mismatch for the package index. The install package is corrupt.");
+                }
+                return null;
+            }
+            final int shared = (int) readVarLong(first);
+            final byte[] suffix = readFully(new byte[(int) readVarLong(readByte())]);
+            final String path = m_lastPath.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+            final char type = (char) readByte();
+            final long size = readVarLong(readByte());
+            final long offset = readVarLong(readByte()) - 1;
+            final int ccsid = (int) readVarLong(readByte()) - 1;
+            final byte[] fingerprint = readFully(new byte[FINGERPRINT_SIZE]);
+            m_lastPath = path;
+            return new Entry(path, type, size, offset, ccsid, fingerprint);
+        }
+
+        private int readByte() throws IOException {
+            final int ret = m_in.read();
+            if (0 > ret) {
+                throw new EOFException("Package index is truncated");
+            }
+            return ret;
+        }
+
+        private byte[] readFully(final byte[] _buf) throws IOException {
+            int off = 0;
+            while (off < _buf.length) {
+                final int bytesRead = m_in.read(_buf, off, _buf.length - off);
+                if (0 > bytesRead) {
+                    throw new EOFException("Package index is truncated");
+                }
+                off += bytesRead;
+            }
+            return _buf;
+        }
+
+        private long readVarLong(final int _first) throws IOException {
+            long ret = _first & 0x7f;
+            int b = _first;
+            for (int shift = 7; 0 != (b & 0x80); shift += 7) {
+                b = readByte();
+                ret |= (long) (b & 0x7f) << shift;
+            }
+            return ret;
+        }
+    }
+
+    /** Writes the records of an index, in whatever order they're added (sorted order compresses best) */
+    public static class Writer {
+        private final MessageDigest m_digest = PackageConfiguration.newDigest();
+        private long m_entryCount = 0;
+        private String m_lastPath = "";
+        private final OutputStream m_out;
+
+        /** @param _out where the index is written. It is not closed by {@link #finish()}. */
+        public Writer(final OutputStream _out) throws IOException {
+            m_out = new BufferedOutputStream(new DigestOutputStream(_out, m_digest), 1024 * 64);
+            m_out.write(new byte[] { (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC });
+        }
+
+        public void add(final Entry _entry) throws IOException {
+            int shared = 0;
+            final int max = Math.min(m_lastPath.length(), _entry.m_path.length());
+            while (shared < max && m_lastPath.charAt(shared) == _entry.m_path.charAt(shared)) {
+                ++shared;
+            }
+            if (0 < shared && Character.isHighSurrogate(_entry.m_path.charAt(shared - 1))) {
+                --shared; // don't split a surrogate pair
+            }
+            final byte[] suffix = _entry.m_path.substring(shared).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(shared);
+            writeVarLong(suffix.length);
+            m_out.write(suffix);
+            m_out.write(_entry.m_type);
+            writeVarLong(_entry.m_size);
+            writeVarLong(_entry.m_offset + 1);
+            writeVarLong(Math.max(-1, _entry.m_ccsid) + 1);
+            m_out.write(_entry.m_fingerprint);
+            m_lastPath = _entry.m_path;
+            ++m_entryCount;
+        }
+
+        /**
+         * Flushes the index out
+         *
+         * @return the hex-encoded {@value PackageConfiguration#DIGEST_ALGORITHM} digest of the index
+         */
+        public String finish() throws IOException {
+            m_out.flush();
+            return PackageConfiguration.toHex(m_digest.digest());
+        }
+
+        public long getEntryCount() {
+            return m_entryCount;
+        }
+
+        private void writeVarLong(final long _value) throws IOException {
+            long value = _value;
+            while (0 != (value & ~0x7fL)) {
+                m_out.write((int) (0x80 | (value & 0x7f)));
+                value >>>= 7;
+            }
+            m_out.write((int) value);
+        }
+    }
+
+    /** @return a record for a file that a delta package deletes */
+    static Entry deleted(final String _path) {
+        return new Entry(_path, TYPE_DELETED, 0, -1, -1, new byte[FINGERPRINT_SIZE]);
+    }
+
+    private static byte[] fromHex(final String _hex) {
+        final byte[] ret = new byte[_hex.length() / 2];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = (byte) Integer.parseInt(_hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ret;
+    }
+}
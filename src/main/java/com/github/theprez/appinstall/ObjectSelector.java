@@ -0,0 +1,164 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selects some of the objects of a library (by name, which may be generic, as in {@code PGM*}, by type, and by when they
+ * last changed), to be packaged on their own rather than the whole library. Objects are selected from the descriptions of
+ * {@link HostSession#describeObjects(String)}, and saved in groups, each of a single type (so that SAVOBJ takes just the
+ * objects selected) and of no more objects than a SAVOBJ can take.
+ */
+public class ObjectSelector {
+    /** The most objects a single SAVOBJ can list */
+    static final int MAX_GROUP_SIZE = 300;
+
+    /** A group of objects, all of one type, to be saved together */
+    public static class Group {
+        private final List<String> m_descriptions = new LinkedList<String>();
+        private final List<String> m_names = new LinkedList<String>();
+        private final String m_type;
+
+        Group(final String _type) {
+            m_type = _type;
+        }
+
+        /** @return the descriptions of the objects, which change whenever any of them does */
+        public List<String> getDescriptions() {
+            return m_descriptions;
+        }
+
+        public List<String> getNames() {
+            return m_names;
+        }
+
+        /** @return the type, with its leading '*' (as in {@code *PGM}) */
+        public String getType() {
+            return m_type;
+        }
+    }
+
+    /**
+     * @param _selector <library>/<names>[:<types>][@<changed since>], where names and types are separated by commas, for
+     *                  example {@code MYLIB/PGMA,PGMB,SRV*:*PGM,*SRVPGM@2026-10-01} (see {@link #parseTime(String)})
+     */
+    public static ObjectSelector parse(final String _selector) throws IOException {
+        final String[] selectorAndTime = _selector.trim().split("@", 2);
+        final String[] libraryAndObjects = selectorAndTime[0].split("/", 2);
+        if (2 != libraryAndObjects.length || libraryAndObjects[0].isEmpty() || libraryAndObjects[1].isEmpty()) {
+            throw new IOException("Invalid object selector '" + _selector + "' (expected <library>/<names>[:<types>][@<changed since>])");
+        }
+        final String[] namesAndTypes = libraryAndObjects[1].split(":", 2);
+        return new ObjectSelector(libraryAndObjects[0], Arrays.asList(namesAndTypes[0].split(",")), 2 == namesAndTypes.length ? Arrays.asList(namesAndTypes[1].split(",")) : new LinkedList<String>(),
+                2 == selectorAndTime.length ? parseTime(selectorAndTime[1]) : 0);
+    }
+
+    /**
+     * @return the time, in milliseconds, of a date ({@code yyyy-mm-dd}) or date and time ({@code yyyy-mm-ddThh:mm[:ss]}),
+     *         in the local time zone
+     */
+    public static long parseTime(final String _time) throws IOException {
+        try {
+            final LocalDateTime time = _time.contains("T") ? LocalDateTime.parse(_time.trim()) : LocalDate.parse(_time.trim()).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (final DateTimeParseException e) {
+            throw new IOException("Invalid date '" + _time + "' (expected yyyy-mm-dd or yyyy-mm-ddThh:mm)");
+        }
+    }
+
+    private static String toType(final String _type) {
+        final String ret = _type.trim().toUpperCase();
+        return ret.startsWith("*") ? ret : "*" + ret;
+    }
+
+    private final long m_changedSince;
+    private final String m_library;
+    private final List<String> m_names = new ArrayList<String>();
+    private final List<String> m_types = new ArrayList<String>();
+
+    /**
+     * @param _names        object names, of which any may be generic (ending in '*'), or none for every object
+     * @param _types        object types (with or without their leading '*'), or none for every type
+     * @param _changedSince the time (in milliseconds) an object must have changed since to be selected, or 0
+     */
+    public ObjectSelector(final String _library, final List<String> _names, final List<String> _types, final long _changedSince) throws IOException {
+        m_library = _library.trim().toUpperCase();
+        for (final String name : _names) {
+            final String trimmed = name.trim().toUpperCase();
+            if ("*ALL".equals(trimmed)) {
+                continue;
+            }
+            if (trimmed.isEmpty() || (trimmed.indexOf('*') >= 0 && trimmed.indexOf('*') != trimmed.length() - 1)) {
+                throw new IOException("Invalid object name '" + name + "' for library " + m_library);
+            }
+            m_names.add(trimmed);
+        }
+        for (final String type : _types) {
+            if (!"*ALL".equalsIgnoreCase(type.trim())) {
+                m_types.add(toType(type));
+            }
+        }
+        m_changedSince = _changedSince;
+    }
+
+    public String getLibrary() {
+        return m_library;
+    }
+
+    /**
+     * Selects objects and groups them for saving
+     *
+     * @param _descriptions the descriptions of every object in the library, as given by
+     *                      {@link HostSession#describeObjects(String)}
+     */
+    public List<Group> select(final List<String> _descriptions) {
+        final Map<String, List<Group>> byType = new TreeMap<String, List<Group>>();
+        for (final String description : _descriptions) {
+            final String[] fields = description.split(" ");
+            final String name = fields[0].toUpperCase();
+            final String type = toType(fields[1]);
+            final long changed = 3 < fields.length ? Long.parseLong(fields[3]) : 0;
+            if (!isNameSelected(name) || (!m_types.isEmpty() && !m_types.contains(type)) || changed < m_changedSince) {
+                continue;
+            }
+            final List<Group> groups = byType.computeIfAbsent(type, _t -> new LinkedList<Group>());
+            if (groups.isEmpty() || MAX_GROUP_SIZE <= groups.get(groups.size() - 1).m_names.size()) {
+                groups.add(new Group(type));
+            }
+            final Group group = groups.get(groups.size() - 1);
+            group.m_names.add(name);
+            group.m_descriptions.add(description);
+        }
+        final List<Group> ret = new LinkedList<Group>();
+        for (final List<Group> groups : byType.values()) {
+            ret.addAll(groups);
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return m_library + "/" + (m_names.isEmpty() ? "*ALL" : String.join(",", m_names)) + (m_types.isEmpty() ? "" : ":" + String.join(",", m_types));
+    }
+
+    private boolean isNameSelected(final String _name) {
+        if (m_names.isEmpty()) {
+            return true;
+        }
+        for (final String name : m_names) {
+            if (name.endsWith("*") ? _name.startsWith(name.substring(0, name.length() - 1)) : _name.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,43 +1,154 @@
 package com.github.theprez.appinstall;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-
-import org.yaml.snakeyaml.Yaml;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.github.theprez.jcmdutils.AppLogger;
 
 public class PackageConfiguration {
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(final byte[] _bytes) {
+        final StringBuilder ret = new StringBuilder(_bytes.length * 2);
+        for (final byte b : _bytes) {
+            ret.append(Character.forDigit(0xf & (b >> 4), 16)).append(Character.forDigit(0xf & b, 16));
+        }
+        return ret.toString();
+    }
 
-    private final List<String> m_commands;
-    private final List<String> m_files;
     private final AppLogger m_logger;
+    private final PackageManifest m_manifest;
+    private final File m_packageFile;
 
+    /** The configuration of the package we are running from */
     public PackageConfiguration(final AppLogger _logger) throws IOException {
+        this(_logger, ExtractionTask.getPackageFile());
+    }
+
+    /** The configuration of a package, which need not be the one we are running from */
+    PackageConfiguration(final AppLogger _logger, final File _packageFile) throws IOException {
         m_logger = _logger;
+        m_packageFile = _packageFile;
         m_logger.println("Opening package manifest...");
-        final InputStream yamlStream = PackageConfiguration.class.getClassLoader().getResourceAsStream("APPINSTALL-INF/manifest.yml");
-        if (null == yamlStream) {
-            throw new IOException("Package manifest not found!");
-        }
-        m_logger.println("Processing package manifest...");
-        try {
-            final Map<String, Object> yaml = new Yaml().load(yamlStream);
-            m_files = (List<String>) yaml.remove("files");
-            m_commands = (List<String>) yaml.remove("commands");
-            m_logger.println_success("Successfully processed package manifest");
-        } catch (final Exception e) {
-            throw new IOException("Invalid package manifest: " + e.getLocalizedMessage(), e);
+        try (ZipFile pkg = new ZipFile(_packageFile)) {
+            final ZipEntry entry = pkg.getEntry(PackageManifest.ENTRY_NAME);
+            if (null == entry) {
+                throw new IOException("Package manifest not found!");
+            }
+            m_logger.println("Processing package manifest...");
+            try (InputStream in = pkg.getInputStream(entry)) {
+                m_manifest = PackageManifest.read(in);
+            }
         }
+        m_logger.println_success("Successfully processed package manifest");
+    }
+
+    /** @return the id of the package this one is a delta against, or {@code null} if it is a full package */
+    public String getBaseId() {
+        return m_manifest.getBaseId();
     }
 
     public List<String> getCommands() {
-        return m_commands;
+        return m_manifest.getCommands();
+    }
+
+    /**
+     * @return for a delta package, the number of stream files to delete, since they are no longer part of the application
+     *         (see {@link #openIndex()})
+     */
+    public long getDeletedCount() {
+        return m_manifest.getDeletedCount();
+    }
+
+    /**
+     * @return the hex-encoded {@value #DIGEST_ALGORITHM} digest of a packaged file, or {@code null} if the package predates
+     *         digests
+     */
+    public String getDigest(final String _file) {
+        return m_manifest.getDigests().get(_file);
+    }
+
+    /**
+     * @return the packaged files that must be installed before the given one. Packages that predate ordering constraints
+     *         are installed strictly in order.
+     */
+    public List<String> getPrerequisites(final String _file) {
+        final Map<String, List<String>> after = m_manifest.getAfter();
+        if (null == after) {
+            final int index = getFiles().indexOf(_file);
+            return 0 > index ? Collections.<String> emptyList() : getFiles().subList(0, index);
+        }
+        final List<String> ret = after.get(_file);
+        return null == ret ? Collections.<String> emptyList() : ret;
     }
 
     public List<String> getFiles() {
-        return m_files;
+        return m_manifest.getFiles();
+    }
+
+    /** @return the unique id of the package */
+    public String getId() {
+        return m_manifest.getId();
+    }
+
+    /** @return the package file, which payload volumes are found alongside */
+    public File getPackageFile() {
+        return m_packageFile;
+    }
+
+    /** @return the number of records in the package index, or -1 if the package has none */
+    public long getIndexEntries() {
+        return m_manifest.getIndexEntries();
+    }
+
+    /** @return the payload volumes of a split package, or an empty list if every file is inside the package jar */
+    public List<PackageVolume> getVolumes() {
+        return m_manifest.getVolumes();
+    }
+
+    /**
+     * Starts streaming the package index, a record per stream file (and, for a delta package, per file to delete). Nothing
+     * of it is held in memory beyond the record being read.
+     *
+     * @return the index, or {@code null} if the package has none
+     */
+    public ManifestIndex.Reader openIndex() throws IOException {
+        if (null == m_manifest.getIndexDigest()) {
+            return null;
+        }
+        final ZipFile pkg = new ZipFile(m_packageFile);
+        final ZipEntry entry = pkg.getEntry(ManifestIndex.ENTRY_NAME);
+        if (null == entry) {
+            pkg.close();
+            throw new IOException("Package index not found!");
+        }
+        // the package is closed along with the index
+        return new ManifestIndex.Reader(new FilterInputStream(pkg.getInputStream(entry)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    pkg.close();
+                }
+            }
+        }, m_manifest.getIndexDigest());
     }
 }
@@ -0,0 +1,221 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The package manifest ({@value #ENTRY_NAME}): the human-readable YAML header of a package, listing what is in it and how
+ * to install it. Per-file data is kept out of it, in the {@link ManifestIndex}, so that it stays small however many files
+ * the package holds.
+ */
+public class PackageManifest {
+    static final String ENTRY_NAME = "APPINSTALL-INF/manifest.yml";
+
+    public static PackageManifest read(final InputStream _in) throws IOException {
+        try {
+            final Map<String, Object> yaml = toMap(new Yaml().load(_in), "the manifest");
+            final PackageManifest ret = new PackageManifest();
+            ret.m_files = toStrings(yaml.get("files"), "files");
+            ret.m_commands = toStrings(yaml.get("commands"), "commands");
+            final Map<String, Object> after = toMap(yaml.get("after"), "after");
+            if (null != after) {
+                ret.m_after = new LinkedHashMap<String, List<String>>();
+                for (final Map.Entry<String, Object> file : after.entrySet()) {
+                    ret.m_after.put(file.getKey(), toStrings(file.getValue(), "after"));
+                }
+            }
+            final Map<String, Object> digests = toMap(yaml.get("digests"), "digests");
+            if (null != digests) {
+                for (final Map.Entry<String, Object> digest : digests.entrySet()) {
+                    ret.m_digests.put(digest.getKey(), String.valueOf(digest.getValue()));
+                }
+            }
+            ret.m_id = (String) yaml.get("id");
+            final Map<String, Object> delta = toMap(yaml.get("delta"), "delta");
+            if (null != delta) {
+                ret.m_baseId = (String) delta.get("base");
+                ret.m_deletedCount = ((Number) delta.get("deleted")).longValue();
+            }
+            final List<?> volumes = toList(yaml.get("volumes"), "volumes");
+            if (null != volumes) {
+                for (final Object volume : volumes) {
+                    ret.m_volumes.add(PackageVolume.fromYaml(toMap(volume, "volumes")));
+                }
+            }
+            final Map<String, Object> index = toMap(yaml.get("index"), "index");
+            if (null != index) {
+                ret.m_indexEntries = ((Number) index.get("entries")).longValue();
+                ret.m_indexDigest = (String) index.get("digest");
+            }
+            return ret;
+        } catch (final Exception e) {
+            throw new IOException("Invalid package manifest: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /** @return a YAML list, or {@code null} if there is none */
+    static List<?> toList(final Object _yaml, final String _key) throws IOException {
+        if (null != _yaml && !(_yaml instanceof List)) {
+            throw new IOException("'" + _key + "' must be a list");
+        }
+        return (List<?>) _yaml;
+    }
+
+    /** @return a YAML map, with its keys taken as strings, or {@code null} if there is none */
+    static Map<String, Object> toMap(final Object _yaml, final String _key) throws IOException {
+        if (null == _yaml) {
+            return null;
+        }
+        if (!(_yaml instanceof Map)) {
+            throw new IOException("'" + _key + "' must be a map");
+        }
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) _yaml).entrySet()) {
+            ret.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return ret;
+    }
+
+    /** @return a YAML list of strings, or {@code null} if there is none */
+    static List<String> toStrings(final Object _yaml, final String _key) throws IOException {
+        final List<?> list = toList(_yaml, _key);
+        if (null == list) {
+            return null;
+        }
+        final List<String> ret = new ArrayList<String>(list.size());
+        for (final Object item : list) {
+            if (null == item || item instanceof Map || item instanceof List) {
+                throw new IOException("'" + _key + "' must be a list of strings");
+            }
+            ret.add(String.valueOf(item));
+        }
+        return ret;
+    }
+
+    private Map<String, List<String>> m_after = null;
+    private String m_baseId = null;
+    private List<String> m_commands = new ArrayList<String>();
+    private long m_deletedCount = 0;
+    private final Map<String, String> m_digests = new LinkedHashMap<String, String>();
+    private List<String> m_files = new ArrayList<String>();
+    private String m_id = null;
+    private String m_indexDigest = null;
+    private long m_indexEntries = -1;
+    private final List<PackageVolume> m_volumes = new ArrayList<PackageVolume>();
+
+    /**
+     * @return for each packaged file that can't be installed independently, the files that must be installed before it,
+     *         or {@code null} if the package predates ordering constraints (and is installed strictly in order)
+     */
+    public Map<String, List<String>> getAfter() {
+        return m_after;
+    }
+
+    /** @return the id of the package this one is a delta against, or {@code null} if it is a full package */
+    public String getBaseId() {
+        return m_baseId;
+    }
+
+    public List<String> getCommands() {
+        return m_commands;
+    }
+
+    /**
+     * @return for a delta package, the number of stream files that are no longer part of the application (listed in the
+     *         {@link ManifestIndex})
+     */
+    public long getDeletedCount() {
+        return m_deletedCount;
+    }
+
+    /** @return the hex-encoded {@value PackageConfiguration#DIGEST_ALGORITHM} digest of each packaged file */
+    public Map<String, String> getDigests() {
+        return m_digests;
+    }
+
+    public List<String> getFiles() {
+        return m_files;
+    }
+
+    /** @return the unique id of the package */
+    public String getId() {
+        return m_id;
+    }
+
+    /** @return the digest of the {@link ManifestIndex}, or {@code null} if the package has no index */
+    public String getIndexDigest() {
+        return m_indexDigest;
+    }
+
+    /** @return the number of records in the {@link ManifestIndex}, or -1 if the package has no index */
+    public long getIndexEntries() {
+        return m_indexEntries;
+    }
+
+    public List<PackageVolume> getVolumes() {
+        return m_volumes;
+    }
+
+    void setAfter(final Map<String, List<String>> _after) {
+        m_after = _after;
+    }
+
+    void setCommands(final List<String> _commands) {
+        m_commands = _commands;
+    }
+
+    void setDelta(final String _baseId, final long _deletedCount) {
+        m_baseId = _baseId;
+        m_deletedCount = _deletedCount;
+    }
+
+    void setFiles(final List<String> _files) {
+        m_files = _files;
+    }
+
+    void setId(final String _id) {
+        m_id = _id;
+    }
+
+    void setIndex(final long _entries, final String _digest) {
+        m_indexEntries = _entries;
+        m_indexDigest = _digest;
+    }
+
+    public void write(final Writer _out) throws IOException {
+        final Map<String, Object> yaml = new LinkedHashMap<String, Object>();
+        yaml.put("files", m_files);
+        yaml.put("commands", m_commands);
+        yaml.put("after", m_after);
+        yaml.put("digests", m_digests);
+        yaml.put("id", m_id);
+        if (null != m_indexDigest) {
+            final Map<String, Object> index = new LinkedHashMap<String, Object>();
+            index.put("entries", m_indexEntries);
+            index.put("digest", m_indexDigest);
+            yaml.put("index", index);
+        }
+        if (null != m_baseId) {
+            final Map<String, Object> delta = new LinkedHashMap<String, Object>();
+            delta.put("base", m_baseId);
+            delta.put("deleted", m_deletedCount);
+            yaml.put("delta", delta);
+        }
+        if (!m_volumes.isEmpty()) {
+            final List<Map<String, Object>> volumes = new ArrayList<Map<String, Object>>();
+            for (final PackageVolume volume : m_volumes) {
+                volumes.add(volume.toYaml());
+            }
+            yaml.put("volumes", volumes);
+        }
+        new Yaml().dump(yaml, _out);
+        _out.flush();
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Producer of a single APPINSTALL-DATA entry. Payloads write their content directly into the package as it is assembled,
+ * so nothing has to be staged in the build directory unless the producer itself needs it.
+ */
+public interface PackagePayload {
+    /** @return the entry name, relative to APPINSTALL-DATA */
+    String getName();
+
+    void writeTo(OutputStream _out) throws IOException;
+}
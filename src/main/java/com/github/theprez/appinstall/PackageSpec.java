@@ -0,0 +1,327 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * A package specification ({@code --spec}): the components of an application, listed in a YAML file rather than on the
+ * command line. For example:
+ *
+ * <pre>
+ * codec: deflate:6
+ * pre: scripts/preinstall.sh
+ * post: scripts/postinstall.sh
+ * components:
+ *   - library: MYAPP
+ *   - name: web
+ *     files: [ /www/myapp ]
+ *     exclude: [ '*.log', node_modules ]
+ *     after: [ MYAPP ]
+ *   - library: MYDATA
+ *     codec: store
+ *   - name: fixes
+ *     library: MYLIB
+ *     objects: [ PGMA, 'SRV*' ]
+ *     types: [ '*PGM', '*SRVPGM' ]
+ *     changed-since: 2026-10-01
+ * </pre>
+ *
+ * A component is a library ({@code library}, or only some of its objects, as selected by {@code objects}, {@code types}
+ * and {@code changed-since}: see {@link ObjectSelector}), or stream files ({@code files}, optionally filtered by
+ * {@code include} and {@code exclude} globs, and {@code dirs}, which are packaged without their content), or both. It may
+ * be compressed with a {@link Codec} of its own, and ordered after other components, which then have to be installed
+ * first. A component with no name is named after its library. Relative paths are taken from the directory of the spec
+ * file.
+ * <p>
+ * Reading a spec only parses and checks it (the components named and the order between them); nothing on the host is
+ * looked at until the package is built.
+ */
+public class PackageSpec {
+    private static final Set<String> COMPONENT_KEYS = new HashSet<String>(Arrays.asList("name", "library", "objects", "types", "changed-since", "files", "dirs", "include", "exclude", "codec", "after"));
+    private static final Set<String> KEYS = new HashSet<String>(Arrays.asList("codec", "lodrun", "pre", "post", "components"));
+
+    /** One component of an application */
+    public static class Component {
+        private final List<String> m_after = new LinkedList<String>();
+        private Codec m_codec = null;
+        private final List<String> m_dirs = new LinkedList<String>();
+        private final List<String> m_excludes = new LinkedList<String>();
+        private final List<String> m_files = new LinkedList<String>();
+        private final List<String> m_includes = new LinkedList<String>();
+        private String m_library = null;
+        private String m_name = null;
+        private ObjectSelector m_objects = null;
+
+        /** @return the names of the components to be installed before this one */
+        public List<String> getAfter() {
+            return m_after;
+        }
+
+        /** @return the codec of this component, or {@code null} for that of the package */
+        public Codec getCodec() {
+            return m_codec;
+        }
+
+        /** @return the directories that are packaged without their content, as absolute paths */
+        public List<String> getDirs() {
+            return m_dirs;
+        }
+
+        public List<String> getExcludes() {
+            return m_excludes;
+        }
+
+        /** @return the files (and directories, with their content) that are packaged, as absolute paths */
+        public List<String> getFiles() {
+            return m_files;
+        }
+
+        public List<String> getIncludes() {
+            return m_includes;
+        }
+
+        /** @return the library, or {@code null} if the component is stream files only */
+        public String getLibrary() {
+            return m_library;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        /** @return the objects selected from the library, or {@code null} if the library is packaged whole */
+        public ObjectSelector getObjects() {
+            return m_objects;
+        }
+    }
+
+    /** Reads and checks a spec file */
+    public static PackageSpec read(final File _f) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(_f), StandardCharsets.UTF_8)) {
+            return read(in, _f.getAbsoluteFile().getParentFile());
+        } catch (final IOException e) {
+            throw new IOException("Invalid spec file '" + _f.getAbsolutePath() + "': " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Reads and checks a spec
+     *
+     * @param _dir the directory that relative paths are taken from
+     */
+    public static PackageSpec read(final Reader _in, final File _dir) throws IOException {
+        final Object yaml;
+        try {
+            yaml = new Yaml().load(_in);
+        } catch (final RuntimeException e) {
+            throw new IOException(e.getLocalizedMessage(), e);
+        }
+        final Map<String, Object> doc = toMap(yaml, "the spec");
+        checkKeys(doc, KEYS, "the spec");
+        final PackageSpec ret = new PackageSpec();
+        if (null != doc.get("codec")) {
+            ret.m_codec = Codec.parse(String.valueOf(doc.get("codec")));
+        }
+        ret.m_lodrunLib = toString(doc.get("lodrun"));
+        ret.m_preInstall = toPath(_dir, toString(doc.get("pre")));
+        ret.m_postInstall = toPath(_dir, toString(doc.get("post")));
+
+        final Map<String, Component> components = new LinkedHashMap<String, Component>();
+        final Object list = doc.get("components");
+        if (null != list && !(list instanceof List)) {
+            throw new IOException("'components' must be a list");
+        }
+        for (final Object item : null == list ? Collections.emptyList() : (List<?>) list) {
+            final Map<String, Object> map = toMap(item, "a component");
+            checkKeys(map, COMPONENT_KEYS, "a component");
+            final Component component = new Component();
+            component.m_library = toString(map.get("library"));
+            if (null != component.m_library) {
+                component.m_library = component.m_library.trim().toUpperCase();
+            }
+            component.m_name = toString(map.get("name"));
+            if (null == component.m_name) {
+                component.m_name = component.m_library;
+            }
+            if (null == component.m_name) {
+                throw new IOException("A component with no library needs a name");
+            }
+            for (final String f : toList(map.get("files"), "files")) {
+                component.m_files.add(toPath(_dir, f));
+            }
+            for (final String dir : toList(map.get("dirs"), "dirs")) {
+                component.m_dirs.add(toPath(_dir, dir));
+            }
+            component.m_includes.addAll(toList(map.get("include"), "include"));
+            component.m_excludes.addAll(toList(map.get("exclude"), "exclude"));
+            component.m_after.addAll(toList(map.get("after"), "after"));
+            final List<String> objects = toList(map.get("objects"), "objects");
+            final List<String> types = toList(map.get("types"), "types");
+            // an unquoted date is read as a timestamp (at midnight UTC), rather than as the local date written
+            final Object since = map.get("changed-since");
+            final String changedSince = since instanceof Date ? ((Date) since).toInstant().atZone(ZoneOffset.UTC).toLocalDateTime().toString() : toString(since);
+            if (!objects.isEmpty() || !types.isEmpty() || null != changedSince) {
+                if (null == component.m_library) {
+                    throw new IOException("Component '" + component.m_name + "' selects objects, but has no library");
+                }
+                component.m_objects = new ObjectSelector(component.m_library, objects, types, null == changedSince ? 0 : ObjectSelector.parseTime(changedSince));
+            }
+            if (null != map.get("codec")) {
+                component.m_codec = Codec.parse(String.valueOf(map.get("codec")));
+            }
+            if (null == component.m_library && component.m_files.isEmpty() && component.m_dirs.isEmpty()) {
+                throw new IOException("Component '" + component.m_name + "' has no library, files or dirs");
+            }
+            if (null != components.put(component.m_name, component)) {
+                throw new IOException("Component '" + component.m_name + "' is listed more than once");
+            }
+        }
+
+        // the components, in an order that puts each one after those it depends on
+        final Map<String, List<String>> after = new LinkedHashMap<String, List<String>>();
+        for (final Component component : components.values()) {
+            for (final String name : component.m_after) {
+                if (!components.containsKey(name)) {
+                    throw new IOException("Component '" + component.m_name + "' is to come after '" + name + "', which is not a component");
+                }
+            }
+            after.put(component.m_name, component.m_after);
+        }
+        for (final String name : sort(after)) {
+            ret.m_components.add(components.get(name));
+        }
+        return ret;
+    }
+
+    /**
+     * Orders a graph so that every node comes after the nodes it depends on. Nodes that don't depend on one another keep
+     * their order.
+     *
+     * @param _after for each node, in order, the nodes that must come before it (which, if not nodes themselves, are
+     *               ignored)
+     * @throws IOException if the dependencies go round in a circle
+     */
+    static List<String> sort(final Map<String, ? extends Collection<String>> _after) throws IOException {
+        final List<String> ret = new ArrayList<String>(_after.size());
+        final Set<String> placed = new HashSet<String>();
+        while (ret.size() < _after.size()) {
+            boolean isPlaced = false;
+            for (final Map.Entry<String, ? extends Collection<String>> node : _after.entrySet()) {
+                if (placed.contains(node.getKey())) {
+                    continue;
+                }
+                boolean isReady = true;
+                for (final String prereq : node.getValue()) {
+                    isReady &= placed.contains(prereq) || !_after.containsKey(prereq);
+                }
+                if (isReady) {
+                    ret.add(node.getKey());
+                    placed.add(node.getKey());
+                    isPlaced = true;
+                    break; // earlier nodes go first, whenever they can
+                }
+            }
+            if (!isPlaced) {
+                final List<String> circle = new LinkedList<String>(_after.keySet());
+                circle.removeAll(placed);
+                throw new IOException("Circular ordering between " + String.join(", ", circle));
+            }
+        }
+        return ret;
+    }
+
+    private static void checkKeys(final Map<String, Object> _map, final Set<String> _keys, final String _what) throws IOException {
+        for (final String key : _map.keySet()) {
+            if (!_keys.contains(key)) {
+                throw new IOException("Unknown key '" + key + "' in " + _what);
+            }
+        }
+    }
+
+    private static List<String> toList(final Object _value, final String _key) throws IOException {
+        final List<String> ret = new LinkedList<String>();
+        if (null == _value) {
+            return ret;
+        }
+        if (!(_value instanceof List)) {
+            ret.add(String.valueOf(_value));
+            return ret;
+        }
+        for (final Object item : (List<?>) _value) {
+            if (null == item || item instanceof Map || item instanceof List) {
+                throw new IOException("'" + _key + "' must be a list of strings");
+            }
+            ret.add(String.valueOf(item));
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toMap(final Object _yaml, final String _what) throws IOException {
+        if (!(_yaml instanceof Map)) {
+            throw new IOException("Expected a map for " + _what);
+        }
+        return (Map<String, Object>) _yaml;
+    }
+
+    private static String toPath(final File _dir, final String _path) {
+        if (null == _path) {
+            return null;
+        }
+        final File f = new File(_path);
+        return (f.isAbsolute() ? f : new File(_dir, _path)).getAbsolutePath();
+    }
+
+    private static String toString(final Object _value) {
+        return null == _value ? null : String.valueOf(_value);
+    }
+
+    private Codec m_codec = null;
+    private final List<Component> m_components = new LinkedList<Component>();
+    private String m_lodrunLib = null;
+    private String m_postInstall = null;
+    private String m_preInstall = null;
+
+    private PackageSpec() {
+    }
+
+    /** @return the codec of the package, or {@code null} if not given */
+    public Codec getCodec() {
+        return m_codec;
+    }
+
+    /** @return the components, each after the ones it is to come after */
+    public List<Component> getComponents() {
+        return m_components;
+    }
+
+    public String getLodrunLib() {
+        return m_lodrunLib;
+    }
+
+    public String getPostInstall() {
+        return m_postInstall;
+    }
+
+    public String getPreInstall() {
+        return m_preInstall;
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A payload volume of a split package: a zip file, shipped alongside the package jar, that holds a slice of one or more
+ * packaged files. Each volume can be verified and extracted on its own.
+ */
+public class PackageVolume {
+
+    /** A slice of a packaged file, stored as the volume's entry for that file */
+    public static class Part {
+        private final String m_file;
+        private final long m_length;
+        private final long m_offset;
+
+        Part(final String _file, final long _offset, final long _length) {
+            m_file = _file;
+            m_offset = _offset;
+            m_length = _length;
+        }
+
+        public String getFile() {
+            return m_file;
+        }
+
+        public long getLength() {
+            return m_length;
+        }
+
+        /** @return where in the packaged file this slice starts */
+        public long getOffset() {
+            return m_offset;
+        }
+    }
+
+    static PackageVolume fromYaml(final Map<String, Object> _yaml) throws IOException {
+        final PackageVolume ret = new PackageVolume((String) _yaml.get("name"));
+        ret.m_size = ((Number) _yaml.get("size")).longValue();
+        ret.m_digest = (String) _yaml.get("digest");
+        for (final Object item : PackageManifest.toList(_yaml.get("parts"), "parts")) {
+            final Map<String, Object> part = PackageManifest.toMap(item, "parts");
+            ret.m_parts.add(new Part((String) part.get("file"), ((Number) part.get("offset")).longValue(), ((Number) part.get("length")).longValue()));
+        }
+        return ret;
+    }
+
+    private String m_digest = null;
+    private final String m_name;
+    private final List<Part> m_parts = new ArrayList<Part>();
+    private long m_size = 0;
+
+    PackageVolume(final String _name) {
+        m_name = _name;
+    }
+
+    /** @return the hex-encoded {@value PackageConfiguration#DIGEST_ALGORITHM} digest of the volume file */
+    public String getDigest() {
+        return m_digest;
+    }
+
+    /** @return the file name of the volume, which lives in the same directory as the package jar */
+    public String getName() {
+        return m_name;
+    }
+
+    public List<Part> getParts() {
+        return m_parts;
+    }
+
+    /** @return the size of the volume file */
+    public long getSize() {
+        return m_size;
+    }
+
+    void addPart(final Part _part) {
+        m_parts.add(_part);
+    }
+
+    void setDigest(final String _digest) {
+        m_digest = _digest;
+    }
+
+    void setSize(final long _size) {
+        m_size = _size;
+    }
+
+    Map<String, Object> toYaml() {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+        ret.put("name", m_name);
+        ret.put("size", m_size);
+        ret.put("digest", m_digest);
+        final List<Map<String, Object>> parts = new ArrayList<Map<String, Object>>();
+        for (final Part part : m_parts) {
+            final Map<String, Object> yaml = new LinkedHashMap<String, Object>();
+            yaml.put("file", part.m_file);
+            yaml.put("offset", part.m_offset);
+            yaml.put("length", part.m_length);
+            parts.add(yaml);
+        }
+        ret.put("parts", parts);
+        return ret;
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.theprez.appinstall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream into a single raw deflate stream, with blocks of the input compressed concurrently (the way pigz
+ * does it). Each block is deflated on its own, primed with the last 32 KB of the block before it, and ends on a byte
+ * boundary (a sync flush), so that the compressed blocks can simply be concatenated. The result inflates like any other
+ * deflate stream.
+ */
+class ParallelDeflater extends OutputStream {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 1024 * 32;
+
+    /** A compressed block, along with the input buffer it was compressed from (to be recycled once it's written) */
+    private static class Block {
+        private final byte[] m_input;
+        private final Future<byte[]> m_output;
+
+        Block(final byte[] _input, final Future<byte[]> _output) {
+            m_input = _input;
+            m_output = _output;
+        }
+    }
+
+    private static byte[] deflate(final byte[] _input, final int _len, final byte[] _dictionary, final int _level, final boolean _isLast) {
+        final Deflater deflater = new Deflater(_level, true);
+        try {
+            if (null != _dictionary) {
+                deflater.setDictionary(_dictionary);
+            }
+            deflater.setInput(_input, 0, _len);
+            final ByteArrayOutputStream ret = new ByteArrayOutputStream(_len / 2 + 64);
+            final byte[] buf = new byte[1024 * 64];
+            if (_isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    ret.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                int len = 0;
+                do {
+                    len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    ret.write(buf, 0, len);
+                } while (len == buf.length);
+            }
+            return ret.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] m_block = null;
+    private long m_bytesRead = 0;
+    private long m_bytesWritten = 0;
+    private byte[] m_dictionary = null;
+    private final Deque<byte[]> m_free = new ArrayDeque<byte[]>();
+    private final Deque<Block> m_inFlight = new ArrayDeque<Block>();
+    private final int m_level;
+    private final int m_maxInFlight;
+    private final OutputStream m_out;
+    private final ExecutorService m_pool;
+    private int m_pos = 0;
+
+    /**
+     * @param _out    where the compressed stream is written (not closed)
+     * @param _pool   where blocks are compressed
+     * @param _blocks the number of blocks compressed ahead of the output, which bounds memory use
+     */
+    ParallelDeflater(final OutputStream _out, final int _level, final ExecutorService _pool, final int _blocks) {
+        m_out = _out;
+        m_level = _level;
+        m_pool = _pool;
+        m_maxInFlight = Math.max(1, _blocks);
+    }
+
+    /** Compresses what's left and writes out the end of the deflate stream */
+    public void finish() throws IOException {
+        submit(true);
+        while (!m_inFlight.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    public long getBytesRead() {
+        return m_bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return m_bytesWritten;
+    }
+
+    @Override
+    public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+        int off = _off;
+        int remaining = _len;
+        while (0 < remaining) {
+            if (null == m_block) {
+                m_block = m_free.isEmpty() ? new byte[BLOCK_SIZE] : m_free.pop();
+                m_pos = 0;
+            }
+            final int count = Math.min(remaining, BLOCK_SIZE - m_pos);
+            System.arraycopy(_b, off, m_block, m_pos, count);
+            m_pos += count;
+            off += count;
+            remaining -= count;
+            if (BLOCK_SIZE == m_pos) {
+                submit(false);
+            }
+        }
+        m_bytesRead += _len;
+    }
+
+    @Override
+    public void write(final int _b) throws IOException {
+        write(new byte[] { (byte) _b }, 0, 1);
+    }
+
+    private void submit(final boolean _isLast) throws IOException {
+        final byte[] input = null == m_block ? new byte[0] : m_block;
+        final int len = null == m_block ? 0 : m_pos;
+        final byte[] dictionary = m_dictionary;
+        m_dictionary = DICTIONARY_SIZE <= len ? Arrays.copyOfRange(input, len - DICTIONARY_SIZE, len) : null;
+        while (m_inFlight.size() >= m_maxInFlight) {
+            writeNext();
+        }
+        m_inFlight.add(new Block(input, m_pool.submit(() -> deflate(input, len, dictionary, m_level, _isLast))));
+        m_block = null;
+    }
+
+    private void writeNext() throws IOException {
+        final Block block = m_inFlight.remove();
+        final byte[] compressed;
+        try {
+            compressed = block.m_output.get();
+        } catch (final ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while compressing", e);
+        }
+        m_out.write(compressed);
+        m_bytesWritten += compressed.length;
+        if (BLOCK_SIZE == block.m_input.length) {
+            m_free.push(block.m_input);
+        }
+    }
+}
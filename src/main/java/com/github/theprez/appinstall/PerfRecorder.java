@@ -0,0 +1,185 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records where the time of a build or an installation goes, as spans (a category, such as "save" or "extract", and a
+ * name, such as the library or file concerned), each with the bytes it moved and the host round trips it took. The
+ * spans are reported ({@code --report}) summed up per category and per name, and can be laid out on a timeline
+ * ({@code --trace}, in the Chrome trace event format, for chrome://tracing or Perfetto). Like logging, recording is
+ * global, so that it needn't be threaded through every class. Nothing is kept unless it has been enabled.
+ */
+public class PerfRecorder {
+    private static final PerfRecorder INSTANCE = new PerfRecorder();
+
+    /** A timed piece of work, which is recorded once it is closed */
+    public static class Span implements AutoCloseable {
+        private final AtomicLong m_bytes = new AtomicLong();
+        private final String m_category;
+        private long m_end = -1;
+        private final String m_name;
+        private final PerfRecorder m_recorder;
+        private final AtomicLong m_roundTrips = new AtomicLong();
+        private final long m_start = System.nanoTime();
+        private final long m_threadId = Thread.currentThread().getId();
+        private final String m_threadName = Thread.currentThread().getName();
+
+        Span(final PerfRecorder _recorder, final String _category, final String _name) {
+            m_recorder = _recorder;
+            m_category = _category;
+            m_name = _name;
+        }
+
+        public Span addBytes(final long _bytes) {
+            m_bytes.addAndGet(_bytes);
+            return this;
+        }
+
+        public Span addRoundTrips(final long _roundTrips) {
+            m_roundTrips.addAndGet(_roundTrips);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (-1 == m_end) {
+                m_end = System.nanoTime();
+                if (m_recorder.m_isEnabled) {
+                    m_recorder.m_spans.add(this);
+                }
+            }
+        }
+    }
+
+    public static PerfRecorder getSingleton() {
+        return INSTANCE;
+    }
+
+    private static String toJson(final String _s) {
+        final StringBuilder ret = new StringBuilder("\"");
+        for (final char c : _s.toCharArray()) {
+            if ('"' == c || '\\' == c) {
+                ret.append('\\').append(c);
+            } else if (' ' > c) {
+                ret.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                ret.append(c);
+            }
+        }
+        return ret.append('"').toString();
+    }
+
+    private volatile boolean m_isEnabled = false;
+    private final long m_origin = System.nanoTime();
+    private final Queue<Span> m_spans = new ConcurrentLinkedQueue<Span>();
+
+    private PerfRecorder() {
+    }
+
+    public void enable() {
+        m_isEnabled = true;
+    }
+
+    /** Starts a span, to be closed (in a {@code finally} block) when the work is done */
+    public Span start(final String _category, final String _name) {
+        return new Span(this, _category, _name);
+    }
+
+    /**
+     * Writes the report: for the whole run, for each category of span, and for each named span within a category, the
+     * time taken, bytes moved (and so throughput) and host round trips. Spans of the same category can overlap, so a
+     * category's wall time (from the start of its first span to the end of its last) is given alongside its total.
+     */
+    public void writeReport(final File _file, final String _command) throws IOException {
+        final List<Span> spans = getSpans();
+        final Map<String, List<Span>> byCategory = new LinkedHashMap<String, List<Span>>();
+        for (final Span span : spans) {
+            byCategory.computeIfAbsent(span.m_category, _c -> new ArrayList<Span>()).add(span);
+        }
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(_file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf(Locale.ROOT, "  \"command\": %s,%n", toJson(_command));
+            out.printf(Locale.ROOT, "  \"version\": %s,%n", toJson(Version.version));
+            out.printf(Locale.ROOT, "  \"seconds\": %.3f,%n", (System.nanoTime() - m_origin) / 1e9);
+            out.println("  \"phases\": [");
+            int i = 0;
+            for (final Map.Entry<String, List<Span>> category : byCategory.entrySet()) {
+                final Map<String, List<Span>> byName = new LinkedHashMap<String, List<Span>>();
+                for (final Span span : category.getValue()) {
+                    byName.computeIfAbsent(span.m_name, _n -> new ArrayList<Span>()).add(span);
+                }
+                out.printf(Locale.ROOT, "    {%s, \"wallSeconds\": %.3f, \"components\": [%n", summarize(category.getKey(), category.getValue()), getWallNanos(category.getValue()) / 1e9);
+                int j = 0;
+                for (final Map.Entry<String, List<Span>> name : byName.entrySet()) {
+                    out.printf(Locale.ROOT, "      {%s}%s%n", summarize(name.getKey(), name.getValue()), ++j < byName.size() ? "," : "");
+                }
+                out.printf(Locale.ROOT, "    ]}%s%n", ++i < byCategory.size() ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    /** Writes every span out as a Chrome trace event, a row per thread */
+    public void writeTrace(final File _file) throws IOException {
+        final List<Span> spans = getSpans();
+        final Map<Long, String> threads = new LinkedHashMap<Long, String>();
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(_file), StandardCharsets.UTF_8))) {
+            out.println("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [");
+            for (final Span span : spans) {
+                threads.put(span.m_threadId, span.m_threadName);
+                out.printf(Locale.ROOT, "{\"name\": %s, \"cat\": %s, \"ph\": \"X\", \"ts\": %d, \"dur\": %d, \"pid\": 1, \"tid\": %d, \"args\": {\"bytes\": %d, \"roundTrips\": %d}},%n", toJson(span.m_name), toJson(span.m_category),
+                        (span.m_start - m_origin) / 1000, (span.m_end - span.m_start) / 1000, span.m_threadId, span.m_bytes.get(), span.m_roundTrips.get());
+            }
+            int i = 0;
+            for (final Map.Entry<Long, String> thread : threads.entrySet()) {
+                out.printf(Locale.ROOT, "{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": %d, \"args\": {\"name\": %s}}%s%n", thread.getKey(), toJson(thread.getValue()), ++i < threads.size() ? "," : "");
+            }
+            out.println("]}");
+        }
+    }
+
+    private List<Span> getSpans() {
+        final List<Span> ret = new ArrayList<Span>(m_spans);
+        ret.sort(Comparator.comparingLong(_s -> _s.m_start));
+        return ret;
+    }
+
+    private static long getWallNanos(final List<Span> _spans) {
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (final Span span : _spans) {
+            start = Math.min(start, span.m_start);
+            end = Math.max(end, span.m_end);
+        }
+        return end - start;
+    }
+
+    /** @return the JSON fields summing up a set of spans */
+    private static String summarize(final String _name, final List<Span> _spans) {
+        long nanos = 0;
+        long bytes = 0;
+        long roundTrips = 0;
+        for (final Span span : _spans) {
+            nanos += span.m_end - span.m_start;
+            bytes += span.m_bytes.get();
+            roundTrips += span.m_roundTrips.get();
+        }
+        return String.format(Locale.ROOT, "\"name\": %s, \"count\": %d, \"seconds\": %.3f, \"bytes\": %d, \"mbPerSecond\": %.1f, \"roundTrips\": %d", toJson(_name), _spans.size(), nanos / 1e9, bytes,
+                0 == nanos ? 0.0 : bytes / 1048576.0 / (nanos / 1e9), roundTrips);
+    }
+}
@@ -0,0 +1,768 @@
+package com.github.theprez.appinstall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.yaml.snakeyaml.Yaml;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * A stand-in for the host ({@code --simulate}), so that package builds and installations can be run, timed and loaded up
+ * anywhere, without an IBM i. It models just enough of the host for them: libraries and their objects, save files, and
+ * the CL commands that save, copy and restore them, each of which takes a configurable time, and fails when told to.
+ * Save files are kept as files in a work directory, so what is saved, packaged, extracted and restored is real data, that
+ * takes real I/O. Stream files are those of this system, and the CCSID tags set on them are only recorded. Sessions share
+ * the libraries and save files; each has a QTEMP and a job log of its own.
+ * <p>
+ * The host is described in YAML. For example:
+ *
+ * <pre>
+ * latency: 20                # milliseconds, for every CL command
+ * latencies: { SAVLIB: 1500, RSTLIB: 2500 }
+ * read-rate: 200             # MB/s that save files are read from the host at (by default, as fast as they can be)
+ * free-asp: 102400           # MB
+ * seed: 1                    # for failures that only happen some of the time
+ * libraries:
+ *   MYAPP: { size: 64 }      # MB that a save of the library takes
+ *   MYLIB:
+ *     locks: 1
+ *     objects:               # name, type, attribute, last change and size (in bytes)
+ *       - PGMA *PGM CLLE 2026-10-05 65536
+ *       - SRV1 *SRVPGM RPGLE 2026-09-01T12:00 131072
+ * failures:
+ *   - command: 'RSTLIB SAVLIB\(MYAPP\).*'    # a regular expression, matched against the whole command
+ *     message: 'CPF3773: 12 objects not restored to MYAPP.'
+ *     rate: 0.5                               # of the times the command is run (by default, every time)
+ *     times: 1                                # at most (by default, no limit)
+ * </pre>
+ *
+ * A library that isn't given a size saves to the total size of its objects. Commands that aren't modeled (such as
+ * LODRUN) just take their time, and succeed. Names that aren't qualified with a library are taken to be in QTEMP.
+ */
+public class SimulatedHost implements HostSession.Factory {
+    private static final Set<String> FAILURE_KEYS = new HashSet<String>(Arrays.asList("command", "message", "rate", "times"));
+    private static final Set<String> KEYS = new HashSet<String>(Arrays.asList("latency", "latencies", "read-rate", "write-rate", "free-asp", "seed", "libraries", "failures"));
+    private static final Set<String> LIBRARY_KEYS = new HashSet<String>(Arrays.asList("size", "locks", "objects"));
+    private static final Pattern PARAMETER = Pattern.compile("([A-Za-z]+)\\(\\s*('(?:[^']|'')*'|[^()]*)\\)");
+    private static final String SAVE_FILE_MAGIC = "APPINSTALL-SIMULATED-SAVF";
+    private static final String SAVE_FILE_SUFFIX = ".savf";
+
+    /** A command that fails, some or all of the times it is run */
+    private static class Failure {
+        private final String m_message;
+        private final Pattern m_pattern;
+        private final double m_rate;
+        private int m_remaining;
+
+        Failure(final Pattern _pattern, final String _message, final double _rate, final int _times) {
+            m_pattern = _pattern;
+            m_message = _message;
+            m_rate = _rate;
+            m_remaining = _times;
+        }
+    }
+
+    /** A library, whose save files are kept in a directory of their own */
+    private static class Library {
+        private final File m_dir;
+        private int m_locks = 0;
+        private final Map<String, String> m_objects = new TreeMap<String, String>();
+        private long m_size = -1;
+
+        Library(final File _dir) throws IOException {
+            m_dir = _dir;
+            Files.createDirectories(_dir.toPath());
+        }
+
+        /** Adds an object, replacing any of the same name and type */
+        void addObject(final String _description) {
+            final String[] fields = _description.split(" ");
+            m_objects.put(fields[0] + " " + fields[1], _description);
+        }
+
+        /** @return the size of a save of the whole library */
+        long getSize() {
+            if (0 <= m_size) {
+                return m_size;
+            }
+            long ret = 0;
+            for (final String description : m_objects.values()) {
+                ret += getObjectSize(description);
+            }
+            return ret;
+        }
+    }
+
+    /** A session, with a QTEMP and a job log of its own */
+    private class Session implements HostSession {
+        private final List<String> m_jobLog = new LinkedList<String>();
+        private final Library m_qtemp;
+
+        Session() throws IOException {
+            m_qtemp = new Library(new File(m_dir, "QTEMP." + m_sessions.incrementAndGet()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            delete(m_qtemp.m_dir);
+        }
+
+        /** Stream files that haven't been tagged have a CCSID of 0 */
+        @Override
+        public Map<String, Integer> describeCcsids(final String _dir) throws IOException {
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "ccsids").addRoundTrips(1);
+            try {
+                sleep(m_latency);
+                final File[] files = new File(_dir).listFiles();
+                if (null == files) {
+                    throw new IOException("CPFA0A9: Object not found. Object is " + _dir + ".");
+                }
+                final Map<String, Integer> ret = new TreeMap<String, Integer>();
+                ret.put(_dir, getCcsid(_dir));
+                for (final File f : files) {
+                    ret.put(f.getPath(), getCcsid(f.getPath()));
+                }
+                return ret;
+            } finally {
+                span.close();
+            }
+        }
+
+        @Override
+        public Map<String, Integer> describeLibraries(final Collection<String> _libraries) throws IOException {
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "list libraries").addRoundTrips(1);
+            try {
+                sleep(m_latency);
+                final Map<String, Integer> ret = new TreeMap<String, Integer>();
+                synchronized (m_libraries) {
+                    for (final String name : _libraries) {
+                        final Library library = m_libraries.get(name.toUpperCase());
+                        if (null != library) {
+                            ret.put(name.toUpperCase(), library.m_locks);
+                        }
+                    }
+                }
+                return ret;
+            } finally {
+                span.close();
+            }
+        }
+
+        @Override
+        public List<String> describeObjects(final String _library) throws IOException {
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "list " + _library).addRoundTrips(1);
+            try {
+                sleep(m_latency);
+                final Library library = getLibrary(_library);
+                synchronized (m_libraries) {
+                    return new ArrayList<String>(library.m_objects.values());
+                }
+            } catch (final IOException e) {
+                throw new IOException("Error listing objects in library " + _library, e);
+            } finally {
+                span.close();
+            }
+        }
+
+        @Override
+        public long getFreeAspBytes() throws IOException {
+            return m_freeAspBytes;
+        }
+
+        @Override
+        public InputStream openSaveFile(final String _library, final String _name) throws IOException {
+            final File f = getSaveFile(_library, _name, true);
+            final long start = System.nanoTime();
+            return new FilterInputStream(new FileInputStream(f)) {
+                private long m_bytes = 0;
+
+                @Override
+                public int read() throws IOException {
+                    final int ret = super.read();
+                    m_bytes += 0 > ret ? 0 : 1;
+                    return ret;
+                }
+
+                @Override
+                public int read(final byte[] _b, final int _off, final int _len) throws IOException {
+                    final int ret = super.read(_b, _off, _len);
+                    m_bytes += Math.max(0, ret);
+                    pace(m_bytes, start, m_readRate);
+                    return ret;
+                }
+            };
+        }
+
+        @Override
+        public synchronized List<String> readJobLog() {
+            final List<String> ret = new LinkedList<String>(m_jobLog);
+            m_jobLog.clear();
+            return ret;
+        }
+
+        @Override
+        public synchronized void runCommand(final String _cmd, final boolean _isOkToFail) throws IOException {
+            final String verb = _cmd.trim().split("\\s+", 2)[0].toUpperCase();
+            boolean isSuccess = true;
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("cl", verb).addRoundTrips(1);
+            try {
+                m_logger.printfln_verbose("Running CL command '%s' (simulated)", _cmd);
+                sleep(m_latencies.getOrDefault(verb, m_latency));
+                try {
+                    final String failure = getFailure(_cmd);
+                    if (null != failure) {
+                        throw new IOException(failure);
+                    }
+                    run(verb, _cmd);
+                } catch (final IOException e) {
+                    m_jobLog.add(e.getLocalizedMessage());
+                    isSuccess = false;
+                }
+                for (final String jobLogMsg : readJobLog()) {
+                    m_logger.printfln("    %s", jobLogMsg);
+                }
+            } finally {
+                span.close();
+            }
+            if (!isSuccess && !_isOkToFail) {
+                throw new IOException("Error running command");
+            }
+        }
+
+        @Override
+        public void setCcsid(final int _ccsid, final List<String> _paths) throws IOException {
+            final PerfRecorder.Span span = PerfRecorder.getSingleton().start("host", "setccsid").addRoundTrips(1);
+            try {
+                sleep(m_latency);
+                for (final String path : _paths) {
+                    if (!new File(path).exists()) {
+                        throw new IOException("CPFA0A9: Object not found. Object is " + path + ".");
+                    }
+                }
+                synchronized (m_ccsids) {
+                    for (final String path : _paths) {
+                        m_ccsids.put(path, _ccsid);
+                    }
+                }
+            } finally {
+                span.close();
+            }
+        }
+
+        @Override
+        public OutputStream writeSaveFile(final String _library, final String _name) throws IOException {
+            final File f = getSaveFile(_library, _name, true);
+            final long start = System.nanoTime();
+            return new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1024 * 64)) {
+                private long m_bytes = 0;
+
+                @Override
+                public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+                    out.write(_b, _off, _len);
+                    m_bytes += _len;
+                    pace(m_bytes, start, m_writeRate);
+                }
+            };
+        }
+
+        private Library getLibrary(final String _name) throws IOException {
+            if ("QTEMP".equalsIgnoreCase(_name)) {
+                return m_qtemp;
+            }
+            synchronized (m_libraries) {
+                final Library ret = m_libraries.get(_name.toUpperCase());
+                if (null == ret) {
+                    throw new IOException("CPF2110: Library " + _name.toUpperCase() + " not found.");
+                }
+                return ret;
+            }
+        }
+
+        /**
+         * @param _isStream whether the save file is to be streamed, which, as on the host, can't be done from QTEMP
+         */
+        private File getSaveFile(final String _library, final String _name, final boolean _isStream) throws IOException {
+            if (_isStream && "QTEMP".equalsIgnoreCase(_library)) {
+                throw new IOException("Save file " + _library + "/" + _name + " can't be streamed, since it is in QTEMP");
+            }
+            final File ret = new File(getLibrary(_library).m_dir, _name.toUpperCase() + SAVE_FILE_SUFFIX);
+            if (!ret.isFile()) {
+                throw new IOException("CPF9812: File " + _name.toUpperCase() + " in library " + _library.toUpperCase() + " not found.");
+            }
+            return ret;
+        }
+
+        /** @return a save file, given as {@code [<library>/]<name>} */
+        private File getSaveFile(final String _qualifiedName) throws IOException {
+            final String[] name = toQualifiedName(_qualifiedName);
+            return getSaveFile(name[0], name[1], false);
+        }
+
+        /** Restores (some of) the objects in a save file into a library */
+        private void restore(final Map<String, String> _params, final boolean _isLibrary) throws IOException {
+            final String savlib = _params.getOrDefault("SAVLIB", "").toUpperCase();
+            final String[] savf = toQualifiedName(_params.getOrDefault("SAVF", ""));
+            final File f = getSaveFile(_params.getOrDefault("SAVF", ""));
+            final List<String> header = readHeader(f);
+            if (null == header) {
+                throw new IOException("CPF3782: File " + savf[1] + " in " + savf[0] + " not a save file.");
+            }
+            if ((_isLibrary && !"SAVLIB".equals(header.get(0))) || !savlib.equals(header.get(1))) {
+                throw new IOException("CPF3781: Library " + savlib + " not found on save file " + savf[0] + "/" + savf[1] + ".");
+            }
+            final String rstlib = _params.getOrDefault("RSTLIB", savlib).toUpperCase();
+            final List<String> names = _isLibrary ? Collections.<String> emptyList() : toList(_params.getOrDefault("OBJ", "*ALL"));
+            final List<String> types = toList(_params.getOrDefault("OBJTYPE", "*ALL"));
+            final ObjectSelector selector = new ObjectSelector(rstlib, names, types, 0);
+            final List<String> restored = new LinkedList<String>();
+            for (final ObjectSelector.Group group : selector.select(header.subList(2, header.size()))) {
+                restored.addAll(group.getDescriptions());
+            }
+            if (restored.isEmpty() && !_isLibrary) {
+                throw new IOException("CPF3770: No objects saved or restored for library " + rstlib + ".");
+            }
+            final Library library;
+            if (_isLibrary && !"QTEMP".equals(rstlib)) {
+                synchronized (m_libraries) {
+                    library = m_libraries.containsKey(rstlib) ? m_libraries.get(rstlib) : new Library(new File(m_dir, rstlib));
+                    library.m_size = f.length();
+                    m_libraries.put(rstlib, library);
+                }
+            } else {
+                library = getLibrary(rstlib);
+            }
+            synchronized (m_libraries) {
+                for (final String description : restored) {
+                    library.addObject(description);
+                }
+            }
+            m_jobLog.add(String.format("CPC3703: %d objects restored from %s to %s.", restored.size(), savlib, rstlib));
+        }
+
+        private void run(final String _verb, final String _cmd) throws IOException {
+            final Map<String, String> params = toParameters(_cmd);
+            final String library = params.getOrDefault("LIB", "").toUpperCase();
+            switch (_verb) {
+                case "CRTLIB":
+                    synchronized (m_libraries) {
+                        if ("QTEMP".equals(library) || m_libraries.containsKey(library)) {
+                            throw new IOException("CPF2111: Library " + library + " already exists.");
+                        }
+                        m_libraries.put(library, new Library(new File(m_dir, library)));
+                    }
+                    m_jobLog.add("CPC2102: Library " + library + " created.");
+                    return;
+                case "DLTLIB":
+                    final Library deleted;
+                    synchronized (m_libraries) {
+                        deleted = m_libraries.remove(library);
+                    }
+                    if (null == deleted) {
+                        throw new IOException("CPF2110: Library " + library + " not found.");
+                    }
+                    delete(deleted.m_dir);
+                    return;
+                case "CRTSAVF": {
+                    final String[] name = toQualifiedName(params.getOrDefault("FILE", ""));
+                    final File f = new File(getLibrary(name[0]).m_dir, name[1] + SAVE_FILE_SUFFIX);
+                    if (!f.createNewFile()) {
+                        throw new IOException("CPF5813: File " + name[1] + " in library " + name[0] + " already exists.");
+                    }
+                    return;
+                }
+                case "CLRSAVF":
+                    new FileOutputStream(getSaveFile(params.getOrDefault("FILE", ""))).close();
+                    return;
+                case "DLTF":
+                    Files.delete(getSaveFile(params.getOrDefault("FILE", "")).toPath());
+                    return;
+                case "CPYFRMSTMF": {
+                    final Matcher member = Pattern.compile("(?i)/qsys\\.lib/([^/.]+)\\.lib/([^/.]+)\\.file").matcher(params.getOrDefault("TOMBR", ""));
+                    if (!member.matches()) {
+                        throw new IOException("CPFA0DB: Object name " + params.get("TOMBR") + " not a QSYS object.");
+                    }
+                    final File from = new File(params.getOrDefault("FROMSTMF", ""));
+                    if (!from.isFile()) {
+                        throw new IOException("CPFA0A9: Object not found.  Object is " + from.getPath() + ".");
+                    }
+                    Files.copy(from.toPath(), getSaveFile(member.group(1) + "/" + member.group(2)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                }
+                case "SAVLIB": {
+                    final Library saved = getLibrary(library);
+                    final List<String> objects;
+                    synchronized (m_libraries) {
+                        objects = new ArrayList<String>(saved.m_objects.values());
+                    }
+                    save(getSaveFile(params.getOrDefault("SAVF", "")), "SAVLIB", library, objects, saved.getSize());
+                    m_jobLog.add(String.format("CPC3722: %d objects saved from library %s.", objects.size(), library));
+                    return;
+                }
+                case "SAVOBJ": {
+                    final Library saved = getLibrary(library);
+                    final List<String> objects = new LinkedList<String>();
+                    final List<String> descriptions;
+                    synchronized (m_libraries) {
+                        descriptions = new ArrayList<String>(saved.m_objects.values());
+                    }
+                    final ObjectSelector selector = new ObjectSelector(library, toList(params.getOrDefault("OBJ", "*ALL")), toList(params.getOrDefault("OBJTYPE", "*ALL")), 0);
+                    long size = 0;
+                    for (final ObjectSelector.Group group : selector.select(descriptions)) {
+                        for (final String description : group.getDescriptions()) {
+                            objects.add(description);
+                            size += getObjectSize(description);
+                        }
+                    }
+                    if (objects.isEmpty()) {
+                        throw new IOException("CPF3770: No objects saved or restored for library " + library + ".");
+                    }
+                    save(getSaveFile(params.getOrDefault("SAVF", "")), "SAVOBJ", library, objects, size);
+                    m_jobLog.add(String.format("CPC3722: %d objects saved from library %s.", objects.size(), library));
+                    return;
+                }
+                case "RSTLIB":
+                    restore(params, true);
+                    return;
+                case "RSTOBJ":
+                    restore(params, false);
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /** Reads the description of a simulated host. Its save files are kept in a temporary directory, deleted on exit. */
+    public static SimulatedHost read(final AppLogger _logger, final File _f) throws IOException {
+        final Object yaml;
+        try (Reader in = new InputStreamReader(new FileInputStream(_f), StandardCharsets.UTF_8)) {
+            yaml = new Yaml().load(in);
+        } catch (final IOException | RuntimeException e) {
+            throw new IOException("Invalid simulated host file '" + _f.getAbsolutePath() + "': " + e.getLocalizedMessage(), e);
+        }
+        try {
+            return new SimulatedHost(_logger, null == yaml ? Collections.<String, Object> emptyMap() : toMap(yaml, "the simulated host"));
+        } catch (final IOException | RuntimeException e) {
+            throw new IOException("Invalid simulated host file '" + _f.getAbsolutePath() + "': " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static void checkKeys(final Map<String, Object> _map, final Set<String> _keys, final String _what) throws IOException {
+        for (final String key : _map.keySet()) {
+            if (!_keys.contains(key)) {
+                throw new IOException("Unknown key '" + key + "' in " + _what);
+            }
+        }
+    }
+
+    private static void delete(final File _f) throws IOException {
+        final File[] children = _f.listFiles();
+        if (null != children) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(_f.toPath());
+    }
+
+    private static long getObjectSize(final String _description) {
+        final String[] fields = _description.split(" ");
+        return 4 < fields.length ? Long.parseLong(fields[4]) : 0;
+    }
+
+    /** Waits, if need be, so that bytes go no faster than the given rate (in bytes per second, or 0 for no limit) */
+    private static void pace(final long _bytes, final long _startNanos, final long _rate) throws IOException {
+        if (0 >= _rate) {
+            return;
+        }
+        final long due = _startNanos + _bytes * 1000000000L / _rate;
+        final long wait = due - System.nanoTime();
+        if (0 < wait) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * @return the kind of save, the library saved and the descriptions of the objects saved, or {@code null} if the file
+     *         isn't a save file
+     */
+    private static List<String> readHeader(final File _f) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(_f))) {
+            final List<String> ret = new LinkedList<String>();
+            final StringBuilder line = new StringBuilder();
+            int c = -1;
+            while (0 <= (c = in.read())) {
+                if ('\n' != c) {
+                    line.append((char) c);
+                    continue;
+                }
+                if (0 == line.length()) {
+                    break;
+                }
+                if (ret.isEmpty()) {
+                    final String[] fields = line.toString().split(" ");
+                    if (3 != fields.length || !SAVE_FILE_MAGIC.equals(fields[0])) {
+                        return null;
+                    }
+                    ret.add(fields[1]);
+                    ret.add(fields[2]);
+                } else {
+                    ret.add(line.toString());
+                }
+                line.setLength(0);
+            }
+            return 0 > c ? null : ret;
+        }
+    }
+
+    /** Writes a save file: a header that lists what is in it, then filler that compresses by about half, up to a size */
+    private static void save(final File _f, final String _kind, final String _library, final List<String> _objects, final long _size) throws IOException {
+        final StringBuilder header = new StringBuilder(SAVE_FILE_MAGIC).append(' ').append(_kind).append(' ').append(_library).append('\n');
+        for (final String description : _objects) {
+            header.append(description).append('\n');
+        }
+        header.append('\n');
+        final Random random = new Random(_library.hashCode());
+        final byte[] buf = new byte[1024 * 64];
+        try (OutputStream out = new FileOutputStream(_f)) {
+            final byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(headerBytes);
+            long remaining = _size - headerBytes.length;
+            while (0 < remaining) {
+                for (int i = 0; i < buf.length; ++i) {
+                    buf[i] = (byte) ('A' + random.nextInt(16));
+                }
+                final int len = (int) Math.min(buf.length, remaining);
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+        }
+    }
+
+    private static void sleep(final long _millis) throws IOException {
+        try {
+            Thread.sleep(_millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /**
+     * @return an object description, as {@link HostSession#describeObjects(String)} gives it, from
+     *         {@code <name> <type> [<attribute> [<last change> [<size>]]]}, where the last change is as
+     *         {@link ObjectSelector#parseTime(String)} takes it (by default, now) and the size is in bytes (by default, 64
+     *         KB)
+     */
+    private static String toDescription(final String _object) throws IOException {
+        final String[] fields = _object.trim().split("\\s+");
+        if (2 > fields.length) {
+            throw new IOException("Invalid object '" + _object + "' (expected <name> <type> [<attribute> [<last change> [<size>]]])");
+        }
+        final String type = fields[1].startsWith("*") ? fields[1].toUpperCase() : "*" + fields[1].toUpperCase();
+        final String attribute = 2 < fields.length ? fields[2].toUpperCase() : "";
+        final long changed = 3 < fields.length ? ObjectSelector.parseTime(fields[3]) : System.currentTimeMillis();
+        final long size;
+        try {
+            size = 4 < fields.length ? Long.parseLong(fields[4]) : 65536;
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid size in object '" + _object + "'");
+        }
+        return fields[0].toUpperCase() + " " + type + " " + attribute + " " + changed + " " + size;
+    }
+
+    private static List<String> toList(final String _value) {
+        final List<String> ret = new LinkedList<String>();
+        for (final String item : _value.trim().split("\\s+")) {
+            if (!item.isEmpty()) {
+                ret.add(item);
+            }
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toMap(final Object _yaml, final String _what) throws IOException {
+        if (!(_yaml instanceof Map)) {
+            throw new IOException("Expected a map for " + _what);
+        }
+        return (Map<String, Object>) _yaml;
+    }
+
+    private static Number toNumber(final Object _value, final Number _default) throws IOException {
+        if (null == _value) {
+            return _default;
+        }
+        if (!(_value instanceof Number)) {
+            throw new IOException("Expected a number, not '" + _value + "'");
+        }
+        return (Number) _value;
+    }
+
+    /**
+     * @return the parameters of a CL command, by keyword (upper case), with quotes taken off their values. The first
+     *         parameter may be given positionally, as for {@code CRTSAVF QTEMP/X}.
+     */
+    private static Map<String, String> toParameters(final String _cmd) {
+        final Map<String, String> ret = new LinkedHashMap<String, String>();
+        final String[] verbAndRest = _cmd.trim().split("\\s+", 2);
+        final String rest = 2 == verbAndRest.length ? verbAndRest[1].trim() : "";
+        final Matcher param = PARAMETER.matcher(rest);
+        while (param.find()) {
+            String value = param.group(2).trim();
+            if (value.startsWith("'") && value.endsWith("'") && 2 <= value.length()) {
+                value = value.substring(1, value.length() - 1).replace("''", "'");
+            }
+            ret.put(param.group(1).toUpperCase(), value);
+        }
+        if (!rest.isEmpty() && !PARAMETER.matcher(rest).lookingAt()) {
+            final String positional = rest.split("\\s+", 2)[0];
+            switch (verbAndRest[0].toUpperCase()) {
+                case "CRTLIB":
+                case "DLTLIB":
+                    ret.putIfAbsent("LIB", positional);
+                    break;
+                default:
+                    ret.putIfAbsent("FILE", positional);
+                    break;
+            }
+        }
+        return ret;
+    }
+
+    /** @return a name, given as {@code [<library>/]<name>}, as library and name (in upper case) */
+    private static String[] toQualifiedName(final String _name) {
+        final String[] parts = _name.trim().toUpperCase().split("/", 2);
+        return 2 == parts.length ? parts : new String[] { "QTEMP", parts[0] };
+    }
+
+    private final Map<String, Integer> m_ccsids = new TreeMap<String, Integer>();
+    private final File m_dir;
+    private final List<Failure> m_failures = new LinkedList<Failure>();
+    private final long m_freeAspBytes;
+    private final Map<String, Long> m_latencies = new TreeMap<String, Long>();
+    private final long m_latency;
+    private final Map<String, Library> m_libraries = new TreeMap<String, Library>();
+    private final AppLogger m_logger;
+    private final Random m_random;
+    private final long m_readRate;
+    private final AtomicInteger m_sessions = new AtomicInteger();
+    private final long m_writeRate;
+
+    private SimulatedHost(final AppLogger _logger, final Map<String, Object> _yaml) throws IOException {
+        checkKeys(_yaml, KEYS, "the simulated host");
+        m_logger = _logger;
+        m_latency = toNumber(_yaml.get("latency"), 0).longValue();
+        if (null != _yaml.get("latencies")) {
+            for (final Map.Entry<String, Object> latency : toMap(_yaml.get("latencies"), "latencies").entrySet()) {
+                m_latencies.put(latency.getKey().toUpperCase(), toNumber(latency.getValue(), 0).longValue());
+            }
+        }
+        m_readRate = (long) (toNumber(_yaml.get("read-rate"), 0).doubleValue() * 1048576);
+        m_writeRate = (long) (toNumber(_yaml.get("write-rate"), 0).doubleValue() * 1048576);
+        m_freeAspBytes = null == _yaml.get("free-asp") ? -1 : (long) (toNumber(_yaml.get("free-asp"), 0).doubleValue() * 1048576);
+        m_random = new Random(toNumber(_yaml.get("seed"), 0).longValue());
+
+        m_dir = Files.createTempDirectory("appinstall-simulated-host").toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                delete(m_dir);
+            } catch (final IOException e) {
+                // the work directory is left behind
+            }
+        }));
+        if (null != _yaml.get("libraries")) {
+            for (final Map.Entry<String, Object> entry : toMap(_yaml.get("libraries"), "libraries").entrySet()) {
+                final String name = entry.getKey().toUpperCase();
+                final Map<String, Object> map = null == entry.getValue() ? Collections.<String, Object> emptyMap() : toMap(entry.getValue(), "library " + name);
+                checkKeys(map, LIBRARY_KEYS, "library " + name);
+                final Library library = new Library(new File(m_dir, name));
+                if (null != map.get("size")) {
+                    library.m_size = (long) (toNumber(map.get("size"), 0).doubleValue() * 1048576);
+                }
+                library.m_locks = toNumber(map.get("locks"), 0).intValue();
+                if (null != map.get("objects") && !(map.get("objects") instanceof List)) {
+                    throw new IOException("'objects' of library " + name + " must be a list");
+                }
+                for (final Object object : null == map.get("objects") ? Collections.emptyList() : (List<?>) map.get("objects")) {
+                    library.addObject(toDescription(String.valueOf(object)));
+                }
+                m_libraries.put(name, library);
+            }
+        }
+        if (null != _yaml.get("failures") && !(_yaml.get("failures") instanceof List)) {
+            throw new IOException("'failures' must be a list");
+        }
+        for (final Object item : null == _yaml.get("failures") ? Collections.emptyList() : (List<?>) _yaml.get("failures")) {
+            final Map<String, Object> map = toMap(item, "a failure");
+            checkKeys(map, FAILURE_KEYS, "a failure");
+            if (null == map.get("command")) {
+                throw new IOException("A failure needs a command");
+            }
+            final String message = null == map.get("message") ? "CPF9898: Simulated failure." : String.valueOf(map.get("message"));
+            m_failures.add(new Failure(Pattern.compile(String.valueOf(map.get("command")), Pattern.CASE_INSENSITIVE), message, toNumber(map.get("rate"), 1).doubleValue(),
+                    toNumber(map.get("times"), Integer.MAX_VALUE).intValue()));
+        }
+        m_logger.printfln("Simulating the host, with %d libraries, in %s", m_libraries.size(), m_dir.getAbsolutePath());
+    }
+
+    @Override
+    public HostSession open() throws IOException {
+        return new Session();
+    }
+
+    /** @return the CCSID a stream file has been tagged with, or 0 if it hasn't been */
+    int getCcsid(final String _path) {
+        synchronized (m_ccsids) {
+            return m_ccsids.getOrDefault(_path, 0);
+        }
+    }
+
+    /** @return the message of the failure a command is to have, or {@code null} if it is to succeed */
+    private String getFailure(final String _cmd) {
+        synchronized (m_failures) {
+            for (final Failure failure : m_failures) {
+                if (0 < failure.m_remaining && failure.m_pattern.matcher(_cmd.trim()).matches() && m_random.nextDouble() < failure.m_rate) {
+                    --failure.m_remaining;
+                    return failure.m_message;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.theprez.appinstall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a stream with reading and writing on separate threads, handing off through a fixed set of recycled buffers.
+ * Memory use is bounded regardless of the length of the stream, and a slow source (such as a host connection) overlaps
+ * with a slow sink (such as compression).
+ */
+public class StreamPipe {
+    static final int CHUNK_COUNT = 8;
+    static final int CHUNK_SIZE = 1024 * 256;
+
+    private static class Chunk {
+        final byte[] m_data = new byte[CHUNK_SIZE];
+        int m_len = 0;
+    }
+
+    /**
+     * Reads {@code _in} to its end on a thread of {@code _producers} while writing to {@code _out} on the calling thread.
+     * The input stream is closed when done, the output stream is not.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(final InputStream _in, final OutputStream _out, final ExecutorService _producers) throws IOException {
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(CHUNK_COUNT);
+        final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(CHUNK_COUNT + 1);
+        for (int i = 0; i < CHUNK_COUNT; ++i) {
+            free.add(new Chunk());
+        }
+        final Chunk eof = new Chunk();
+        eof.m_len = -1;
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final Future<?> producer = _producers.submit(() -> {
+            try (InputStream in = _in) {
+                while (true) {
+                    final Chunk chunk = free.take();
+                    chunk.m_len = 0;
+                    int bytesRead = 0;
+                    while (chunk.m_len < CHUNK_SIZE && 0 <= (bytesRead = in.read(chunk.m_data, chunk.m_len, CHUNK_SIZE - chunk.m_len))) {
+                        chunk.m_len += bytesRead;
+                    }
+                    if (0 < chunk.m_len) {
+                        full.put(chunk);
+                    }
+                    if (0 > bytesRead) {
+                        break;
+                    }
+                }
+            } catch (final IOException e) {
+                failure.set(e);
+            } catch (final RuntimeException e) {
+                failure.set(new IOException(e));
+            } catch (final InterruptedException e) {
+                failure.set(new IOException("Interrupted while reading", e));
+            } finally {
+                full.add(eof);
+            }
+        });
+
+        long ret = 0;
+        boolean isDone = false;
+        try {
+            while (true) {
+                final Chunk chunk = full.take();
+                if (eof == chunk) {
+                    break;
+                }
+                _out.write(chunk.m_data, 0, chunk.m_len);
+                ret += chunk.m_len;
+                free.add(chunk);
+            }
+            isDone = true;
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while writing", e);
+        } finally {
+            if (!isDone) {
+                producer.cancel(true);
+            }
+        }
+        if (null != failure.get()) {
+            throw failure.get();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,246 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * A single entry (header data only) of a ustar/pax archive, as written by {@link TarWriter} and read by {@link TarReader}.
+ */
+public class TarEntry {
+    public static final char TYPE_FILE = '0';
+    public static final char TYPE_SYMLINK = '2';
+    public static final char TYPE_DIRECTORY = '5';
+
+    /** Source of the CCSID tag of an IFS file, or {@code null} when CCSIDs aren't available */
+    public interface CcsidSource {
+        int getCcsid(File _f) throws IOException;
+    }
+
+    /**
+     * Builds an entry from the attributes of a file on disk. Symbolic links are not followed.
+     *
+     * @return the entry, or {@code null} if the file is of a type that can't be archived (socket, FIFO, etc)
+     */
+    public static TarEntry fromFile(final File _f, final CcsidSource _ccsids) throws IOException {
+        final Path path = _f.toPath();
+        final BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        final TarEntry ret = new TarEntry(toEntryName(_f.getAbsolutePath()));
+        if (basic.isSymbolicLink()) {
+            ret.m_type = TYPE_SYMLINK;
+            ret.m_linkName = Files.readSymbolicLink(path).toString();
+        } else if (basic.isDirectory()) {
+            ret.m_type = TYPE_DIRECTORY;
+        } else if (basic.isRegularFile()) {
+            ret.m_type = TYPE_FILE;
+            ret.m_size = basic.size();
+        } else {
+            return null;
+        }
+        ret.m_mtime = basic.lastModifiedTime().toMillis() / 1000;
+        // the mode comes from the unix attributes (with the setuid, setgid and sticky bits), else the POSIX permissions,
+        // else a default
+        boolean hasMode = false;
+        try {
+            final Map<String, Object> unix = Files.readAttributes(path, "unix:mode,uid,gid", LinkOption.NOFOLLOW_LINKS);
+            ret.m_mode = 07777 & (Integer) unix.get("mode");
+            ret.m_uid = (Integer) unix.get("uid");
+            ret.m_gid = (Integer) unix.get("gid");
+            hasMode = true;
+        } catch (final UnsupportedOperationException | IllegalArgumentException e) {
+            // not every file system has the unix view
+        }
+        try {
+            final PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            ret.m_userName = posix.owner().getName();
+            ret.m_groupName = posix.group().getName();
+            if (!hasMode) {
+                for (final PosixFilePermission perm : posix.permissions()) {
+                    ret.m_mode |= 1 << (8 - perm.ordinal());
+                }
+                hasMode = true;
+            }
+        } catch (final UnsupportedOperationException e) {
+            // owner names are optional in the archive
+        }
+        if (!hasMode) {
+            ret.m_mode = basic.isDirectory() ? 0755 : 0644;
+        }
+        if (null != _ccsids && !ret.isSymbolicLink()) {
+            ret.m_ccsid = _ccsids.getCcsid(_f);
+        }
+        return ret;
+    }
+
+    /** @return the digest of a file's content, for {@link #getFingerprint(byte[])} */
+    static byte[] digestContent(final File _f) throws IOException {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        try (InputStream in = Files.newInputStream(_f.toPath())) {
+            final byte[] buf = new byte[1024 * 64];
+            int bytesRead = -1;
+            while (0 < (bytesRead = in.read(buf))) {
+                digest.update(buf, 0, bytesRead);
+            }
+        }
+        return digest.digest();
+    }
+
+    /** Archive entries are stored relative to the root directory */
+    static String toEntryName(final String _absolutePath) {
+        String ret = _absolutePath.replace(File.separatorChar, '/');
+        while (ret.startsWith("/")) {
+            ret = ret.substring(1);
+        }
+        return ret.isEmpty() ? "." : ret;
+    }
+
+    private int m_ccsid = -1;
+    private int m_gid = 0;
+    private String m_groupName = "";
+    private String m_linkName = "";
+    private int m_mode = 0;
+    private long m_mtime = 0;
+    private final String m_name;
+    private long m_size = 0;
+    private char m_type = TYPE_FILE;
+    private int m_uid = 0;
+    private String m_userName = "";
+
+    TarEntry(final String _name) {
+        m_name = _name;
+    }
+
+    /** @return the CCSID tag of the file, or -1 if none was recorded */
+    public int getCcsid() {
+        return m_ccsid;
+    }
+
+    /**
+     * @param _contentDigest the digest of the file's content (see {@link #digestContent(File)}), or {@code null} for
+     *                       entries without content
+     * @return a hash of everything this entry restores: content, type, link target, mode, owner and CCSID (but not the
+     *         modification time, so that rebuilding an unchanged file doesn't count as a change)
+     */
+    public String getFingerprint(final byte[] _contentDigest) {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        final String attrs = m_type + " " + Integer.toOctalString(m_mode) + " " + m_uid + ":" + m_gid + " " + m_userName + ":" + m_groupName + " " + m_ccsid + " " + m_linkName;
+        digest.update(attrs.getBytes(StandardCharsets.UTF_8));
+        if (null != _contentDigest) {
+            digest.update(_contentDigest);
+        }
+        return PackageConfiguration.toHex(digest.digest());
+    }
+
+    public int getGid() {
+        return m_gid;
+    }
+
+    public String getGroupName() {
+        return m_groupName;
+    }
+
+    public String getLinkName() {
+        return m_linkName;
+    }
+
+    public int getMode() {
+        return m_mode;
+    }
+
+    /** @return modification time, in seconds since the epoch */
+    public long getModificationTime() {
+        return m_mtime;
+    }
+
+    /** @return the entry name (relative to the root directory, without trailing '/') */
+    public String getName() {
+        return m_name;
+    }
+
+    /** @return the absolute path this entry is installed to */
+    public String getPath() {
+        return "/" + m_name;
+    }
+
+    /** @return the absolute path, with a trailing '/' for directories, as content hashes are recorded by */
+    public String getHashKey() {
+        return isDirectory() ? getPath() + "/" : getPath();
+    }
+
+    public long getSize() {
+        return m_size;
+    }
+
+    public char getType() {
+        return m_type;
+    }
+
+    public int getUid() {
+        return m_uid;
+    }
+
+    public String getUserName() {
+        return m_userName;
+    }
+
+    public boolean isDirectory() {
+        return TYPE_DIRECTORY == m_type;
+    }
+
+    public boolean isFile() {
+        return TYPE_FILE == m_type || '\0' == m_type || '7' == m_type;
+    }
+
+    public boolean isSymbolicLink() {
+        return TYPE_SYMLINK == m_type;
+    }
+
+    void setCcsid(final int _ccsid) {
+        m_ccsid = _ccsid;
+    }
+
+    void setGid(final int _gid) {
+        m_gid = _gid;
+    }
+
+    void setGroupName(final String _groupName) {
+        m_groupName = _groupName;
+    }
+
+    void setLinkName(final String _linkName) {
+        m_linkName = _linkName;
+    }
+
+    void setMode(final int _mode) {
+        m_mode = _mode;
+    }
+
+    void setModificationTime(final long _mtime) {
+        m_mtime = _mtime;
+    }
+
+    void setSize(final long _size) {
+        m_size = _size;
+    }
+
+    void setType(final char _type) {
+        m_type = _type;
+    }
+
+    void setUid(final int _uid) {
+        m_uid = _uid;
+    }
+
+    void setUserName(final String _userName) {
+        m_userName = _userName;
+    }
+}
@@ -0,0 +1,268 @@
+package com.github.theprez.appinstall;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * Restores a stream files archive (as written by {@link TarWriter}) under a target root directory, in three phases:
+ * <ol>
+ * <li>a single pass over the archive headers, creating directories and symbolic links as they come, and handing each file
+ * to a worker</li>
+ * <li>workers copy the content of each file straight out of the archive file, at its offset, concurrently</li>
+ * <li>once everything is in place, mode, owner and modification time are applied in one batch (directories last, deepest
+ * first, so that restoring their content doesn't disturb them)</li>
+ * </ol>
+ * CCSID tags are not restored here.
+ */
+public class TarExtractor {
+    private static final int ATTRIBUTE_BATCH_SIZE = 1024;
+    private static final PosixFilePermission[] PERMISSIONS = PosixFilePermission.values();
+
+    private final AppLogger m_logger;
+    private final AtomicInteger m_ownerFailures = new AtomicInteger();
+    private final Path m_root;
+    private final int m_threads;
+
+    /**
+     * @param _root    the directory that archive entries (which are relative to the root directory) are restored under
+     * @param _threads the number of files written concurrently
+     */
+    public TarExtractor(final AppLogger _logger, final File _root, final int _threads) {
+        m_logger = _logger;
+        m_root = _root.toPath().toAbsolutePath().normalize();
+        m_threads = Math.max(1, _threads);
+    }
+
+    /** Restores every entry of the archive */
+    public void extract(final File _tarFile) throws IOException, InterruptedException {
+        final List<TarEntry> entries = new ArrayList<TarEntry>();
+        final List<Future<?>> writes = new ArrayList<Future<?>>();
+        final Set<Path> dirs = new HashSet<Path>();
+        final Set<Path> links = new HashSet<Path>();
+        long bytes = 0;
+        final ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+        try (FileChannel archive = FileChannel.open(_tarFile.toPath(), StandardOpenOption.READ)) {
+            // phase 1: headers
+            final long start = System.nanoTime();
+            PerfRecorder.Span phase = PerfRecorder.getSingleton().start("streamfiles", "headers");
+            Files.createDirectories(m_root);
+            final Path realRoot = m_root.toRealPath();
+            try (TarReader tar = new TarReader(new BufferedInputStream(new FileInputStream(_tarFile), TarWriter.BLOCK_SIZE * 16))) {
+                TarEntry entry = null;
+                while (null != (entry = tar.getNextEntry())) {
+                    final Path target = resolve(entry);
+                    m_logger.printfln_verbose("x %s", target);
+                    if (entry.isDirectory()) {
+                        checkParent(entry, target, links, dirs, realRoot);
+                        createDirectories(target, dirs);
+                    } else if (entry.isSymbolicLink()) {
+                        checkParent(entry, target, links, dirs, realRoot);
+                        Files.deleteIfExists(target);
+                        Files.createSymbolicLink(target, Paths.get(entry.getLinkName()));
+                        links.add(target);
+                    } else if (entry.isFile()) {
+                        checkParent(entry, target, links, dirs, realRoot);
+                        final long offset = tar.getPosition();
+                        final long size = entry.getSize();
+                        writes.add(pool.submit(() -> {
+                            write(archive, offset, size, target);
+                            return null;
+                        }));
+                        bytes += size;
+                    } else {
+                        m_logger.printfln_warn("Skipping '%s' (unsupported entry type '%c')", target, entry.getType());
+                        continue;
+                    }
+                    entries.add(entry);
+                }
+            }
+            final long headersDone = System.nanoTime();
+            phase.close();
+            phase = PerfRecorder.getSingleton().start("streamfiles", "content");
+
+            // phase 2: content
+            await(writes);
+            final long filesDone = System.nanoTime();
+            phase.addBytes(bytes).close();
+            phase = PerfRecorder.getSingleton().start("streamfiles", "attributes");
+
+            // phase 3: attributes
+            final List<TarEntry> directories = new ArrayList<TarEntry>();
+            final List<Future<?>> batches = new ArrayList<Future<?>>();
+            for (int i = 0; i < entries.size(); i += ATTRIBUTE_BATCH_SIZE) {
+                final List<TarEntry> batch = entries.subList(i, Math.min(entries.size(), i + ATTRIBUTE_BATCH_SIZE));
+                batches.add(pool.submit(() -> {
+                    for (final TarEntry entry : batch) {
+                        if (!entry.isDirectory()) {
+                            setAttributes(entry);
+                        }
+                    }
+                    return null;
+                }));
+                for (final TarEntry entry : batch) {
+                    if (entry.isDirectory()) {
+                        directories.add(entry);
+                    }
+                }
+            }
+            await(batches);
+            directories.sort((_a, _b) -> _b.getName().compareTo(_a.getName()));
+            for (final TarEntry directory : directories) {
+                setAttributes(directory);
+            }
+            final long attributesDone = System.nanoTime();
+            phase.close();
+
+            if (0 < m_ownerFailures.get()) {
+                m_logger.printfln_warn("Could not set the owner of %d entries", m_ownerFailures.get());
+            }
+            m_logger.printfln("Restored %d stream file entries (%.1f MB) under %s: headers %.1fs, content %.1fs, attributes %.1fs", entries.size(), bytes / 1048576.0, m_root, (headersDone - start) / 1e9,
+                    (filesDone - headersDone) / 1e9, (attributesDone - filesDone) / 1e9);
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void await(final List<Future<?>> _tasks) throws IOException, InterruptedException {
+        for (final Future<?> task : _tasks) {
+            try {
+                task.get();
+            } catch (final ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Creates the directory an entry goes in, having checked that the entry can't end up outside the root: it mustn't be
+     * under a symbolic link restored from the archive, and the directory, with every link on the system resolved, must
+     * be under the root
+     */
+    private static void checkParent(final TarEntry _entry, final Path _target, final Set<Path> _links, final Set<Path> _dirs, final Path _realRoot) throws IOException {
+        for (Path dir = _target.getParent(); null != dir; dir = dir.getParent()) {
+            if (_links.contains(dir)) {
+                throw new IOException("Archive entry '" + _entry.getName() + "' is under the symbolic link " + dir);
+            }
+        }
+        createDirectories(_target.getParent(), _dirs);
+        if (!_target.getParent().toRealPath().startsWith(_realRoot)) {
+            throw new IOException("Archive entry '" + _entry.getName() + "' is outside of " + _realRoot);
+        }
+    }
+
+    /**
+     * Creates a directory (and its parents) unless it has been already. A symbolic link to a directory, already on the
+     * system, is kept (and the directory's content restored through it); anything else in the way is an error.
+     */
+    private static void createDirectories(final Path _dir, final Set<Path> _created) throws IOException {
+        if (null == _dir || _created.contains(_dir)) {
+            return;
+        }
+        if (!Files.isDirectory(_dir)) {
+            if (Files.exists(_dir, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("Could not restore directory '" + _dir + "': something other than a directory is in the way");
+            }
+            Files.createDirectories(_dir);
+        }
+        _created.add(_dir);
+    }
+
+    /** @return where an entry is restored to, which must be under the target root */
+    private Path resolve(final TarEntry _entry) throws IOException {
+        final Path ret = m_root.resolve(_entry.getName()).normalize();
+        if (!ret.startsWith(m_root)) {
+            throw new IOException("Archive entry '" + _entry.getName() + "' is outside of " + m_root);
+        }
+        return ret;
+    }
+
+    private void setAttributes(final TarEntry _entry) throws IOException {
+        final Path target = resolve(_entry);
+        if (_entry.isSymbolicLink()) {
+            setOwner(_entry, target);
+            return;
+        }
+        if (Files.isSymbolicLink(target)) {
+            return; // a directory reached through a link of the system's own, which keeps its attributes
+        }
+        try {
+            Files.setAttribute(target, "unix:mode", _entry.getMode(), LinkOption.NOFOLLOW_LINKS);
+        } catch (final UnsupportedOperationException | IllegalArgumentException e) {
+            final Set<PosixFilePermission> perms = EnumSet.noneOf(PosixFilePermission.class);
+            for (int i = 0; i < PERMISSIONS.length; ++i) {
+                if (0 != (_entry.getMode() & (1 << (8 - i)))) {
+                    perms.add(PERMISSIONS[i]);
+                }
+            }
+            Files.setPosixFilePermissions(target, perms);
+        }
+        setOwner(_entry, target);
+        Files.setLastModifiedTime(target, FileTime.from(_entry.getModificationTime(), TimeUnit.SECONDS));
+    }
+
+    /** Restores the owner, by name where there is one (ids differ from system to system), which takes authority to do */
+    private void setOwner(final TarEntry _entry, final Path _target) {
+        try {
+            final UserPrincipalLookupService users = _target.getFileSystem().getUserPrincipalLookupService();
+            if (!_entry.getUserName().isEmpty()) {
+                Files.getFileAttributeView(_target, FileOwnerAttributeView.class, LinkOption.NOFOLLOW_LINKS).setOwner(users.lookupPrincipalByName(_entry.getUserName()));
+            } else {
+                Files.setAttribute(_target, "unix:uid", _entry.getUid(), LinkOption.NOFOLLOW_LINKS);
+            }
+            if (!_entry.getGroupName().isEmpty()) {
+                Files.getFileAttributeView(_target, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).setGroup(users.lookupPrincipalByGroupName(_entry.getGroupName()));
+            } else {
+                Files.setAttribute(_target, "unix:gid", _entry.getGid(), LinkOption.NOFOLLOW_LINKS);
+            }
+        } catch (final IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            m_ownerFailures.incrementAndGet();
+            m_logger.printfln_verbose("Could not set the owner of '%s': %s", _target, e.getLocalizedMessage());
+        }
+    }
+
+    private static void write(final FileChannel _archive, final long _offset, final long _size, final Path _target) throws IOException {
+        if (Files.isSymbolicLink(_target)) {
+            Files.delete(_target); // replaced, not written through
+        }
+        try (FileChannel out = FileChannel.open(_target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long pos = 0;
+            while (pos < _size) {
+                final long transferred = _archive.transferTo(_offset + pos, _size - pos, out);
+                if (0 >= transferred) {
+                    throw new IOException("Unexpected end of archive");
+                }
+                pos += transferred;
+            }
+        } catch (final FileSystemException e) {
+            throw new IOException("Could not restore '" + _target + "': " + e.getLocalizedMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.theprez.appinstall;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads entries from a ustar/pax archive (as written by {@link TarWriter}) in a single streaming pass. GNU long name
+ * entries are understood as well.
+ */
+public class TarReader implements Closeable {
+
+    private final InputStream m_in;
+    private long m_pos = 0;
+    private long m_remaining = 0;
+    private long m_padding = 0;
+    private final byte[] m_header = new byte[TarWriter.BLOCK_SIZE];
+
+    public TarReader(final InputStream _in) {
+        m_in = new FilterInputStream(_in) {
+            @Override
+            public int read() throws IOException {
+                final int ret = in.read();
+                if (0 <= ret) {
+                    ++m_pos;
+                }
+                return ret;
+            }
+
+            @Override
+            public int read(final byte[] _b, final int _off, final int _len) throws IOException {
+                final int ret = in.read(_b, _off, _len);
+                if (0 < ret) {
+                    m_pos += ret;
+                }
+                return ret;
+            }
+
+            @Override
+            public long skip(final long _n) throws IOException {
+                final long ret = in.skip(_n);
+                m_pos += ret;
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_in.close();
+    }
+
+    /**
+     * Advances to the next entry, skipping any unread content of the current one.
+     *
+     * @return the next entry, or {@code null} at the end of the archive
+     */
+    public TarEntry getNextEntry() throws IOException {
+        skipFully(m_remaining + m_padding);
+        m_remaining = 0;
+        m_padding = 0;
+        final Map<String, String> pax = new HashMap<String, String>();
+        String longName = null;
+        String longLink = null;
+        while (true) {
+            if (!readHeader()) {
+                return null;
+            }
+            final char type = (char) m_header[156];
+            final long size = parseNumber(124, 12);
+            if ('x' == type || 'g' == type) {
+                final byte[] records = readData(size);
+                if ('x' == type) {
+                    parsePaxRecords(records, pax);
+                }
+            } else if ('L' == type) {
+                longName = parseString(readData(size), 0, (int) size);
+            } else if ('K' == type) {
+                longLink = parseString(readData(size), 0, (int) size);
+            } else {
+                String name = parseString(m_header, 0, 100);
+                final String prefix = parseString(m_header, 345, 155);
+                if (!prefix.isEmpty() && "ustar".equals(parseString(m_header, 257, 6))) {
+                    name = prefix + "/" + name;
+                }
+                name = pax.containsKey("path") ? pax.get("path") : null != longName ? longName : name;
+                final TarEntry entry = new TarEntry(TarEntry.toEntryName(name.replaceAll("/+$", "")));
+                entry.setType('\0' == type ? TarEntry.TYPE_FILE : type);
+                if (TarEntry.TYPE_FILE == type && name.endsWith("/")) {
+                    entry.setType(TarEntry.TYPE_DIRECTORY);
+                }
+                entry.setMode((int) parseNumber(100, 8));
+                entry.setUid(pax.containsKey("uid") ? (int) Long.parseLong(pax.get("uid")) : (int) parseNumber(108, 8));
+                entry.setGid(pax.containsKey("gid") ? (int) Long.parseLong(pax.get("gid")) : (int) parseNumber(116, 8));
+                entry.setSize(pax.containsKey("size") ? Long.parseLong(pax.get("size")) : size);
+                entry.setModificationTime(pax.containsKey("mtime") ? (long) Double.parseDouble(pax.get("mtime")) : parseNumber(136, 12));
+                entry.setLinkName(pax.containsKey("linkpath") ? pax.get("linkpath") : null != longLink ? longLink : parseString(m_header, 157, 100));
+                entry.setUserName(pax.containsKey("uname") ? pax.get("uname") : parseString(m_header, 265, 32));
+                entry.setGroupName(pax.containsKey("gname") ? pax.get("gname") : parseString(m_header, 297, 32));
+                if (pax.containsKey(TarWriter.PAX_CCSID)) {
+                    entry.setCcsid(Integer.parseInt(pax.get(TarWriter.PAX_CCSID)));
+                }
+                if (entry.isFile()) {
+                    m_remaining = entry.getSize();
+                    m_padding = padding(entry.getSize());
+                }
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of the archive consumed so far. Right after {@link #getNextEntry()}, that is where the
+     *         content of the entry starts, so it can be read from the archive file directly.
+     */
+    public long getPosition() {
+        return m_pos;
+    }
+
+    /**
+     * Reads content of the current entry.
+     *
+     * @return the number of bytes read, or -1 at the end of the entry
+     */
+    public int read(final byte[] _buf, final int _off, final int _len) throws IOException {
+        if (0 >= m_remaining) {
+            return -1;
+        }
+        final int bytesRead = m_in.read(_buf, _off, (int) Math.min(_len, m_remaining));
+        if (0 > bytesRead) {
+            throw new EOFException("Unexpected end of archive");
+        }
+        m_remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    private static long padding(final long _size) {
+        final int remainder = (int) (_size % TarWriter.BLOCK_SIZE);
+        return 0 == remainder ? 0 : TarWriter.BLOCK_SIZE - remainder;
+    }
+
+    private static void parsePaxRecords(final byte[] _records, final Map<String, String> _into) throws IOException {
+        int pos = 0;
+        while (pos < _records.length) {
+            int space = pos;
+            while (space < _records.length && ' ' != _records[space]) {
+                ++space;
+            }
+            if (space == pos || space >= _records.length) {
+                break;
+            }
+            final int len = Integer.parseInt(new String(_records, pos, space - pos, StandardCharsets.US_ASCII));
+            if (len <= 0 || pos + len > _records.length) {
+                throw new IOException("Corrupt pax extended header");
+            }
+            final String record = new String(_records, space + 1, len - (space - pos) - 2, StandardCharsets.UTF_8);
+            final int eq = record.indexOf('=');
+            if (0 < eq) {
+                _into.put(record.substring(0, eq), record.substring(eq + 1));
+            }
+            pos += len;
+        }
+    }
+
+    private static String parseString(final byte[] _buf, final int _offset, final int _len) {
+        int end = _offset;
+        while (end < _offset + _len && 0 != _buf[end]) {
+            ++end;
+        }
+        return new String(_buf, _offset, end - _offset, StandardCharsets.UTF_8);
+    }
+
+    private long parseNumber(final int _offset, final int _len) {
+        if (0 != (0x80 & m_header[_offset])) { // GNU base-256
+            long ret = 0x7f & m_header[_offset];
+            for (int i = _offset + 1; i < _offset + _len; ++i) {
+                ret = (ret << 8) | (0xff & m_header[i]);
+            }
+            return ret;
+        }
+        final int end = _offset + _len;
+        int i = _offset;
+        while (i < end && ' ' == m_header[i]) {
+            ++i;
+        }
+        long ret = 0;
+        for (; i < end && '0' <= m_header[i] && '7' >= m_header[i]; ++i) {
+            ret = (ret << 3) + (m_header[i] - '0');
+        }
+        return ret;
+    }
+
+    private byte[] readData(final long _size) throws IOException {
+        if (Integer.MAX_VALUE < _size) {
+            throw new IOException("Archive header data too large");
+        }
+        final byte[] ret = new byte[(int) _size];
+        readFully(ret);
+        skipFully(padding(_size));
+        return ret;
+    }
+
+    private void readFully(final byte[] _buf) throws IOException {
+        int pos = 0;
+        while (pos < _buf.length) {
+            final int bytesRead = m_in.read(_buf, pos, _buf.length - pos);
+            if (0 > bytesRead) {
+                throw new EOFException("Unexpected end of archive");
+            }
+            pos += bytesRead;
+        }
+    }
+
+    /** @return false at the end-of-archive marker (or a truncated archive) */
+    private boolean readHeader() throws IOException {
+        int pos = 0;
+        while (pos < m_header.length) {
+            final int bytesRead = m_in.read(m_header, pos, m_header.length - pos);
+            if (0 > bytesRead) {
+                return false;
+            }
+            pos += bytesRead;
+        }
+        for (final byte b : m_header) {
+            if (0 != b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skipFully(long _len) throws IOException {
+        while (0 < _len) {
+            final long skipped = m_in.skip(_len);
+            if (0 < skipped) {
+                _len -= skipped;
+            } else if (0 > m_in.read()) {
+                throw new EOFException("Unexpected end of archive");
+            } else {
+                --_len;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.github.theprez.appinstall;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Streams files into a POSIX ustar archive in a single pass. When an entry's attributes don't fit in a ustar header (long
+ * names, huge files, large ids) or carry a CCSID tag, a pax extended header is written ahead of it.
+ */
+public class TarWriter implements Closeable {
+    static final int BLOCK_SIZE = 512;
+    static final String PAX_CCSID = "APPINSTALL.ccsid";
+
+    private static final long MAX_OCTAL_8 = 07777777L;
+    private static final long MAX_OCTAL_12 = 077777777777L;
+
+    private final byte[] m_buf = new byte[1024 * 64];
+    private long m_entryCount = 0;
+    private boolean m_isFinished = false;
+    private final OutputStream m_out;
+    private long m_pos = 0;
+
+    /**
+     * @param _out the stream to write the archive to. It is not closed by {@link #finish()}, so the archive can be written
+     *             directly into an enclosing stream such as a jar entry.
+     */
+    public TarWriter(final OutputStream _out) {
+        m_out = new FilterOutputStream(_out) {
+            @Override
+            public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+                out.write(_b, _off, _len);
+                m_pos += _len;
+            }
+
+            @Override
+            public void write(final int _b) throws IOException {
+                out.write(_b);
+                ++m_pos;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        m_out.close();
+    }
+
+    /** Writes the end-of-archive marker. The underlying stream is left open. */
+    public void finish() throws IOException {
+        if (m_isFinished) {
+            return;
+        }
+        m_out.write(new byte[BLOCK_SIZE * 2]);
+        m_out.flush();
+        m_isFinished = true;
+    }
+
+    public long getEntryCount() {
+        return m_entryCount;
+    }
+
+    /** @return the number of bytes written so far, which is where the next entry starts */
+    public long getPosition() {
+        return m_pos;
+    }
+
+    /**
+     * Adds a single file, directory, or symbolic link (directories are not recursed).
+     *
+     * @return {@code false} if the file is of a type that can't be archived
+     */
+    public boolean putFile(final File _f, final TarEntry.CcsidSource _ccsids) throws IOException {
+        final TarEntry entry = TarEntry.fromFile(_f, _ccsids);
+        if (null == entry) {
+            return false;
+        }
+        putEntry(entry, _f, null);
+        return true;
+    }
+
+    /**
+     * Adds an entry built by {@link TarEntry#fromFile(File, TarEntry.CcsidSource)}, with the content of the file it was
+     * built from.
+     *
+     * @param _digest if not {@code null}, updated with the content as it is written
+     */
+    public void putEntry(final TarEntry _entry, final File _f, final MessageDigest _digest) throws IOException {
+        writeHeader(_entry);
+        if (_entry.isFile()) {
+            try (InputStream in = Files.newInputStream(_f.toPath())) {
+                long remaining = _entry.getSize();
+                while (0 < remaining) {
+                    final int bytesRead = in.read(m_buf, 0, (int) Math.min(m_buf.length, remaining));
+                    if (0 > bytesRead) {
+                        throw new IOException("File '" + _f.getAbsolutePath() + "' changed while being packaged");
+                    }
+                    if (null != _digest) {
+                        _digest.update(m_buf, 0, bytesRead);
+                    }
+                    m_out.write(m_buf, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+            }
+            pad(_entry.getSize());
+        }
+    }
+
+    /**
+     * Writes the header block(s) for an entry. For regular files, exactly {@link TarEntry#getSize()} bytes of content must
+     * follow, then {@link #pad(long)}.
+     */
+    void writeHeader(final TarEntry _entry) throws IOException {
+        if (m_isFinished) {
+            throw new IOException("Archive already finished");
+        }
+        final Map<String, String> pax = new LinkedHashMap<String, String>();
+        final String name = _entry.isDirectory() ? _entry.getName() + "/" : _entry.getName();
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        final int split = findPrefixSplit(nameBytes);
+        if (0 > split) {
+            pax.put("path", name);
+        }
+        final byte[] linkBytes = _entry.getLinkName().getBytes(StandardCharsets.UTF_8);
+        if (100 < linkBytes.length) {
+            pax.put("linkpath", _entry.getLinkName());
+        }
+        if (MAX_OCTAL_12 < _entry.getSize()) {
+            pax.put("size", Long.toString(_entry.getSize()));
+        }
+        if (MAX_OCTAL_8 < _entry.getUid() || 0 > _entry.getUid()) {
+            pax.put("uid", Integer.toUnsignedString(_entry.getUid()));
+        }
+        if (MAX_OCTAL_8 < _entry.getGid() || 0 > _entry.getGid()) {
+            pax.put("gid", Integer.toUnsignedString(_entry.getGid()));
+        }
+        if (MAX_OCTAL_12 < _entry.getModificationTime() || 0 > _entry.getModificationTime()) {
+            pax.put("mtime", Long.toString(_entry.getModificationTime()));
+        }
+        if (32 < _entry.getUserName().getBytes(StandardCharsets.UTF_8).length) {
+            pax.put("uname", _entry.getUserName());
+        }
+        if (32 < _entry.getGroupName().getBytes(StandardCharsets.UTF_8).length) {
+            pax.put("gname", _entry.getGroupName());
+        }
+        if (0 < _entry.getCcsid()) {
+            pax.put(PAX_CCSID, Integer.toString(_entry.getCcsid()));
+        }
+        if (!pax.isEmpty()) {
+            writePaxHeader(name, pax);
+        }
+
+        final byte[] header = new byte[BLOCK_SIZE];
+        if (0 > split) {
+            putBytes(header, 0, 100, nameBytes);
+        } else {
+            putBytes(header, 0, 100, Arrays.copyOfRange(nameBytes, 0 == split ? 0 : split + 1, nameBytes.length));
+            putBytes(header, 345, 155, Arrays.copyOfRange(nameBytes, 0, split));
+        }
+        putOctal(header, 100, 8, _entry.getMode());
+        putOctal(header, 108, 8, Math.min(MAX_OCTAL_8, Math.max(0, _entry.getUid())));
+        putOctal(header, 116, 8, Math.min(MAX_OCTAL_8, Math.max(0, _entry.getGid())));
+        putOctal(header, 124, 12, Math.min(MAX_OCTAL_12, _entry.isFile() ? _entry.getSize() : 0));
+        putOctal(header, 136, 12, Math.min(MAX_OCTAL_12, Math.max(0, _entry.getModificationTime())));
+        header[156] = (byte) _entry.getType();
+        putBytes(header, 157, 100, linkBytes);
+        putBytes(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+        putBytes(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+        putBytes(header, 265, 32, _entry.getUserName().getBytes(StandardCharsets.UTF_8));
+        putBytes(header, 297, 32, _entry.getGroupName().getBytes(StandardCharsets.UTF_8));
+        putChecksum(header);
+        m_out.write(header);
+        ++m_entryCount;
+    }
+
+    /** Pads entry content of the given length out to a full block */
+    void pad(final long _size) throws IOException {
+        final int remainder = (int) (_size % BLOCK_SIZE);
+        if (0 != remainder) {
+            m_out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    private void writePaxHeader(final String _name, final Map<String, String> _records) throws IOException {
+        final StringBuilder data = new StringBuilder();
+        for (final Entry<String, String> record : _records.entrySet()) {
+            final int payloadLen = record.getKey().getBytes(StandardCharsets.UTF_8).length + record.getValue().getBytes(StandardCharsets.UTF_8).length + 3;
+            int len = payloadLen + Integer.toString(payloadLen).length();
+            if (Integer.toString(len).length() != Integer.toString(payloadLen).length()) {
+                len = payloadLen + Integer.toString(len).length();
+            }
+            data.append(len).append(' ').append(record.getKey()).append('=').append(record.getValue()).append('\n');
+        }
+        final byte[] dataBytes = data.toString().getBytes(StandardCharsets.UTF_8);
+        final String baseName = _name.replaceAll("/+$", "").replaceAll(".*/", "");
+        final byte[] header = new byte[BLOCK_SIZE];
+        final byte[] paxName = ("PaxHeaders.0/" + baseName).getBytes(StandardCharsets.UTF_8);
+        putBytes(header, 0, 100, Arrays.copyOf(paxName, Math.min(99, paxName.length)));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, dataBytes.length);
+        putOctal(header, 136, 12, 0);
+        header[156] = 'x';
+        putBytes(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+        putBytes(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+        putChecksum(header);
+        m_out.write(header);
+        m_out.write(dataBytes);
+        pad(dataBytes.length);
+    }
+
+    /**
+     * @return the index of the '/' at which the name is split into prefix and name fields, 0 if the whole name fits in the
+     *         name field, or -1 if it can't be represented in a ustar header at all
+     */
+    private static int findPrefixSplit(final byte[] _name) {
+        if (100 >= _name.length) {
+            return 0;
+        }
+        for (int i = Math.min(155, _name.length - 2); i > 0; --i) {
+            if ('/' == _name[i] && 100 >= _name.length - i - 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void putBytes(final byte[] _header, final int _offset, final int _len, final byte[] _value) {
+        System.arraycopy(_value, 0, _header, _offset, Math.min(_len, _value.length));
+    }
+
+    private static void putChecksum(final byte[] _header) {
+        Arrays.fill(_header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (final byte b : _header) {
+            sum += 0xff & b;
+        }
+        final String octal = String.format("%06o", sum);
+        putBytes(_header, 148, 6, octal.getBytes(StandardCharsets.US_ASCII));
+        _header[154] = 0;
+        _header[155] = ' ';
+    }
+
+    private static void putOctal(final byte[] _header, final int _offset, final int _len, final long _value) {
+        final String octal = String.format("%0" + (_len - 1) + "o", _value);
+        putBytes(_header, _offset, _len - 1, octal.getBytes(StandardCharsets.US_ASCII));
+        _header[_offset + _len - 1] = 0;
+    }
+}
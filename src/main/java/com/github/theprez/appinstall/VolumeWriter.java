@@ -0,0 +1,209 @@
+package com.github.theprez.appinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.theprez.jcmdutils.AppLogger;
+
+/**
+ * Writes package payloads into a series of payload volumes ({@code <package>.001}, {@code <package>.002}, ...), starting a
+ * new volume once the current one reaches the volume size. A payload that doesn't fit is continued, as a new entry, in
+ * the next volume. Each finished volume is checksummed in the background while the next one is written.
+ */
+public class VolumeWriter extends OutputStream {
+    private static final int CHUNK_SIZE = 1024 * 64;
+
+    private static String digestFile(final File _f) throws IOException {
+        final MessageDigest digest = PackageConfiguration.newDigest();
+        try (InputStream in = Files.newInputStream(_f.toPath())) {
+            final byte[] buf = new byte[1024 * 256];
+            int bytesRead = -1;
+            while (0 < (bytesRead = in.read(buf))) {
+                digest.update(buf, 0, bytesRead);
+            }
+        }
+        return PackageConfiguration.toHex(digest.digest());
+    }
+
+    private final Codec m_codec;
+    private Codec m_entryCodec = null;
+    private long m_codecNanos = 0;
+    private long m_compressedSize = 0;
+    private PackageVolume m_current = null;
+    private final Map<PackageVolume, Future<String>> m_digests = new LinkedHashMap<PackageVolume, Future<String>>();
+    private final ExecutorService m_digester = Executors.newSingleThreadExecutor();
+    private String m_file = null;
+    private final File m_jar;
+    private final AppLogger m_logger;
+    private boolean m_isFinished = false;
+    private ZipWriter m_out = null;
+    private long m_partLength = 0;
+    private long m_partOffset = 0;
+    private long m_size = 0;
+    private final long m_volumeSize;
+
+    /**
+     * @param _jar        the package jar, which the volumes are named after and written next to
+     * @param _volumeSize the size, in bytes, at which a volume is considered full
+     */
+    public VolumeWriter(final AppLogger _logger, final File _jar, final long _volumeSize, final Codec _codec) {
+        m_logger = _logger;
+        m_jar = _jar.getAbsoluteFile();
+        m_volumeSize = _volumeSize;
+        m_codec = _codec;
+    }
+
+    /** Discards all volumes written, unless {@link #finish()} completed */
+    @Override
+    public void close() throws IOException {
+        m_digester.shutdownNow();
+        if (m_isFinished) {
+            return;
+        }
+        if (null != m_out) {
+            m_out.close();
+        }
+        for (final PackageVolume volume : m_digests.keySet()) {
+            new File(m_jar.getParentFile(), volume.getName()).delete();
+        }
+        if (null != m_current) {
+            new File(m_jar.getParentFile(), m_current.getName()).delete();
+        }
+    }
+
+    /** Finishes the current payload */
+    public void closeEntry() throws IOException {
+        if (null == m_file) {
+            return;
+        }
+        closePart();
+        m_file = null;
+    }
+
+    /** Closes the last volume and waits for every volume to be checksummed */
+    public List<PackageVolume> finish() throws IOException, InterruptedException {
+        closeEntry();
+        closeVolume();
+        final List<PackageVolume> ret = new ArrayList<PackageVolume>();
+        for (final Map.Entry<PackageVolume, Future<String>> volume : m_digests.entrySet()) {
+            try {
+                volume.getKey().setDigest(volume.getValue().get());
+            } catch (final ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            ret.add(volume.getKey());
+        }
+        m_isFinished = true;
+        return ret;
+    }
+
+    /** @return the time spent compressing so far */
+    public long getCodecNanos() {
+        return m_codecNanos + (null == m_out ? 0 : m_out.getCodecNanos());
+    }
+
+    /** @return the compressed size of the payload data written so far */
+    public long getCompressedSize() {
+        return m_compressedSize;
+    }
+
+    /** @return the uncompressed size of the payload data written so far */
+    public long getSize() {
+        return m_size;
+    }
+
+    /** Starts a new payload, to be written through this stream */
+    public void putNextEntry(final String _file) throws IOException {
+        putNextEntry(_file, m_codec);
+    }
+
+    /** Starts a new payload, to be written through this stream with a codec of its own */
+    public void putNextEntry(final String _file, final Codec _codec) throws IOException {
+        closeEntry();
+        m_entryCodec = _codec;
+        if (null == m_out || m_out.getPosition() >= m_volumeSize) {
+            closeVolume();
+            openVolume();
+        }
+        m_file = _file;
+        m_partOffset = 0;
+        openPart();
+    }
+
+    @Override
+    public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+        if (null == m_file) {
+            throw new IOException("No current payload");
+        }
+        // written a chunk at a time, so that volumes don't run much past the volume size
+        int off = _off;
+        int remaining = _len;
+        while (0 < remaining) {
+            if (0 < m_partLength && m_out.getPosition() >= m_volumeSize) {
+                closePart();
+                closeVolume();
+                openVolume();
+                m_partOffset += m_partLength;
+                openPart();
+            }
+            final int count = Math.min(remaining, CHUNK_SIZE);
+            m_out.write(_b, off, count);
+            m_partLength += count;
+            off += count;
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public void write(final int _b) throws IOException {
+        write(new byte[] { (byte) _b }, 0, 1);
+    }
+
+    private void closePart() throws IOException {
+        m_out.closeEntry();
+        final ZipIndex.Record entry = m_out.getLastEntry();
+        m_size += entry.getSize();
+        m_compressedSize += entry.getCompressedSize();
+        m_current.addPart(new PackageVolume.Part(m_file, m_partOffset, m_partLength));
+    }
+
+    private void closeVolume() throws IOException {
+        if (null == m_out) {
+            return;
+        }
+        m_out.close();
+        m_codecNanos += m_out.getCodecNanos();
+        final PackageVolume volume = m_current;
+        final File f = new File(m_jar.getParentFile(), volume.getName());
+        volume.setSize(f.length());
+        m_logger.printfln_verbose("Wrote volume %s (%.1f MB)", volume.getName(), volume.getSize() / 1048576.0);
+        m_digests.put(volume, m_digester.submit(() -> digestFile(f)));
+        m_out = null;
+        m_current = null;
+    }
+
+    private void openPart() throws IOException {
+        m_out.setCodec(m_entryCodec);
+        m_out.putNextEntry("APPINSTALL-DATA/" + m_file);
+        m_partLength = 0;
+    }
+
+    private void openVolume() throws IOException {
+        final PackageVolume volume = new PackageVolume(String.format("%s.%03d", m_jar.getName(), m_digests.size() + 1));
+        m_out = new ZipWriter(new File(m_jar.getParentFile(), volume.getName()));
+        m_out.setCodec(m_codec);
+        m_current = volume;
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.theprez.appinstall;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The central directory of an existing zip/jar file. Unlike {@link java.util.zip.ZipFile}, this gives access to the
+ * location of each entry's compressed data so it can be copied without being inflated.
+ */
+public class ZipIndex implements Closeable {
+    static final int CEN_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int LOC_SIG = 0x04034b50;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    /** A central directory record */
+    public static class Record {
+        long m_compressedSize;
+        int m_crc;
+        int m_dosTime;
+        int m_externalAttributes;
+        int m_flags;
+        long m_localHeaderOffset;
+        int m_method;
+        String m_name;
+        long m_size;
+
+        public long getCompressedSize() {
+            return m_compressedSize;
+        }
+
+        public int getMethod() {
+            return m_method;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+    }
+
+    private final FileChannel m_channel;
+    private final long m_centralDirectoryOffset;
+    private final List<Record> m_records;
+
+    public ZipIndex(final File _f) throws IOException {
+        m_channel = FileChannel.open(_f.toPath(), StandardOpenOption.READ);
+        try {
+            final long fileSize = m_channel.size();
+            final int tailLen = (int) Math.min(fileSize, 0xFFFF + 22);
+            final ByteBuffer tail = read(fileSize - tailLen, tailLen);
+            int endPos = -1;
+            for (int i = tailLen - 22; i >= 0; --i) {
+                if (END_SIG == tail.getInt(i)) {
+                    endPos = i;
+                    break;
+                }
+            }
+            if (0 > endPos) {
+                throw new IOException("Not a zip file: " + _f.getAbsolutePath());
+            }
+            long entryCount = 0xFFFF & tail.getShort(endPos + 10);
+            long cenSize = 0xFFFFFFFFL & tail.getInt(endPos + 12);
+            long cenOffset = 0xFFFFFFFFL & tail.getInt(endPos + 16);
+            if (20 <= endPos && ZIP64_LOCATOR_SIG == tail.getInt(endPos - 20)) {
+                final ByteBuffer end64 = read(tail.getLong(endPos - 20 + 8), 56);
+                if (ZIP64_END_SIG != end64.getInt(0)) {
+                    throw new IOException("Corrupt zip64 end record in " + _f.getAbsolutePath());
+                }
+                entryCount = end64.getLong(32);
+                cenSize = end64.getLong(40);
+                cenOffset = end64.getLong(48);
+            }
+            m_centralDirectoryOffset = cenOffset;
+            final ByteBuffer cen = read(cenOffset, (int) cenSize);
+            final List<Record> records = new ArrayList<Record>((int) Math.min(entryCount, 0xFFFFF));
+            int pos = 0;
+            while (pos + 46 <= cenSize && CEN_SIG == cen.getInt(pos)) {
+                final Record rec = new Record();
+                rec.m_flags = 0xFFFF & cen.getShort(pos + 8);
+                rec.m_method = 0xFFFF & cen.getShort(pos + 10);
+                rec.m_dosTime = cen.getInt(pos + 12);
+                rec.m_crc = cen.getInt(pos + 16);
+                rec.m_compressedSize = 0xFFFFFFFFL & cen.getInt(pos + 20);
+                rec.m_size = 0xFFFFFFFFL & cen.getInt(pos + 24);
+                final int nameLen = 0xFFFF & cen.getShort(pos + 28);
+                final int extraLen = 0xFFFF & cen.getShort(pos + 30);
+                final int commentLen = 0xFFFF & cen.getShort(pos + 32);
+                rec.m_externalAttributes = cen.getInt(pos + 38);
+                rec.m_localHeaderOffset = 0xFFFFFFFFL & cen.getInt(pos + 42);
+                final byte[] name = new byte[nameLen];
+                for (int i = 0; i < nameLen; ++i) {
+                    name[i] = cen.get(pos + 46 + i);
+                }
+                rec.m_name = new String(name, StandardCharsets.UTF_8);
+                readZip64Extra(cen, pos + 46 + nameLen, extraLen, rec);
+                records.add(rec);
+                pos += 46 + nameLen + extraLen + commentLen;
+            }
+            m_records = Collections.unmodifiableList(records);
+        } catch (final IOException | RuntimeException e) {
+            m_channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_channel.close();
+    }
+
+    FileChannel getChannel() {
+        return m_channel;
+    }
+
+    /** @return the offset of the central directory, which is also the length of all entry data before it */
+    long getCentralDirectoryOffset() {
+        return m_centralDirectoryOffset;
+    }
+
+    /** @return the offset of the (compressed) data of the given entry */
+    long getDataOffset(final Record _rec) throws IOException {
+        final ByteBuffer loc = read(_rec.m_localHeaderOffset, 30);
+        if (LOC_SIG != loc.getInt(0)) {
+            throw new IOException("Corrupt local header for " + _rec.m_name);
+        }
+        return _rec.m_localHeaderOffset + 30 + (0xFFFF & loc.getShort(26)) + (0xFFFF & loc.getShort(28));
+    }
+
+    public List<Record> getRecords() {
+        return m_records;
+    }
+
+    private ByteBuffer read(final long _pos, final int _len) throws IOException {
+        final ByteBuffer ret = ByteBuffer.allocate(_len).order(ByteOrder.LITTLE_ENDIAN);
+        while (ret.hasRemaining()) {
+            if (0 > m_channel.read(ret, _pos + ret.position())) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+        return ret;
+    }
+
+    private static void readZip64Extra(final ByteBuffer _cen, final int _off, final int _len, final Record _rec) {
+        int pos = _off;
+        while (pos + 4 <= _off + _len) {
+            final int id = 0xFFFF & _cen.getShort(pos);
+            final int size = 0xFFFF & _cen.getShort(pos + 2);
+            if (0x0001 == id) {
+                int field = pos + 4;
+                if (ZIP64_MAGIC == _rec.m_size && field + 8 <= pos + 4 + size) {
+                    _rec.m_size = _cen.getLong(field);
+                    field += 8;
+                }
+                if (ZIP64_MAGIC == _rec.m_compressedSize && field + 8 <= pos + 4 + size) {
+                    _rec.m_compressedSize = _cen.getLong(field);
+                    field += 8;
+                }
+                if (ZIP64_MAGIC == _rec.m_localHeaderOffset && field + 8 <= pos + 4 + size) {
+                    _rec.m_localHeaderOffset = _cen.getLong(field);
+                }
+                return;
+            }
+            pos += 4 + size;
+        }
+    }
+}
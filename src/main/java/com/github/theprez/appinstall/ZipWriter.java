@@ -0,0 +1,353 @@
+package com.github.theprez.appinstall;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip/jar file. Besides regular entries written through this stream (compressed with a {@link Codec}), entries of
+ * an existing zip file can be copied raw, with their compressed data, CRC and sizes preserved and nothing inflated or
+ * deflated again.
+ */
+public class ZipWriter extends OutputStream {
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static int toDosTime(final long _millis) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(_millis);
+        final int year = cal.get(Calendar.YEAR);
+        if (1980 > year) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private final FileChannel m_channel;
+    private Codec m_codec = Codec.DEFAULT;
+    private long m_codecNanos = 0;
+    private ExecutorService m_compressors = null;
+    private final CRC32 m_crc = new CRC32();
+    private ZipIndex.Record m_current = null;
+    private final byte[] m_deflateBuf = new byte[1024 * 64];
+    private final Deflater m_deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final int m_dosTime = toDosTime(System.currentTimeMillis());
+    private boolean m_isFinished = false;
+    private ZipIndex.Record m_last = null;
+    private final OutputStream m_out;
+    private ParallelDeflater m_parallel = null;
+    private long m_pos = 0;
+    /** Counts what is written to the file, for compressed data that comes out of a {@link ParallelDeflater} */
+    private final OutputStream m_rawOut = new OutputStream() {
+        @Override
+        public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+            m_out.write(_b, _off, _len);
+            m_pos += _len;
+        }
+
+        @Override
+        public void write(final int _b) throws IOException {
+            write(new byte[] { (byte) _b }, 0, 1);
+        }
+    };
+    private long m_storedSize = 0;
+    private final List<ZipIndex.Record> m_records = new ArrayList<ZipIndex.Record>();
+
+    public ZipWriter(final File _f) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(_f);
+        m_channel = fos.getChannel();
+        m_out = new BufferedOutputStream(fos, 1024 * 64);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            m_deflater.end();
+            if (null != m_compressors) {
+                m_compressors.shutdownNow();
+            }
+            m_out.close();
+        }
+    }
+
+    /** Finishes the current entry (if any) */
+    public void closeEntry() throws IOException {
+        if (null == m_current) {
+            return;
+        }
+        final long start = System.nanoTime();
+        m_current.m_crc = (int) m_crc.getValue();
+        if (ZipEntry.STORED == m_current.m_method) {
+            // sizes and CRC go straight into the local header, as not all readers accept a data descriptor for stored data
+            m_current.m_size = m_current.m_compressedSize = m_storedSize;
+            m_out.flush();
+            final ByteBuffer loc = ByteBuffer.wrap(buildLocalHeader(m_current, true, true).array());
+            while (loc.hasRemaining()) {
+                m_channel.write(loc, m_current.m_localHeaderOffset + loc.position());
+            }
+            m_records.add(m_current);
+            m_last = m_current;
+            m_current = null;
+            return;
+        }
+        if (null != m_parallel) {
+            m_parallel.finish();
+            m_current.m_size = m_parallel.getBytesRead();
+            m_current.m_compressedSize = m_parallel.getBytesWritten();
+            m_parallel = null;
+        } else {
+            m_deflater.finish();
+            while (!m_deflater.finished()) {
+                drainDeflater();
+            }
+            m_current.m_size = m_deflater.getBytesRead();
+            m_current.m_compressedSize = m_deflater.getBytesWritten();
+        }
+        m_codecNanos += System.nanoTime() - start;
+        final boolean isZip64 = ZipIndex.ZIP64_MAGIC <= m_current.m_size || ZipIndex.ZIP64_MAGIC <= m_current.m_compressedSize;
+        final ByteBuffer desc = newBuffer(isZip64 ? 24 : 16);
+        desc.putInt(DATA_DESCRIPTOR_SIG).putInt(m_current.m_crc);
+        if (isZip64) {
+            desc.putLong(m_current.m_compressedSize).putLong(m_current.m_size);
+        } else {
+            desc.putInt((int) m_current.m_compressedSize).putInt((int) m_current.m_size);
+        }
+        writeBuffer(desc);
+        m_records.add(m_current);
+        m_last = m_current;
+        m_current = null;
+    }
+
+    /**
+     * Copies every entry of a template zip file verbatim, in a single transfer, so this file starts out as a copy of it.
+     * Must be called before anything else is written.
+     */
+    public void copyAll(final ZipIndex _template) throws IOException {
+        if (0 != m_pos || !m_records.isEmpty()) {
+            throw new IOException("Template must be copied first");
+        }
+        transfer(_template, 0, _template.getCentralDirectoryOffset());
+        m_records.addAll(_template.getRecords());
+    }
+
+    /** Copies an entry of another zip file without decompressing it */
+    public void copyRawEntry(final ZipIndex _source, final ZipIndex.Record _rec) throws IOException {
+        closeEntry();
+        final ZipIndex.Record rec = new ZipIndex.Record();
+        rec.m_name = _rec.m_name;
+        rec.m_flags = _rec.m_flags & ~FLAG_DATA_DESCRIPTOR;
+        rec.m_method = _rec.m_method;
+        rec.m_dosTime = _rec.m_dosTime;
+        rec.m_crc = _rec.m_crc;
+        rec.m_compressedSize = _rec.m_compressedSize;
+        rec.m_size = _rec.m_size;
+        rec.m_externalAttributes = _rec.m_externalAttributes;
+        rec.m_localHeaderOffset = m_pos;
+        writeBuffer(buildLocalHeader(rec, true, false));
+        transfer(_source, _source.getDataOffset(_rec), _rec.m_compressedSize);
+        m_records.add(rec);
+    }
+
+    /** Writes the central directory. The underlying file is left open until {@link #close()}. */
+    public void finish() throws IOException {
+        if (m_isFinished) {
+            return;
+        }
+        closeEntry();
+        final long cenOffset = m_pos;
+        for (final ZipIndex.Record rec : m_records) {
+            final byte[] name = rec.m_name.getBytes(StandardCharsets.UTF_8);
+            final boolean isSizeZip64 = ZipIndex.ZIP64_MAGIC <= rec.m_size || ZipIndex.ZIP64_MAGIC <= rec.m_compressedSize;
+            final boolean isOffsetZip64 = ZipIndex.ZIP64_MAGIC <= rec.m_localHeaderOffset;
+            final int extraLen = (isSizeZip64 ? 16 : 0) + (isOffsetZip64 ? 8 : 0);
+            final ByteBuffer cen = newBuffer(46 + name.length + (0 < extraLen ? 4 + extraLen : 0));
+            cen.putInt(ZipIndex.CEN_SIG);
+            cen.putShort((short) (0 < extraLen ? 45 : 20)).putShort((short) (0 < extraLen ? 45 : 20));
+            cen.putShort((short) rec.m_flags).putShort((short) rec.m_method).putInt(rec.m_dosTime).putInt(rec.m_crc);
+            cen.putInt(isSizeZip64 ? -1 : (int) rec.m_compressedSize).putInt(isSizeZip64 ? -1 : (int) rec.m_size);
+            cen.putShort((short) name.length).putShort((short) (0 < extraLen ? 4 + extraLen : 0)).putShort((short) 0);
+            cen.putShort((short) 0).putShort((short) 0).putInt(rec.m_externalAttributes);
+            cen.putInt(isOffsetZip64 ? -1 : (int) rec.m_localHeaderOffset);
+            cen.put(name);
+            if (0 < extraLen) {
+                cen.putShort((short) 0x0001).putShort((short) extraLen);
+                if (isSizeZip64) {
+                    cen.putLong(rec.m_size).putLong(rec.m_compressedSize);
+                }
+                if (isOffsetZip64) {
+                    cen.putLong(rec.m_localHeaderOffset);
+                }
+            }
+            writeBuffer(cen);
+        }
+        final long cenSize = m_pos - cenOffset;
+        final boolean isZip64 = 0xFFFF <= m_records.size() || ZipIndex.ZIP64_MAGIC <= cenOffset || ZipIndex.ZIP64_MAGIC <= cenSize;
+        if (isZip64) {
+            final long end64Offset = m_pos;
+            final ByteBuffer end64 = newBuffer(56 + 20);
+            end64.putInt(ZipIndex.ZIP64_END_SIG).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+            end64.putLong(m_records.size()).putLong(m_records.size()).putLong(cenSize).putLong(cenOffset);
+            end64.putInt(ZipIndex.ZIP64_LOCATOR_SIG).putInt(0).putLong(end64Offset).putInt(1);
+            writeBuffer(end64);
+        }
+        final ByteBuffer end = newBuffer(22);
+        end.putInt(ZipIndex.END_SIG).putShort((short) 0).putShort((short) 0);
+        end.putShort((short) (isZip64 ? 0xFFFF : m_records.size())).putShort((short) (isZip64 ? 0xFFFF : m_records.size()));
+        end.putInt(isZip64 ? -1 : (int) cenSize).putInt(isZip64 ? -1 : (int) cenOffset).putShort((short) 0);
+        writeBuffer(end);
+        m_out.flush();
+        m_isFinished = true;
+    }
+
+    /** @return the time spent compressing (CRC included) since this writer was created */
+    public long getCodecNanos() {
+        return m_codecNanos;
+    }
+
+    /** @return the entry most recently finished by {@link #closeEntry()} */
+    public ZipIndex.Record getLastEntry() {
+        return m_last;
+    }
+
+    /** @return the number of bytes written so far */
+    public long getPosition() {
+        return m_pos;
+    }
+
+    /** Starts a new entry, to be written through this stream and compressed with the current codec */
+    public void putNextEntry(final String _name) throws IOException {
+        closeEntry();
+        if (m_isFinished) {
+            throw new IOException("Zip file already finished");
+        }
+        final ZipIndex.Record rec = new ZipIndex.Record();
+        rec.m_name = _name;
+        rec.m_method = m_codec.getMethod();
+        rec.m_flags = ZipEntry.STORED == rec.m_method ? FLAG_UTF8 : FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        rec.m_dosTime = m_dosTime;
+        rec.m_localHeaderOffset = m_pos;
+        writeBuffer(buildLocalHeader(rec, false, ZipEntry.STORED == rec.m_method));
+        m_crc.reset();
+        m_storedSize = 0;
+        if (ZipEntry.DEFLATED == rec.m_method && 1 < m_codec.getThreads()) {
+            if (null == m_compressors) {
+                m_compressors = Executors.newFixedThreadPool(m_codec.getThreads());
+            }
+            m_parallel = new ParallelDeflater(m_rawOut, m_codec.getLevel(), m_compressors, 2 * m_codec.getThreads());
+        } else {
+            m_deflater.reset();
+            m_deflater.setLevel(m_codec.getLevel());
+        }
+        m_current = rec;
+    }
+
+    /** Sets the codec of entries started from now on */
+    public void setCodec(final Codec _codec) throws IOException {
+        if (null != m_compressors && m_codec.getThreads() != _codec.getThreads()) {
+            closeEntry();
+            m_compressors.shutdown();
+            m_compressors = null;
+        }
+        m_codec = _codec;
+    }
+
+    @Override
+    public void write(final byte[] _b, final int _off, final int _len) throws IOException {
+        if (null == m_current) {
+            throw new IOException("No current zip entry");
+        }
+        final long start = System.nanoTime();
+        m_crc.update(_b, _off, _len);
+        if (ZipEntry.STORED == m_current.m_method) {
+            m_codecNanos += System.nanoTime() - start;
+            m_out.write(_b, _off, _len);
+            m_pos += _len;
+            m_storedSize += _len;
+            return;
+        }
+        if (null != m_parallel) {
+            m_parallel.write(_b, _off, _len);
+        } else {
+            m_deflater.setInput(_b, _off, _len);
+            while (!m_deflater.needsInput()) {
+                drainDeflater();
+            }
+        }
+        m_codecNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(final int _b) throws IOException {
+        write(new byte[] { (byte) _b }, 0, 1);
+    }
+
+    private void drainDeflater() throws IOException {
+        final int len = m_deflater.deflate(m_deflateBuf, 0, m_deflateBuf.length);
+        if (0 < len) {
+            m_out.write(m_deflateBuf, 0, len);
+            m_pos += len;
+        }
+    }
+
+    private static ByteBuffer newBuffer(final int _len) {
+        return ByteBuffer.allocate(_len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Copies a byte range of another zip file straight into this one, file channel to file channel */
+    private void transfer(final ZipIndex _source, final long _offset, final long _len) throws IOException {
+        m_out.flush();
+        final FileChannel in = _source.getChannel();
+        long done = 0;
+        while (done < _len) {
+            final long count = m_channel.transferFrom(in.position(_offset + done), m_pos + done, _len - done);
+            if (0 >= count) {
+                throw new IOException("Unexpected end of zip data");
+            }
+            done += count;
+        }
+        m_pos += _len;
+        m_channel.position(m_pos);
+    }
+
+    private void writeBuffer(final ByteBuffer _buf) throws IOException {
+        m_out.write(_buf.array(), 0, _buf.position());
+        m_pos += _buf.position();
+    }
+
+    /**
+     * @param _isZip64Forced whether to include the zip64 sizes even if they aren't needed (for a header that is rewritten
+     *                       once the sizes are known)
+     */
+    private ByteBuffer buildLocalHeader(final ZipIndex.Record _rec, final boolean _isSizeKnown, final boolean _isZip64Forced) {
+        final byte[] name = _rec.m_name.getBytes(StandardCharsets.UTF_8);
+        final boolean isZip64 = _isZip64Forced || (_isSizeKnown && (ZipIndex.ZIP64_MAGIC <= _rec.m_size || ZipIndex.ZIP64_MAGIC <= _rec.m_compressedSize));
+        final ByteBuffer loc = newBuffer(30 + name.length + (isZip64 ? 20 : 0));
+        loc.putInt(ZipIndex.LOC_SIG).putShort((short) (isZip64 ? 45 : 20)).putShort((short) _rec.m_flags).putShort((short) _rec.m_method);
+        loc.putInt(_rec.m_dosTime).putInt(_isSizeKnown ? _rec.m_crc : 0);
+        loc.putInt(isZip64 ? -1 : _isSizeKnown ? (int) _rec.m_compressedSize : 0);
+        loc.putInt(isZip64 ? -1 : _isSizeKnown ? (int) _rec.m_size : 0);
+        loc.putShort((short) name.length).putShort((short) (isZip64 ? 20 : 0));
+        loc.put(name);
+        if (isZip64) {
+            loc.putShort((short) 0x0001).putShort((short) 16).putLong(_isSizeKnown ? _rec.m_size : 0).putLong(_isSizeKnown ? _rec.m_compressedSize : 0);
+        }
+        return loc;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.theprez.appinstall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TemporaryFolder;
+
+public class InstallPackageBuilderTest {
+    private final TemporaryFolder m_tmp = new TemporaryFolder();
+
+    @Rule
+    public final RuleChain rules = RuleChain.outerRule(m_tmp).around(new TestFixtures.TemporaryHome(m_tmp));
+
+    /**
+     * Libraries are saved in name order, but written out in the order of the spec, ALPHA last. With a single job, ALPHA
+     * must not take the one staging slot ahead of the libraries written before it.
+     */
+    @Test(timeout = 60000)
+    public void testAfterOrderingWithOneJob() throws Exception {
+        final SimulatedHost host = TestFixtures.simulate(m_tmp, "libraries:", "  ALPHA: { size: 1 }", "  BETA: { size: 1 }", "  GAMMA: { size: 1 }");
+        TestFixtures.writeFile(new File(m_tmp.getRoot(), "files/a.txt"), "a");
+        final File spec = TestFixtures.writeFile(new File(m_tmp.getRoot(), "spec.yml"), "components:", "  - library: BETA", "  - library: GAMMA", "  - library: ALPHA", "    after: [ GAMMA ]",
+                "  - name: web", "    files: [ files ]");
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(host, pkg, 1);
+        builder.addFromSpecFile(TestFixtures.getLogger(), spec.getAbsolutePath());
+        builder.build();
+
+        final PackageManifest manifest = TestFixtures.readManifest(pkg);
+        assertEquals(Arrays.asList(InstallPackageBuilder.STREAM_FILES_TAR, "BETA.lib", "GAMMA.lib", "ALPHA.lib"), manifest.getFiles());
+        assertEquals(Collections.singletonList("GAMMA.lib"), manifest.getAfter().get("ALPHA.lib"));
+    }
+
+    /** Libraries are saved a job's worth at a time, and packaged in order, however many jobs there are */
+    @Test(timeout = 60000)
+    public void testSavesRunAJobsWorthAtATime() throws Exception {
+        for (final int jobs : new int[] { 1, 2, 3 }) {
+            final TestFixtures.CommandWatcher host = new TestFixtures.CommandWatcher(TestFixtures.simulate(m_tmp, "latencies: { SAVLIB: 100 }", "libraries:", "  LIB1: { size: 1 }", "  LIB2: { size: 1 }",
+                    "  LIB3: { size: 1 }", "  LIB4: { size: 1 }", "  LIB5: { size: 1 }", "  LIB6: { size: 1 }"), "SAVLIB ");
+            final File pkg = new File(m_tmp.getRoot(), "pkg" + jobs + ".jar");
+            final InstallPackageBuilder builder = TestFixtures.newBuilder(host, pkg, jobs);
+            final List<String> files = new LinkedList<String>();
+            for (int i = 1; i <= 6; ++i) {
+                builder.addLibrary("LIB" + i);
+                files.add("LIB" + i + ".lib");
+            }
+            builder.build();
+
+            assertEquals("Saves at once with " + jobs + " jobs", jobs, host.getMaxRunning());
+            assertEquals(files, TestFixtures.readManifest(pkg).getFiles());
+            assertEquals(Collections.emptyList(), TestFixtures.libraries(host, builder.getWorkLibrary()));
+        }
+    }
+
+    /** A failed save fails the build, without waiting on the saves after it, and leaves nothing behind */
+    @Test(timeout = 60000)
+    public void testFailedSave() throws Exception {
+        final SimulatedHost host = TestFixtures.simulate(m_tmp, "libraries:", "  ALPHA: { size: 1 }", "  BETA: { size: 1 }", "  GAMMA: { size: 1 }", "  DELTA: { size: 1 }", "failures:",
+                "  - command: 'SAVLIB LIB\\(BETA\\).*'", "    message: 'CPF3771: 0 objects saved from BETA.'");
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(host, pkg, 1);
+        for (final String library : Arrays.asList("ALPHA", "BETA", "GAMMA", "DELTA")) {
+            builder.addLibrary(library);
+        }
+        try {
+            builder.build();
+            fail("The save of BETA should have failed");
+        } catch (final IOException e) {
+            assertEquals("Error saving library BETA", e.getMessage());
+        }
+        assertFalse(pkg.exists());
+        assertEquals(Collections.emptyList(), TestFixtures.libraries(host, builder.getWorkLibrary()));
+    }
+
+    /** The CCSIDs of stream files are looked up a directory at a time */
+    @Test
+    public void testDirectoryCcsids() throws Exception {
+        final TestFixtures.CommandWatcher host = new TestFixtures.CommandWatcher(TestFixtures.simulate(m_tmp), "describeCcsids ");
+        final File app = new File(m_tmp.getRoot(), "app");
+        final File a = TestFixtures.writeFile(new File(app, "a.txt"), "a");
+        final File b = TestFixtures.writeFile(new File(app, "b.txt"), "b");
+        final File c = TestFixtures.writeFile(new File(app, "sub/c.txt"), "c");
+        try (HostSession session = host.open()) {
+            session.setCcsid(819, Arrays.asList(a.getAbsolutePath(), new File(app, "sub").getAbsolutePath()));
+            session.setCcsid(1208, Collections.singletonList(c.getAbsolutePath()));
+        }
+        try (HostSessionPool sessions = new HostSessionPool(host, 1)) {
+            final InstallPackageBuilder.DirectoryCcsids ccsids = new InstallPackageBuilder.DirectoryCcsids(sessions);
+            assertEquals(819, ccsids.getCcsid(a));
+            assertEquals(0, ccsids.getCcsid(b));
+            assertEquals(819, ccsids.getCcsid(new File(app, "sub")));
+            assertEquals(1208, ccsids.getCcsid(c));
+            assertEquals(819, ccsids.getCcsid(a));
+        }
+        assertEquals(Arrays.asList("> describeCcsids " + app.getAbsolutePath(), "< describeCcsids " + app.getAbsolutePath(), "> describeCcsids " + new File(app, "sub").getAbsolutePath(),
+                "< describeCcsids " + new File(app, "sub").getAbsolutePath()), host.getEvents());
+    }
+
+    /** A file rewritten to the same size, with its modification time set back, isn't taken from the build cache */
+    @Test(timeout = 60000)
+    public void testStreamFilesCacheSeesRewrites() throws Exception {
+        final SimulatedHost host = TestFixtures.simulate(m_tmp);
+        final File a = TestFixtures.writeFile(new File(m_tmp.getRoot(), "app/a.txt"), "old");
+        final long mtime = a.lastModified();
+        final File root = m_tmp.newFolder("root");
+        for (final String content : Arrays.asList("old", "new")) {
+            TestFixtures.writeFile(a, content);
+            a.setLastModified(mtime);
+            final File pkg = new File(m_tmp.getRoot(), content + ".jar");
+            final InstallPackageBuilder builder = TestFixtures.newBuilder(host, pkg, 1);
+            builder.setCacheSize("16");
+            builder.addFile(a.getParentFile());
+            builder.build();
+            TestFixtures.install(host, pkg, TestFixtures.newInstallOptions(root, 1));
+            assertEquals(content + "\n", TestFixtures.readFile(new File(root, a.getAbsolutePath())));
+        }
+    }
+}
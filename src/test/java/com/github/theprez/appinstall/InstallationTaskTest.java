@@ -0,0 +1,269 @@
+package com.github.theprez.appinstall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TemporaryFolder;
+
+/** Packages built against a simulated host, and installed onto another one */
+public class InstallationTaskTest {
+    private final TemporaryFolder m_tmp = new TemporaryFolder();
+
+    @Rule
+    public final RuleChain rules = RuleChain.outerRule(m_tmp).around(new TestFixtures.TemporaryHome(m_tmp));
+
+    @Test(timeout = 60000)
+    public void testLibraryAndStreamFilesRoundTrip() throws Exception {
+        final SimulatedHost source = TestFixtures.simulate(m_tmp, "libraries:", "  MYAPP:", "    objects: [ 'PGMA *PGM CLLE 2026-10-05 1000', 'DATA *FILE PF 2026-10-05 2000' ]", "  MYLIB:",
+                "    objects: [ 'PGMB *PGM CLLE 2026-10-05 1000', 'SRV1 *SRVPGM RPGLE 2026-10-05 1000' ]");
+        final File app = new File(m_tmp.getRoot(), "app");
+        TestFixtures.writeFile(new File(app, "a.txt"), "a");
+        TestFixtures.writeFile(new File(app, "sub/b.txt"), "b");
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(source, pkg, 2);
+        builder.addLibrary("MYAPP");
+        builder.addLibrary("MYLIB/PGM*:*PGM");
+        builder.addFile(app);
+        builder.build();
+
+        final SimulatedHost target = TestFixtures.simulate(m_tmp, "libraries:", "  MYLIB:", "    objects: [ 'OTHER *PGM CLLE 2026-01-01 10' ]");
+        final File root = m_tmp.newFolder("root");
+        TestFixtures.install(target, pkg, TestFixtures.newInstallOptions(root, 2));
+
+        assertEquals(TestFixtures.describeObjects(source, "MYAPP"), TestFixtures.describeObjects(target, "MYAPP"));
+        final List<String> myLib = TestFixtures.describeObjects(target, "MYLIB");
+        assertEquals(2, myLib.size());
+        assertTrue(myLib.get(0).startsWith("OTHER *PGM "));
+        assertTrue(myLib.get(1).startsWith("PGMB *PGM "));
+        assertEquals("a\n", TestFixtures.readFile(new File(root, new File(app, "a.txt").getAbsolutePath())));
+        assertEquals("b\n", TestFixtures.readFile(new File(root, new File(app, "sub/b.txt").getAbsolutePath())));
+    }
+
+    /** A delta deletes the files it drops, and the directories it drops unless something else is in them */
+    @Test(timeout = 60000)
+    public void testDeltaInstall() throws Exception {
+        final SimulatedHost host = TestFixtures.simulate(m_tmp);
+        final File app = new File(m_tmp.getRoot(), "app");
+        TestFixtures.writeFile(new File(app, "a.txt"), "a");
+        TestFixtures.writeFile(new File(app, "gone/b.txt"), "b");
+        TestFixtures.writeFile(new File(app, "shared/c.txt"), "c");
+        final File base = new File(m_tmp.getRoot(), "base.jar");
+        InstallPackageBuilder builder = TestFixtures.newBuilder(host, base, 1);
+        builder.addFile(app);
+        builder.build();
+
+        TestFixtures.writeFile(new File(app, "a.txt"), "a, changed");
+        TestFixtures.writeFile(new File(app, "new.txt"), "new");
+        TestFixtures.delete(new File(app, "gone"));
+        TestFixtures.delete(new File(app, "shared"));
+        final File delta = new File(m_tmp.getRoot(), "delta.jar");
+        builder = TestFixtures.newBuilder(host, delta, 1);
+        builder.setBase(base.getAbsolutePath());
+        builder.addFile(app);
+        builder.build();
+
+        final File root = m_tmp.newFolder("root");
+        final File installed = new File(root, app.getAbsolutePath());
+        TestFixtures.install(host, base, TestFixtures.newInstallOptions(root, 2));
+        TestFixtures.writeFile(new File(installed, "shared/mine.txt"), "not ours");
+        TestFixtures.install(host, delta, TestFixtures.newInstallOptions(root, 2));
+
+        assertEquals("a, changed\n", TestFixtures.readFile(new File(installed, "a.txt")));
+        assertEquals("new\n", TestFixtures.readFile(new File(installed, "new.txt")));
+        assertFalse(new File(installed, "gone").exists());
+        assertFalse(new File(installed, "shared/c.txt").exists());
+        assertTrue(new File(installed, "shared/mine.txt").exists());
+    }
+
+    /**
+     * A component that fails doesn't stop those that don't depend on it, and those that do are reported as failed along
+     * with it. Resuming installs just what failed.
+     */
+    @Test(timeout = 60000)
+    public void testFailureCollection() throws Exception {
+        final SimulatedHost source = TestFixtures.simulate(m_tmp, "libraries:", "  LIBA: { objects: [ 'A *PGM' ] }", "  LIBB: { objects: [ 'B *PGM' ] }", "  LIBC: { objects: [ 'C *PGM' ] }");
+        final File spec = TestFixtures.writeFile(new File(m_tmp.getRoot(), "spec.yml"), "components:", "  - library: LIBA", "  - library: LIBB", "    after: [ LIBA ]", "  - library: LIBC");
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(source, pkg, 2);
+        builder.addFromSpecFile(TestFixtures.getLogger(), spec.getAbsolutePath());
+        builder.build();
+
+        final SimulatedHost target = TestFixtures.simulate(m_tmp, "failures:", "  - command: 'RSTLIB SAVLIB\\(LIBA\\).*'", "    message: 'CPF3773: 1 objects not restored to LIBA.'", "    times: 1");
+        final File root = m_tmp.newFolder("root");
+        try {
+            TestFixtures.install(target, pkg, TestFixtures.newInstallOptions(root, 1));
+            fail("The installation of LIBA should have failed");
+        } catch (final IOException e) {
+            assertEquals("Installation failed for [LIBA.lib, LIBB.lib]", e.getMessage());
+            assertEquals(2, e.getSuppressed().length);
+            assertEquals("Not installed, since LIBA.lib failed", e.getSuppressed()[1].getMessage());
+        }
+        assertEquals(Collections.singletonList("LIBC"), TestFixtures.libraries(target, "LIBA", "LIBB", "LIBC"));
+
+        final InstallOptions resume = TestFixtures.newInstallOptions(root, 1);
+        resume.resume = true;
+        TestFixtures.install(target, pkg, resume);
+        assertEquals(Arrays.asList("LIBA", "LIBB", "LIBC"), TestFixtures.libraries(target, "LIBA", "LIBB", "LIBC"));
+    }
+
+    /**
+     * Components are installed a job's worth at a time, each once those it comes after have been, and those that don't
+     * depend on one another alongside each other
+     */
+    @Test(timeout = 60000)
+    public void testInstallScheduling() throws Exception {
+        final SimulatedHost source = TestFixtures.simulate(m_tmp, "libraries:", "  LIBA: { objects: [ 'A *PGM' ] }", "  LIBB: { objects: [ 'B *PGM' ] }", "  LIBC: { objects: [ 'C *PGM' ] }",
+                "  LIBD: { objects: [ 'D *PGM' ] }");
+        final File spec = TestFixtures.writeFile(new File(m_tmp.getRoot(), "spec.yml"), "components:", "  - library: LIBA", "  - library: LIBB", "    after: [ LIBA ]", "  - library: LIBC", "  - library: LIBD");
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(source, pkg, 2);
+        builder.addFromSpecFile(TestFixtures.getLogger(), spec.getAbsolutePath());
+        builder.build();
+
+        for (final int jobs : new int[] { 1, 3 }) {
+            final TestFixtures.CommandWatcher target = new TestFixtures.CommandWatcher(TestFixtures.simulate(m_tmp, "latencies: { RSTLIB: 200 }"), "RSTLIB ");
+            TestFixtures.install(target, pkg, TestFixtures.newInstallOptions(m_tmp.newFolder(), jobs));
+
+            assertEquals(Arrays.asList("LIBA", "LIBB", "LIBC", "LIBD"), TestFixtures.libraries(target, "LIBA", "LIBB", "LIBC", "LIBD"));
+            assertTrue("Restores at once with " + jobs + " jobs: " + target.getEvents(), 1 == jobs ? 1 == target.getMaxRunning() : 1 < target.getMaxRunning() && jobs >= target.getMaxRunning());
+            final int liba = target.indexOf("< RSTLIB SAVLIB(LIBA)");
+            assertTrue("LIBA restored before LIBB: " + target.getEvents(), 0 <= liba && liba < target.indexOf("> RSTLIB SAVLIB(LIBB)"));
+        }
+    }
+
+    /**
+     * A package compressed pigz-style, in blocks primed with the tail of the block before and joined by sync flushes,
+     * reads back through the installer's zip reading to exactly what went in
+     */
+    @Test(timeout = 60000)
+    public void testParallelCodecRoundTrip() throws Exception {
+        final SimulatedHost source = TestFixtures.simulate(m_tmp, "libraries:", "  MYAPP: { size: 3, objects: [ 'PGMA *PGM CLLE 2026-10-05 1000' ] }");
+        final byte[] content = new byte[ParallelDeflater.BLOCK_SIZE * 7 / 2];
+        final Random random = new Random(1);
+        final String[] words = { "alpha ", "beta ", "gamma ", "delta ", "epsilon\n" };
+        for (int i = 0; i < content.length;) {
+            for (final byte b : words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII)) {
+                if (i < content.length) {
+                    content[i++] = b;
+                }
+            }
+        }
+        final File big = new File(m_tmp.getRoot(), "app/big.txt");
+        Files.createDirectories(big.getParentFile().toPath());
+        Files.write(big.toPath(), content);
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(source, pkg, 2);
+        builder.setCodec("parallel:6");
+        builder.addLibrary("MYAPP");
+        builder.addFile(big.getParentFile());
+        builder.build();
+        try (ZipFile zip = new ZipFile(pkg)) {
+            final ZipEntry entry = zip.getEntry("APPINSTALL-DATA/" + InstallPackageBuilder.STREAM_FILES_TAR);
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertTrue(entry.getCompressedSize() < content.length / 2);
+        }
+
+        final SimulatedHost target = TestFixtures.simulate(m_tmp);
+        final File root = m_tmp.newFolder("root");
+        TestFixtures.install(target, pkg, TestFixtures.newInstallOptions(root, 2));
+        assertArrayEquals(content, Files.readAllBytes(new File(root, big.getAbsolutePath()).toPath()));
+        assertEquals(TestFixtures.describeObjects(source, "MYAPP"), TestFixtures.describeObjects(target, "MYAPP"));
+    }
+
+    /** Payloads too big for one volume are continued in the next, and put back together (and verified) on install */
+    @Test(timeout = 60000)
+    public void testVolumesRoundTrip() throws Exception {
+        final SimulatedHost source = TestFixtures.simulate(m_tmp, "libraries:", "  MYAPP: { size: 3, objects: [ 'PGMA *PGM CLLE 2026-10-05 1000' ] }");
+        final byte[] content = new byte[1024 * 1024 * 5 / 2];
+        new Random(1).nextBytes(content);
+        final File big = new File(m_tmp.getRoot(), "app/big.bin");
+        Files.createDirectories(big.getParentFile().toPath());
+        Files.write(big.toPath(), content);
+        final File pkg = new File(m_tmp.getRoot(), "pkg.jar");
+        final InstallPackageBuilder builder = TestFixtures.newBuilder(source, pkg, 2);
+        builder.setCodec("store");
+        builder.setVolumeSize("1");
+        builder.addLibrary("MYAPP");
+        builder.addFile(big.getParentFile());
+        builder.build();
+        final List<PackageVolume> volumes = TestFixtures.readManifest(pkg).getVolumes();
+        assertTrue(2 < volumes.size());
+        final Map<String, Integer> parts = new TreeMap<String, Integer>();
+        for (final PackageVolume volume : volumes) {
+            assertTrue(new File(m_tmp.getRoot(), volume.getName()).isFile());
+            for (final PackageVolume.Part part : volume.getParts()) {
+                parts.merge(part.getFile(), 1, Integer::sum);
+            }
+        }
+        assertTrue(1 < parts.get(InstallPackageBuilder.STREAM_FILES_TAR));
+
+        final SimulatedHost target = TestFixtures.simulate(m_tmp);
+        final File root = m_tmp.newFolder("root");
+        TestFixtures.install(target, pkg, TestFixtures.newInstallOptions(root, 2));
+        assertArrayEquals(content, Files.readAllBytes(new File(root, big.getAbsolutePath()).toPath()));
+        assertEquals(TestFixtures.describeObjects(source, "MYAPP"), TestFixtures.describeObjects(target, "MYAPP"));
+    }
+
+    /** The index of a delta package, worked out into CCSID tags and deletes, under an install root */
+    @Test
+    public void testStreamFileChanges() throws Exception {
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        final ManifestIndex.Writer writer = new ManifestIndex.Writer(index);
+        final String fingerprint = String.format("%064x", 0);
+        writer.add(new ManifestIndex.Entry(newEntry("app", TarEntry.TYPE_DIRECTORY, 1208), 0, fingerprint));
+        writer.add(new ManifestIndex.Entry(newEntry("app/a.txt", TarEntry.TYPE_FILE, 819), TarWriter.BLOCK_SIZE, fingerprint));
+        writer.add(new ManifestIndex.Entry(newEntry("app/b.txt", TarEntry.TYPE_FILE, 1208), TarWriter.BLOCK_SIZE * 3, fingerprint));
+        writer.add(new ManifestIndex.Entry(newEntry("app/same.txt", TarEntry.TYPE_FILE, 1208), -1, fingerprint));
+        writer.add(ManifestIndex.deleted("/app/gone/"));
+        writer.add(ManifestIndex.deleted("/app/gone/deeper/"));
+        writer.add(ManifestIndex.deleted("/app/old.txt"));
+        final String digest = writer.finish();
+
+        final InstallOptions options = TestFixtures.newInstallOptions(new File("/r"), 1);
+        final InstallPlan plan = new InstallPlan("test", m_tmp.getRoot(), m_tmp.newFolder("root").getAbsolutePath(), 1);
+        final InstallationTask.StreamFileChanges changes = new InstallationTask.StreamFileChanges();
+        try (ManifestIndex.Reader reader = new ManifestIndex.Reader(new ByteArrayInputStream(index.toByteArray()), digest)) {
+            assertTrue(InstallationTask.inferStreamFileChanges(reader, 3, "base", changes, options, plan, new PrintStream(new ByteArrayOutputStream())));
+        }
+        plan.finish();
+
+        final Map<Integer, List<String>> ccsids = new TreeMap<Integer, List<String>>();
+        ccsids.put(819, Collections.singletonList("/r/app/a.txt"));
+        ccsids.put(1208, Arrays.asList("/r/app", "/r/app/b.txt"));
+        assertEquals(ccsids, changes.getCcsids());
+        assertEquals(Collections.singletonList("/r/app/old.txt"), changes.getDeletedFiles());
+        assertEquals(Arrays.asList("/r/app/gone/deeper/", "/r/app/gone/"), changes.getDeletedDirs());
+    }
+
+    private static TarEntry newEntry(final String _name, final char _type, final int _ccsid) {
+        final TarEntry ret = new TarEntry(_name);
+        ret.setType(_type);
+        ret.setCcsid(_ccsid);
+        if (TarEntry.TYPE_FILE == _type) {
+            ret.setSize(100);
+        }
+        return ret;
+    }
+}
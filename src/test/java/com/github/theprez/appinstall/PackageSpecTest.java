@@ -0,0 +1,107 @@
+package com.github.theprez.appinstall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PackageSpecTest {
+
+    private static Map<String, List<String>> graph(final String... _nodes) {
+        final Map<String, List<String>> ret = new LinkedHashMap<String, List<String>>();
+        for (final String node : _nodes) {
+            final String[] parts = node.split(":", 2);
+            ret.put(parts[0], 1 == parts.length ? Collections.<String> emptyList() : Arrays.asList(parts[1].split(",")));
+        }
+        return ret;
+    }
+
+    private static List<String> names(final PackageSpec _spec) {
+        final List<String> ret = new LinkedList<String>();
+        for (final PackageSpec.Component component : _spec.getComponents()) {
+            ret.add(component.getName());
+        }
+        return ret;
+    }
+
+    private static PackageSpec read(final String... _lines) throws IOException {
+        return PackageSpec.read(new StringReader(String.join("\n", _lines)), new File("/spec"));
+    }
+
+    private static void assertInvalid(final String _message, final String... _lines) {
+        try {
+            read(_lines);
+            fail("Expected '" + _message + "'");
+        } catch (final IOException e) {
+            assertEquals(_message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSortKeepsOrderOfIndependentNodes() throws IOException {
+        assertEquals(Arrays.asList("A", "B", "C"), PackageSpec.sort(graph("A", "B", "C")));
+    }
+
+    @Test
+    public void testSortPutsNodesAfterTheirPrerequisites() throws IOException {
+        assertEquals(Arrays.asList("B", "C", "A", "D"), PackageSpec.sort(graph("A:C", "B", "C", "D")));
+        assertEquals(Arrays.asList("C", "B", "A"), PackageSpec.sort(graph("A:B", "B:C", "C")));
+        // a node comes as early as its prerequisites let it
+        assertEquals(Arrays.asList("C", "A", "B", "D"), PackageSpec.sort(graph("A:C", "B:A", "C", "D")));
+    }
+
+    @Test
+    public void testSortIgnoresUnknownPrerequisites() throws IOException {
+        assertEquals(Arrays.asList("A", "B"), PackageSpec.sort(graph("A:X", "B:A,Y")));
+    }
+
+    @Test
+    public void testSortRejectsCycles() {
+        try {
+            PackageSpec.sort(graph("A", "B:C", "C:D", "D:B", "E"));
+            fail("Expected a circular ordering");
+        } catch (final IOException e) {
+            assertEquals("Circular ordering between B, C, D", e.getMessage());
+        }
+        try {
+            PackageSpec.sort(graph("A:A"));
+            fail("Expected a circular ordering");
+        } catch (final IOException e) {
+            assertEquals("Circular ordering between A", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReadOrdersComponents() throws IOException {
+        final PackageSpec spec = read("components:", "  - library: beta", "  - library: GAMMA", "  - library: ALPHA", "    after: [ GAMMA ]", "  - name: web", "    files: [ www ]", "    after: [ ALPHA, BETA ]");
+        assertEquals(Arrays.asList("BETA", "GAMMA", "ALPHA", "web"), names(spec));
+        assertEquals(Collections.singletonList(new File("/spec/www").getAbsolutePath()), spec.getComponents().get(3).getFiles());
+        assertNull(spec.getCodec());
+    }
+
+    @Test
+    public void testReadRejectsBadOrdering() {
+        assertInvalid("Component 'A' is to come after 'NOPE', which is not a component", "components:", "  - library: A", "    after: [ NOPE ]");
+        assertInvalid("Circular ordering between A, B", "components:", "  - library: A", "    after: [ B ]", "  - library: B", "    after: [ A ]");
+        assertInvalid("Component 'A' is listed more than once", "components:", "  - library: A", "  - name: A", "    files: [ x ]");
+    }
+
+    @Test
+    public void testReadRejectsBadComponents() {
+        assertInvalid("Unknown key 'librar' in a component", "components:", "  - librar: A");
+        assertInvalid("A component with no library needs a name", "components:", "  - files: [ x ]");
+        assertInvalid("Component 'web' has no library, files or dirs", "components:", "  - name: web");
+        assertInvalid("Component 'web' selects objects, but has no library", "components:", "  - name: web", "    files: [ x ]", "    objects: [ PGMA ]");
+    }
+}
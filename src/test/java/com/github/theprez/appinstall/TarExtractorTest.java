@@ -0,0 +1,103 @@
+package com.github.theprez.appinstall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TarExtractorTest {
+    @Rule
+    public final TemporaryFolder m_tmp = new TemporaryFolder();
+
+    /** Writes an archive of entries given as {@code d name}, {@code l name target} or {@code f name content} */
+    private File archive(final String... _entries) throws IOException {
+        final File ret = m_tmp.newFile();
+        try (TarWriter tar = new TarWriter(new FileOutputStream(ret))) {
+            for (final String spec : _entries) {
+                final String[] parts = spec.split(" ", 3);
+                final TarEntry entry = new TarEntry(parts[1]);
+                entry.setMode(0755);
+                File content = null;
+                if ("d".equals(parts[0])) {
+                    entry.setType(TarEntry.TYPE_DIRECTORY);
+                } else if ("l".equals(parts[0])) {
+                    entry.setType(TarEntry.TYPE_SYMLINK);
+                    entry.setLinkName(parts[2]);
+                } else {
+                    content = TestFixtures.writeFile(m_tmp.newFile(), parts[2]);
+                    entry.setSize(content.length());
+                }
+                tar.putEntry(entry, content, null);
+            }
+            tar.finish();
+        }
+        return ret;
+    }
+
+    private void assertFails(final File _root, final File _archive, final String _message) throws InterruptedException {
+        try {
+            new TarExtractor(TestFixtures.getLogger(), _root, 2).extract(_archive);
+            fail("Expected '" + _message + "'");
+        } catch (final IOException e) {
+            assertEquals(_message, e.getMessage());
+        }
+    }
+
+    /** A symbolic link to a directory, already on the system where a directory is restored, is kept */
+    @Test
+    public void testKeepsLinkedDirectories() throws Exception {
+        final File root = m_tmp.newFolder("root");
+        final File data = new File(root, "data/app");
+        TestFixtures.writeFile(new File(data, "old.html"), "old");
+        Files.createDirectories(new File(root, "www").toPath());
+        Files.createSymbolicLink(new File(root, "www/app").toPath(), data.toPath());
+
+        new TarExtractor(TestFixtures.getLogger(), root, 2).extract(archive("d www", "d www/app", "f www/app/index.html index"));
+
+        assertTrue(Files.isSymbolicLink(new File(root, "www/app").toPath()));
+        assertEquals("index\n", TestFixtures.readFile(new File(data, "index.html")));
+        assertTrue(new File(data, "old.html").exists());
+    }
+
+    /** A file where a directory is to be restored is an error, and left alone */
+    @Test
+    public void testFileInTheWay() throws Exception {
+        final File root = m_tmp.newFolder("root");
+        final File www = TestFixtures.writeFile(new File(root, "www"), "mine");
+
+        assertFails(root, archive("d www", "f www/index.html index"), "Could not restore directory '" + www + "': something other than a directory is in the way");
+        assertEquals("mine\n", TestFixtures.readFile(www));
+    }
+
+    /** Entries aren't restored through symbolic links restored from the same archive */
+    @Test
+    public void testArchiveLinksArentFollowed() throws Exception {
+        final File root = m_tmp.newFolder("root");
+        final File outside = m_tmp.newFolder("outside");
+
+        assertFails(root, archive("d a", "l a/l " + outside, "f a/l/x gotcha"), "Archive entry 'a/l/x' is under the symbolic link " + new File(root, "a/l"));
+        assertFalse(new File(outside, "x").exists());
+        assertFails(root, archive("l b " + outside, "d b/sub"), "Archive entry 'b/sub' is under the symbolic link " + new File(root, "b"));
+        assertFalse(new File(outside, "sub").exists());
+    }
+
+    /** Nor through links already on the system that lead out of the root */
+    @Test
+    public void testSystemLinksOutOfTheRoot() throws Exception {
+        final File root = m_tmp.newFolder("root");
+        final File outside = m_tmp.newFolder("outside");
+        Files.createSymbolicLink(new File(root, "out").toPath(), outside.toPath());
+
+        assertFails(root, archive("f out/x gotcha"), "Archive entry 'out/x' is outside of " + root.toPath().toRealPath());
+        assertFalse(new File(outside, "x").exists());
+    }
+}
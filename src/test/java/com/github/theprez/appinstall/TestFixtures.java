@@ -0,0 +1,201 @@
+package com.github.theprez.appinstall;
+
+import java.beans.PropertyVetoException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.theprez.jcmdutils.AppLogger;
+import com.ibm.as400.access.ObjectDoesNotExistException;
+
+/** Helpers shared by the tests: files, simulated hosts, and packages built against them */
+class TestFixtures {
+
+    /**
+     * A host that watches the commands of a kind (those starting {@code SAVLIB }, say) run on it: how many run at once,
+     * and when each starts ({@code "> "} and the command) and ends ({@code "< "} and the command). Other calls are
+     * watched as the method name and first argument ({@code describeCcsids /home}, say).
+     */
+    static class CommandWatcher implements HostSession.Factory {
+        private final List<String> m_events = new LinkedList<String>();
+        private final HostSession.Factory m_host;
+        private int m_maxRunning = 0;
+        private final String m_prefix;
+        private int m_running = 0;
+
+        CommandWatcher(final HostSession.Factory _host, final String _prefix) {
+            m_host = _host;
+            m_prefix = _prefix;
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<String>(m_events);
+        }
+
+        synchronized int getMaxRunning() {
+            return m_maxRunning;
+        }
+
+        /** @return the place among the events of the first one that starts as given, or -1 */
+        synchronized int indexOf(final String _prefix) {
+            for (int i = 0; i < m_events.size(); ++i) {
+                if (m_events.get(i).startsWith(_prefix)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public HostSession open() throws IOException {
+            final HostSession session = m_host.open();
+            return (HostSession) Proxy.newProxyInstance(HostSession.class.getClassLoader(), new Class<?>[] { HostSession.class }, (_proxy, _method, _args) -> {
+                final String call = "runCommand".equals(_method.getName()) ? String.valueOf(_args[0]) : _method.getName() + (null == _args ? "" : " " + _args[0]);
+                final boolean isWatched = call.startsWith(m_prefix);
+                if (isWatched) {
+                    synchronized (this) {
+                        m_maxRunning = Math.max(m_maxRunning, ++m_running);
+                        m_events.add("> " + call);
+                    }
+                }
+                try {
+                    return _method.invoke(session, _args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if (isWatched) {
+                        synchronized (this) {
+                            --m_running;
+                            m_events.add("< " + call);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Points {@code user.home} at a directory of the test's own while it runs, so that the build cache, the installer
+     * runtime cache and installation directories don't touch (or depend on) those of whoever runs the tests
+     */
+    static class TemporaryHome extends ExternalResource {
+        private final TemporaryFolder m_folder;
+        private String m_saved = null;
+
+        TemporaryHome(final TemporaryFolder _folder) {
+            m_folder = _folder;
+        }
+
+        @Override
+        protected void after() {
+            System.setProperty("user.home", m_saved);
+        }
+
+        @Override
+        protected void before() throws Throwable {
+            m_saved = System.getProperty("user.home");
+            System.setProperty("user.home", m_folder.newFolder("home").getAbsolutePath());
+        }
+    }
+
+    /** Deletes a file, or a directory and everything in it */
+    static void delete(final File _f) throws IOException {
+        try (Stream<Path> paths = Files.walk(_f.toPath())) {
+            for (final Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /** @return a library's objects, as the host describes them */
+    static List<String> describeObjects(final HostSession.Factory _host, final String _library) throws IOException {
+        try (HostSession session = _host.open()) {
+            return session.describeObjects(_library);
+        }
+    }
+
+    static AppLogger getLogger() {
+        return AppLogger.getSingleton(false);
+    }
+
+    /**
+     * Installs a package, as running it would, but in-process and on the host given
+     *
+     * @throws IOException as the installation fails, for instance with the failures of its components suppressed in it
+     */
+    static void install(final HostSession.Factory _host, final File _pkg, final InstallOptions _options) throws IOException, InterruptedException, ObjectDoesNotExistException, PropertyVetoException {
+        final PackageConfiguration config = new PackageConfiguration(getLogger(), _pkg);
+        try (ExtractionTask extraction = new ExtractionTask(getLogger(), config)) {
+            extraction.start(_options);
+            final InstallationTask install = new InstallationTask(getLogger(), config, extraction);
+            install.setHostSessionFactory(_host);
+            install.run(_options);
+        }
+    }
+
+    /** @return those of the libraries that exist on the host */
+    static List<String> libraries(final HostSession.Factory _host, final String... _libraries) throws IOException {
+        try (HostSession session = _host.open()) {
+            return new LinkedList<String>(session.describeLibraries(Arrays.asList(_libraries)).keySet());
+        }
+    }
+
+    /** @return a builder of packages against the host, with the build cache disabled, writing to {@code _pkg} */
+    static InstallPackageBuilder newBuilder(final HostSession.Factory _host, final File _pkg, final int _jobs) throws IOException {
+        final InstallPackageBuilder ret = new InstallPackageBuilder(getLogger());
+        ret.setHostSessionFactory(_host);
+        ret.setCacheSize("0");
+        ret.setParallelism(String.valueOf(_jobs));
+        ret.setOutputFile(_pkg.getAbsolutePath());
+        return ret;
+    }
+
+    /** @return the options of an installation under a root directory, that asks for no confirmation */
+    static InstallOptions newInstallOptions(final File _root, final int _jobs) {
+        final InstallOptions ret = new InstallOptions();
+        ret.confirm = 'y';
+        ret.root = _root.getAbsolutePath();
+        ret.jobs = _jobs;
+        return ret;
+    }
+
+    static PackageManifest readManifest(final File _pkg) throws IOException {
+        try (ZipFile zip = new ZipFile(_pkg); InputStream in = zip.getInputStream(zip.getEntry(PackageManifest.ENTRY_NAME))) {
+            return PackageManifest.read(in);
+        }
+    }
+
+    static String readFile(final File _f) throws IOException {
+        return new String(Files.readAllBytes(_f.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /** @return a simulated host, as described by the lines of YAML given */
+    static SimulatedHost simulate(final TemporaryFolder _folder, final String... _yaml) throws IOException {
+        return SimulatedHost.read(getLogger(), writeFile(_folder.newFile(), _yaml));
+    }
+
+    /** Writes a file (creating the directories it is in), a line apiece */
+    static File writeFile(final File _f, final String... _lines) throws IOException {
+        Files.createDirectories(_f.getAbsoluteFile().getParentFile().toPath());
+        Files.write(_f.toPath(), (String.join("\n", _lines) + "\n").getBytes(StandardCharsets.UTF_8));
+        return _f;
+    }
+
+    private TestFixtures() {
+    }
+}